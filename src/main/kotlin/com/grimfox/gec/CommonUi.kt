@@ -399,9 +399,14 @@ val errorMessageDynamic = dynamicParagraph("", 600)
 val errorMessageText = errorMessageDynamic.text
 val errorMessageReference = errorMessageDynamic.reference
 
+val metricsOverlayDynamic = dynamicParagraph("", 4000)
+val metricsOverlayText = metricsOverlayDynamic.text
+val metricsOverlayReference = metricsOverlayDynamic.reference
+
 var overwriteWarningDialog = NO_BLOCK
 var errorMessageDialog = NO_BLOCK
 var generatingMessageBlock = NO_BLOCK
+var metricsOverlayBlock = NO_BLOCK
 var generatingPrimaryMessage = StaticTextReference()
 var generatingSecondaryMessage = StaticTextReference()
 val noop = {}
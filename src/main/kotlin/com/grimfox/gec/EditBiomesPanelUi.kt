@@ -1,6 +1,7 @@
 package com.grimfox.gec
 
 import com.grimfox.gec.brushes.PreSelectDrawBrushListener
+import com.grimfox.gec.model.ByteArrayMatrix
 import com.grimfox.gec.ui.*
 import com.grimfox.gec.ui.widgets.*
 import com.grimfox.gec.util.*
@@ -159,9 +160,10 @@ fun Block.editBiomesPanel(
         editToggleSet.add(editBiomesMode,
                 {
                     val currentBiomeGraph = currentState.biomeGraph.value
-                    val currentBiomeMask = currentState.biomeMask.value
+                    val currentBiomeMask = currentState.biomeMask.value?.let { ByteArrayMatrix(it.width, it.array.copyOf()) }
                     if (currentBiomeGraph != null && currentBiomeMask != null) {
                         generationLock.lock()
+                        currentState.biomeMask.value = currentBiomeMask
                         if (displayMode.value != DisplayMode.BIOMES) {
                             val biomeTextureId = Rendering.renderRegions(VIEWPORT_TEXTURE_SIZE, currentBiomeGraph, currentBiomeMask)
                             val currentSplines = currentState.regionSplines.value
@@ -4,6 +4,7 @@ import com.grimfox.gec.brushes.PickAndGoDrawBrushListener
 import com.grimfox.gec.brushes.SplineDeletePicker
 import com.grimfox.gec.brushes.SplineDrawBrushListener
 import com.grimfox.gec.brushes.SplinePointPicker
+import com.grimfox.gec.model.ByteArrayMatrix
 import com.grimfox.gec.model.ShortArrayMatrix
 import com.grimfox.gec.model.geometry.LineSegment2F
 import com.grimfox.gec.model.geometry.Point2F
@@ -194,9 +195,10 @@ fun Block.editRegionsPanel(
         editToggleSet.add(editRegionsMode,
                 {
                     val currentGraph = currentState.regionGraph.value
-                    val currentMask = currentState.regionMask.value
+                    val currentMask = currentState.regionMask.value?.let { ByteArrayMatrix(it.width, it.array.copyOf()) }
                     if (currentGraph != null && currentMask != null) {
                         generationLock.lock()
+                        currentState.regionMask.value = currentMask
                         val regionTextureId = Rendering.renderRegions(VIEWPORT_TEXTURE_SIZE, currentGraph, currentMask)
                         meshViewport.setRegions(regionTextureId)
                         imageMode.value = 0
@@ -60,6 +60,13 @@ fun exportPanel(ui: UserInterface) {
             }
         }
     }
+    fun heightExtensionFilter(textReference: DynamicTextReference): (String, String) -> Unit = { old, new ->
+        if (old != new) {
+            if (new.isNotBlank() && listOf(".png", ".r16", ".r32", ".exr").none { new.endsWith(it, true) }) {
+                textReference.reference.value = "$new.png"
+            }
+        }
+    }
     fun objExtensionFilter(textReference: DynamicTextReference): (String, String) -> Unit = { old, new ->
         if (old != new) {
             if (DEMO_BUILD) {
@@ -91,7 +98,7 @@ fun exportPanel(ui: UserInterface) {
             null
         }
     }
-    elevationFile.reference.addListener(pngExtensionFilter(elevationFile))
+    elevationFile.reference.addListener(heightExtensionFilter(elevationFile))
     slopeFile.reference.addListener(pngExtensionFilter(slopeFile))
     aoFile.reference.addListener(pngExtensionFilter(aoFile))
     normalFile.reference.addListener(pngExtensionFilter(normalFile))
@@ -122,7 +129,7 @@ fun exportPanel(ui: UserInterface) {
             vSizing = Sizing.SHRINK
             vSpacer(LARGE_SPACER_SIZE)
             vSaveFileRowWithToggle(baseFile, useBaseFile, LARGE_ROW_HEIGHT, text("Base name:"), shrinkGroup, MEDIUM_SPACER_SIZE, dialogLayer, true, ui)
-            vSaveFileRowWithToggle(elevationFile, useElevationFile, LARGE_ROW_HEIGHT, text("Elevation file:"), shrinkGroup, MEDIUM_SPACER_SIZE, dialogLayer, true, ui, "png")
+            vSaveFileRowWithToggle(elevationFile, useElevationFile, LARGE_ROW_HEIGHT, text("Elevation file:"), shrinkGroup, MEDIUM_SPACER_SIZE, dialogLayer, true, ui, "png", "r16", "r32", "exr")
             vSaveFileRowWithToggle(normalFile, useNormalFile, LARGE_ROW_HEIGHT, text("Normal file:"), shrinkGroup, MEDIUM_SPACER_SIZE, dialogLayer, true, ui, "png")
             vSaveFileRowWithToggle(aoFile, useAoFile, LARGE_ROW_HEIGHT, text("Occlusion file:"), shrinkGroup, MEDIUM_SPACER_SIZE, dialogLayer, true, ui, "png")
             vSaveFileRowWithToggle(slopeFile, useSlopeFile, LARGE_ROW_HEIGHT, text("Slope file:"), shrinkGroup, MEDIUM_SPACER_SIZE, dialogLayer, true, ui, "png")
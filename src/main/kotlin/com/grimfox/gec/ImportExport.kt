@@ -8,11 +8,102 @@ import com.grimfox.gec.ui.widgets.Block
 import com.grimfox.gec.util.*
 import com.grimfox.gec.util.BuildContinent.RegionSplines
 import java.io.*
+import java.nio.ByteBuffer
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.DeflaterOutputStream
 import java.util.zip.GZIPInputStream
 import java.util.zip.GZIPOutputStream
+import java.util.zip.InflaterInputStream
+
+private const val PROJECT_FILE_MAGIC = 0x574B5053
+private const val PROJECT_FILE_VERSION = 1
+
+private const val SECTION_STATE = 0
+private const val SECTION_REGIONS_BACK = 1
+private const val SECTION_REGIONS_FORWARD = 2
+private const val SECTION_SPLINES_BACK = 3
+private const val SECTION_SPLINES_FORWARD = 4
+private const val SECTION_BIOMES_BACK = 5
+private const val SECTION_BIOMES_FORWARD = 6
+private const val SECTION_CUSTOM_BIOMES = 7
+
+class ProjectSection(val id: Int, val rawSize: Int, val data: ByteArray) {
+
+    fun <T> read(reader: DataInputStream.() -> T): T {
+        return DataInputStream(InflaterInputStream(ByteArrayInputStream(data)).buffered()).use { it.reader() }
+    }
+}
+
+class ProjectSectionCache {
+
+    private val sections = ConcurrentHashMap<Int, Pair<Long, ProjectSection>>()
+
+    operator fun get(id: Int, revision: Long): ProjectSection? {
+        val cached = sections[id] ?: return null
+        return if (cached.first == revision) cached.second else null
+    }
+
+    operator fun set(id: Int, revision: Long, section: ProjectSection) {
+        sections[id] = revision to section
+    }
+}
 
 fun importProjectFile(file: File, biomeTemplates: Biomes): Project? {
+    val sections = readProjectSections(file) ?: return importLegacyProjectFile(file, biomeTemplates)
+    val sectionCache = ProjectSectionCache()
+    listOf(SECTION_REGIONS_BACK, SECTION_REGIONS_FORWARD, SECTION_SPLINES_BACK, SECTION_SPLINES_FORWARD, SECTION_BIOMES_BACK, SECTION_BIOMES_FORWARD).forEach {
+        sectionCache[it, 0L] = sections.requireSection(it)
+    }
+    val customBiomeDataFuture = executor.call {
+        sections[SECTION_CUSTOM_BIOMES]?.read { readCustomBiomeData() } ?: CustomBiomeData()
+    }
+    return sections.requireSection(SECTION_STATE).read {
+        val currentState = CurrentState()
+        val currentRegionState = if (readBoolean()) readRegionsHistoryItem() else null
+        val regionGraphFuture = currentRegionState?.let { executor.call { Graphs.generateGraph(REGION_GRAPH_WIDTH, it.graphSeed, 0.8) } }
+        val currentSplineState = if (readBoolean()) readRegionSplines() else null
+        val currentBiomeState = if (readBoolean()) readBiomesHistoryItem() else null
+        val biomeGraphFuture = currentBiomeState?.let { executor.call { Graphs.generateGraph(BIOME_GRAPH_WIDTH, it.graphSeed, 0.8) } }
+        val historyRegionsBackQueue = readDeferredHistoryQueue(sections.requireSection(SECTION_REGIONS_BACK)) { readRegionsHistoryItem() }
+        val historyRegionsCurrentValue = if (readBoolean()) readRegionsHistoryItem() else null
+        val historyRegionsForwardQueue = readDeferredHistoryQueue(sections.requireSection(SECTION_REGIONS_FORWARD)) { readRegionsHistoryItem() }
+        val historySplinesBackQueue = readDeferredHistoryQueue(sections.requireSection(SECTION_SPLINES_BACK)) { readRegionSplines() }
+        val historySplinesCurrentValue = if (readBoolean()) readRegionSplines() else null
+        val historySplinesForwardQueue = readDeferredHistoryQueue(sections.requireSection(SECTION_SPLINES_FORWARD)) { readRegionSplines() }
+        val historyBiomesBackQueue = readDeferredHistoryQueue(sections.requireSection(SECTION_BIOMES_BACK)) { readBiomesHistoryItem() }
+        val historyBiomesCurrentValue = if (readBoolean()) readBiomesHistoryItem() else null
+        val historyBiomesForwardQueue = readDeferredHistoryQueue(sections.requireSection(SECTION_BIOMES_FORWARD)) { readBiomesHistoryItem() }
+        if (currentRegionState != null && regionGraphFuture != null) {
+            currentState.regionParameters.value = currentRegionState.parameters
+            currentState.regionGraph.value = regionGraphFuture.value
+            currentState.regionMask.value = currentRegionState.mask
+        }
+        if (currentSplineState != null) {
+            currentState.regionSplines.value = currentSplineState
+        }
+        if (currentBiomeState != null && biomeGraphFuture != null) {
+            currentState.biomeParameters.value = currentBiomeState.parameters
+            currentState.biomeGraph.value = biomeGraphFuture.value
+            currentState.biomeMask.value = currentBiomeState.mask
+            currentState.biomes.value = currentBiomeState.parameters.biomes.map { biomeTemplates.ordinalToBiome(it) }
+        }
+        Project(currentState = ref(currentState),
+                historyRegionsBackQueue = historyRegionsBackQueue,
+                historyRegionsCurrent = ref(historyRegionsCurrentValue),
+                historyRegionsForwardQueue = historyRegionsForwardQueue,
+                historySplinesBackQueue = historySplinesBackQueue,
+                historySplinesCurrent = ref(historySplinesCurrentValue),
+                historySplinesForwardQueue = historySplinesForwardQueue,
+                historyBiomesBackQueue = historyBiomesBackQueue,
+                historyBiomesCurrent = ref(historyBiomesCurrentValue),
+                historyBiomesForwardQueue = historyBiomesForwardQueue,
+                customBiomeDataForImport = customBiomeDataFuture.value,
+                sectionCache = sectionCache)
+    }
+}
+
+private fun importLegacyProjectFile(file: File, biomeTemplates: Biomes): Project? {
     return DataInputStream(GZIPInputStream(file.inputStream()).buffered()).use { stream ->
         val currentState = CurrentState()
         val hasRegionState = stream.readBoolean()
@@ -76,83 +167,160 @@ fun importProjectFile(file: File, biomeTemplates: Biomes): Project? {
 }
 
 fun exportProjectFile(project: Project, file: File) {
+    var snapshot: Project? = null
     editToggleSet.suspend {
         generationLock.doWithLock {
-            exportProjectFileBackground(project, file)
+            snapshot = project.snapshot()
             project.isModifiedSinceSave.value = false
         }
     }
+    val projectSnapshot = snapshot ?: return
+    try {
+        exportProjectFileBackground(projectSnapshot, file)
+    } catch (e: Exception) {
+        project.isModifiedSinceSave.value = true
+        throw e
+    }
 }
 
 fun exportProjectFileBackground(project: Project, file: File) {
-    DataOutputStream(GZIPOutputStream(file.outputStream()).buffered()).use { stream ->
-        val currentState = project.currentState.value
-        val regionParameters = currentState.regionParameters.value
-        val regionGraph = currentState.regionGraph.value
-        val regionMask = currentState.regionMask.value
-        if (regionParameters != null && regionGraph != null && regionMask != null) {
-            stream.writeBoolean(true)
-            stream.writeRegionsHistoryItem(RegionsHistoryItem(regionParameters, regionGraph.seed, regionMask))
-        } else {
-            stream.writeBoolean(false)
-        }
-        val regionSplines = currentState.regionSplines.value
-        if (regionSplines != null) {
-            stream.writeBoolean(true)
-            stream.writeRegionSplines(regionSplines)
-        } else {
-            stream.writeBoolean(false)
-        }
-        val biomeParameters = currentState.biomeParameters.value
-        val biomeGraph = currentState.biomeGraph.value
-        val biomeMask = currentState.biomeMask.value
-        if (biomeParameters != null && biomeGraph != null && biomeMask != null) {
-            stream.writeBoolean(true)
-            stream.writeBiomesHistoryItem(BiomesHistoryItem(biomeParameters, biomeGraph.seed, biomeMask))
-        } else {
-            stream.writeBoolean(false)
-        }
-        stream.writeHistoryQueue(project.historyRegionsBackQueue) {
-            writeRegionsHistoryItem(it)
-        }
-        val regionsCurrentValue = project.historyRegionsCurrent.value
-        if (regionsCurrentValue == null) {
-            stream.writeBoolean(false)
-        } else {
-            stream.writeBoolean(true)
-            stream.writeRegionsHistoryItem(regionsCurrentValue)
-        }
-        stream.writeHistoryQueue(project.historyRegionsForwardQueue) {
-            writeRegionsHistoryItem(it)
-        }
-        stream.writeHistoryQueue(project.historySplinesBackQueue) {
-            writeRegionSplines(it)
-        }
-        val splinesCurrentValue = project.historySplinesCurrent.value
-        if (splinesCurrentValue == null) {
-            stream.writeBoolean(false)
-        } else {
-            stream.writeBoolean(true)
-            stream.writeRegionSplines(splinesCurrentValue)
-        }
-        stream.writeHistoryQueue(project.historySplinesForwardQueue) {
-            writeRegionSplines(it)
-        }
-        stream.writeHistoryQueue(project.historyBiomesBackQueue) {
-            writeBiomesHistoryItem(it)
+    val currentState = project.currentState.value
+    val sectionCache = project.sectionCache
+    val customBiomeData = buildCustomBiomeData(project.customBiomeProperties, project.customBiomes)
+    val sectionFutures = listOf(
+            executor.call {
+                compressSection(SECTION_STATE) {
+                    val regionParameters = currentState.regionParameters.value
+                    val regionGraph = currentState.regionGraph.value
+                    val regionMask = currentState.regionMask.value
+                    if (regionParameters != null && regionGraph != null && regionMask != null) {
+                        writeBoolean(true)
+                        writeRegionsHistoryItem(RegionsHistoryItem(regionParameters, regionGraph.seed, regionMask))
+                    } else {
+                        writeBoolean(false)
+                    }
+                    val regionSplines = currentState.regionSplines.value
+                    if (regionSplines != null) {
+                        writeBoolean(true)
+                        writeRegionSplines(regionSplines)
+                    } else {
+                        writeBoolean(false)
+                    }
+                    val biomeParameters = currentState.biomeParameters.value
+                    val biomeGraph = currentState.biomeGraph.value
+                    val biomeMask = currentState.biomeMask.value
+                    if (biomeParameters != null && biomeGraph != null && biomeMask != null) {
+                        writeBoolean(true)
+                        writeBiomesHistoryItem(BiomesHistoryItem(biomeParameters, biomeGraph.seed, biomeMask))
+                    } else {
+                        writeBoolean(false)
+                    }
+                    writeHistoryQueueHeader(project.historyRegionsBackQueue.serializableHeader())
+                    val regionsCurrentValue = project.historyRegionsCurrent.value
+                    if (regionsCurrentValue == null) {
+                        writeBoolean(false)
+                    } else {
+                        writeBoolean(true)
+                        writeRegionsHistoryItem(regionsCurrentValue)
+                    }
+                    writeHistoryQueueHeader(project.historyRegionsForwardQueue.serializableHeader())
+                    writeHistoryQueueHeader(project.historySplinesBackQueue.serializableHeader())
+                    val splinesCurrentValue = project.historySplinesCurrent.value
+                    if (splinesCurrentValue == null) {
+                        writeBoolean(false)
+                    } else {
+                        writeBoolean(true)
+                        writeRegionSplines(splinesCurrentValue)
+                    }
+                    writeHistoryQueueHeader(project.historySplinesForwardQueue.serializableHeader())
+                    writeHistoryQueueHeader(project.historyBiomesBackQueue.serializableHeader())
+                    val biomesCurrentValue = project.historyBiomesCurrent.value
+                    if (biomesCurrentValue == null) {
+                        writeBoolean(false)
+                    } else {
+                        writeBoolean(true)
+                        writeBiomesHistoryItem(biomesCurrentValue)
+                    }
+                    writeHistoryQueueHeader(project.historyBiomesForwardQueue.serializableHeader())
+                }
+            },
+            executor.call { historySection(sectionCache, SECTION_REGIONS_BACK, project.historyRegionsBackQueue) { writeRegionsHistoryItem(it) } },
+            executor.call { historySection(sectionCache, SECTION_REGIONS_FORWARD, project.historyRegionsForwardQueue) { writeRegionsHistoryItem(it) } },
+            executor.call { historySection(sectionCache, SECTION_SPLINES_BACK, project.historySplinesBackQueue) { writeRegionSplines(it) } },
+            executor.call { historySection(sectionCache, SECTION_SPLINES_FORWARD, project.historySplinesForwardQueue) { writeRegionSplines(it) } },
+            executor.call { historySection(sectionCache, SECTION_BIOMES_BACK, project.historyBiomesBackQueue) { writeBiomesHistoryItem(it) } },
+            executor.call { historySection(sectionCache, SECTION_BIOMES_FORWARD, project.historyBiomesForwardQueue) { writeBiomesHistoryItem(it) } },
+            executor.call { compressSection(SECTION_CUSTOM_BIOMES) { writeCustomBiomeData(customBiomeData) } })
+    writeProjectSections(file, sectionFutures.map { it.value })
+}
+
+private fun <T> historySection(sectionCache: ProjectSectionCache, id: Int, queue: HistoryQueue<T>, serializer: DataOutputStream.(T) -> Unit): ProjectSection {
+    val revision = queue.revision
+    val cached = sectionCache[id, revision]
+    if (cached != null) {
+        return cached
+    }
+    val section = compressSection(id) {
+        writeHistoryQueueBuffer(queue.serializableData().first, serializer)
+    }
+    sectionCache[id, revision] = section
+    return section
+}
+
+private fun compressSection(id: Int, writer: DataOutputStream.() -> Unit): ProjectSection {
+    val compressed = ByteArrayOutputStream()
+    val stream = DataOutputStream(DeflaterOutputStream(compressed).buffered())
+    stream.use { it.writer() }
+    return ProjectSection(id, stream.size(), compressed.toByteArray())
+}
+
+private fun writeProjectSections(file: File, sections: List<ProjectSection>) {
+    DataOutputStream(file.outputStream().buffered()).use { stream ->
+        stream.writeInt(PROJECT_FILE_MAGIC)
+        stream.writeInt(PROJECT_FILE_VERSION)
+        stream.writeInt(sections.size)
+        var offset = 12 + sections.size * 16
+        sections.forEach {
+            stream.writeInt(it.id)
+            stream.writeInt(offset)
+            stream.writeInt(it.data.size)
+            stream.writeInt(it.rawSize)
+            offset += it.data.size
         }
-        val biomesCurrentValue = project.historyBiomesCurrent.value
-        if (biomesCurrentValue == null) {
-            stream.writeBoolean(false)
-        } else {
-            stream.writeBoolean(true)
-            stream.writeBiomesHistoryItem(biomesCurrentValue)
+        sections.forEach {
+            stream.write(it.data)
         }
-        stream.writeHistoryQueue(project.historyBiomesForwardQueue) {
-            writeBiomesHistoryItem(it)
+    }
+}
+
+private fun readProjectSections(file: File): Map<Int, ProjectSection>? {
+    val data = file.readBytes()
+    val header = ByteBuffer.wrap(data)
+    if (data.size < 12 || header.getInt(0) != PROJECT_FILE_MAGIC) {
+        return null
+    }
+    val version = header.getInt(4)
+    if (version > PROJECT_FILE_VERSION) {
+        throw IOException("Unsupported project file version: $version")
+    }
+    val sectionCount = header.getInt(8)
+    val sections = LinkedHashMap<Int, ProjectSection>(sectionCount)
+    for (i in 0 until sectionCount) {
+        val entry = 12 + i * 16
+        val id = header.getInt(entry)
+        val offset = header.getInt(entry + 4)
+        val length = header.getInt(entry + 8)
+        val rawSize = header.getInt(entry + 12)
+        if (offset < 0 || length < 0 || offset + length > data.size) {
+            throw IOException("Corrupt project file section: $id")
         }
-        stream.writeCustomBiomeData(buildCustomBiomeData(project.customBiomeProperties, project.customBiomes))
+        sections[id] = ProjectSection(id, rawSize, data.copyOfRange(offset, offset + length))
     }
+    return sections
+}
+
+private fun Map<Int, ProjectSection>.requireSection(id: Int): ProjectSection {
+    return this[id] ?: throw IOException("Missing project file section: $id")
 }
 
 fun importRegionsFile(dialogLayer: Block, preferences: Preferences, ui: UserInterface): RegionsHistoryItem? {
@@ -312,13 +480,16 @@ private fun DataInputStream.readCustomBiomeData(): CustomBiomeData {
     return CustomBiomeData.deserialize(this)
 }
 
-private fun <T> DataOutputStream.writeHistoryQueue(queue: HistoryQueue<T>, serializer: DataOutputStream.(T) -> Unit) {
-    val (buffer, head, tail, size, limit) = queue.serializableData()
+private fun DataOutputStream.writeHistoryQueueHeader(header: Quintuple<Int, Int, Int, Int, Int>) {
+    val (head, tail, size, limit, bufferSize) = header
     writeInt(head)
     writeInt(tail)
     writeInt(size)
     writeInt(limit)
-    writeInt(buffer.size)
+    writeInt(bufferSize)
+}
+
+private fun <T> DataOutputStream.writeHistoryQueueBuffer(buffer: List<T?>, serializer: DataOutputStream.(T) -> Unit) {
     buffer.forEach {
         if (it == null) {
             writeBoolean(false)
@@ -329,12 +500,19 @@ private fun <T> DataOutputStream.writeHistoryQueue(queue: HistoryQueue<T>, seria
     }
 }
 
-private fun <T> DataInputStream.readHistoryQueue(deserializer: DataInputStream.() -> T): HistoryQueue<T> {
+private fun <T> DataInputStream.readDeferredHistoryQueue(section: ProjectSection, deserializer: DataInputStream.() -> T): HistoryQueue<T> {
     val head = readInt()
     val tail = readInt()
     val size = readInt()
     val limit = readInt()
     val bufferSize = readInt()
+    val buffer by lazy {
+        section.read { readHistoryQueueBuffer(bufferSize, deserializer) }
+    }
+    return HistoryQueue.deferred(head, tail, size, limit, bufferSize) { buffer }
+}
+
+private fun <T> DataInputStream.readHistoryQueueBuffer(bufferSize: Int, deserializer: DataInputStream.() -> T): List<T?> {
     val buffer = ArrayList<T?>(bufferSize)
     for (i in 1..bufferSize) {
         if(readBoolean()) {
@@ -343,7 +521,16 @@ private fun <T> DataInputStream.readHistoryQueue(deserializer: DataInputStream.(
             buffer.add(null)
         }
     }
-    return HistoryQueue.deserialize(buffer, head, tail, size, limit)
+    return buffer
+}
+
+private fun <T> DataInputStream.readHistoryQueue(deserializer: DataInputStream.() -> T): HistoryQueue<T> {
+    val head = readInt()
+    val tail = readInt()
+    val size = readInt()
+    val limit = readInt()
+    val bufferSize = readInt()
+    return HistoryQueue.deserialize(readHistoryQueueBuffer(bufferSize, deserializer), head, tail, size, limit)
 }
 
 private fun DataOutputStream.writeRegionsHistoryItem(regions: RegionsHistoryItem) {
@@ -2,6 +2,7 @@ package com.grimfox.gec
 
 import com.grimfox.gec.ui.*
 import com.grimfox.gec.ui.widgets.*
+import com.grimfox.gec.ui.widgets.TextureBuilder.TextureId
 import com.grimfox.gec.util.*
 import com.grimfox.gec.util.BuildContinent.generateWaterFlows
 import com.grimfox.gec.util.Rendering.renderRegions
@@ -310,6 +311,15 @@ private fun Block.addBuildButton(dialogLayer: Block, level: Int) {
                     val canceled = ref(false)
                     cancelCurrentRunningTask.value = canceled
                     try {
+                        val mapScaleMeters = mapScaleToLinearDistanceMeters(currentMapScale)
+                        fun showHeightmap(textures: Triple<TextureId?, TextureId?, TextureId?>) {
+                            meshViewport.setHeightmap(textures, VIEWPORT_HEIGHTMAP_SIZE)
+                            heightRangeMeters.value = mapScaleToHeightRangeMeters(currentMapScale)
+                            heightMapScaleFactor.value = linearDistanceMetersToViewportScaleFactor(mapScaleMeters, heightRangeMeters.value)
+                            waterShaderParams.level.value = linearDistanceMetersToRenderScale(linearDistanceMetersToWaterLevelMeters(mapScaleMeters), heightRangeMeters.value)
+                            imageMode.value = 3
+                            displayMode.value = DisplayMode.MESH
+                        }
                         val (heightMapTexId, riverMapTexId, normalAoTexId) = generateWaterFlows(
                                 parameterSet = currentParameters,
                                 regionSplines = currentRegionSplines,
@@ -328,17 +338,12 @@ private fun Block.addBuildButton(dialogLayer: Block, level: Int) {
                                 canceled = canceled,
                                 biomeTemplates = BIOME_TEMPLATES_REF.value!!,
                                 renderLevel = level,
-                                colorHeightScaleFactor = colorHeightScaleFactor)
-                        meshViewport.setHeightmap(Triple(heightMapTexId, riverMapTexId, normalAoTexId), VIEWPORT_HEIGHTMAP_SIZE)
+                                colorHeightScaleFactor = colorHeightScaleFactor,
+                                onLevelReady = { showHeightmap(it) })
+                        showHeightmap(Triple(heightMapTexId, riverMapTexId, normalAoTexId))
                         currentState.heightMapTexture.value = heightMapTexId
                         currentState.normalAoMapTexture.value = normalAoTexId
                         currentState.riverMapTexture.value = riverMapTexId
-                        val mapScaleMeters = mapScaleToLinearDistanceMeters(currentMapScale)
-                        heightRangeMeters.value = mapScaleToHeightRangeMeters(currentMapScale)
-                        heightMapScaleFactor.value = linearDistanceMetersToViewportScaleFactor(mapScaleMeters, heightRangeMeters.value)
-                        waterShaderParams.level.value = linearDistanceMetersToRenderScale(linearDistanceMetersToWaterLevelMeters(mapScaleMeters), heightRangeMeters.value)
-                        imageMode.value = 3
-                        displayMode.value = DisplayMode.MESH
                     } catch (w: Exception) {
                         if (!causedByCancellation(w)) {
                             throw w
@@ -157,11 +157,29 @@ object MainUi {
                     dialogDropdownLayer = block {
                         isFallThrough = true
                     }
+                    metricsOverlayBlock = block {
+                        hAlign = RIGHT
+                        vAlign = BOTTOM
+                        hSizing = STATIC
+                        vSizing = SHRINK
+                        width = 360.0f
+                        padRight = MEDIUM_SPACER_SIZE
+                        padBottom = MEDIUM_SPACER_SIZE
+                        shape = SHAPE_MENU_BACKGROUND
+                        text = metricsOverlayText
+                        isFallThrough = true
+                        isVisible = false
+                    }
                     mouseOverlayLayer = block {
                         isFallThrough = true
                     }
                 }
                 rootRef.value = root
+                Metrics.addReportListener { report ->
+                    doOnMainThread {
+                        metricsOverlayReference.value = report.summary()
+                    }
+                }
                 dialogLayer {
                     overwriteWarningDialog = dialog(400.0f, 160.0f, overwriteWarningText, BLOCK_GLYPH_WARNING(60.0f)) {
                         button(text("Yes"), DIALOG_BUTTON_STYLE) {
@@ -574,6 +592,14 @@ object MainUi {
                                     task { openPreferences() }
                                     true
                                 }
+                                GLFW.GLFW_KEY_M -> {
+                                    if (shift) {
+                                        metricsOverlayBlock.isVisible = !metricsOverlayBlock.isVisible
+                                        true
+                                    } else {
+                                        false
+                                    }
+                                }
                                 GLFW.GLFW_KEY_F1 -> {
                                     task { openHelp(errorHandler) }
                                     false
@@ -41,25 +41,20 @@ class CurrentState(
         val normalAoMapTexture: ObservableMutableReference<TextureId?> = ref(null),
         val riverMapTexture: ObservableMutableReference<TextureId?> = ref(null)) {
 
-    fun copy(): CurrentState {
+    fun copy(copyMasks: Boolean = false): CurrentState {
         return CurrentState(
                 ref(regionParameters.value?.copy()),
                 ref(regionGraph.value),
-                copyMatrixRef(regionMask),
+                ref(copyMask(regionMask.value, copyMasks)),
                 ref(regionSplines.value),
                 ref(biomeParameters.value?.copy()),
                 ref(biomeGraph.value),
-                copyMatrixRef(biomeMask)
+                ref(copyMask(biomeMask.value, copyMasks))
         )
     }
 
-    private fun copyMatrixRef(inputMatrixRef: ObservableMutableReference<ByteArrayMatrix?>): ObservableMutableReference<ByteArrayMatrix?> {
-        val inputMatrixVal = inputMatrixRef.value
-        return if (inputMatrixVal != null) {
-            ref(ByteArrayMatrix(inputMatrixVal.width, Arrays.copyOf(inputMatrixVal.array, inputMatrixVal.array.size)))
-        } else {
-            ref(null)
-        }
+    private fun copyMask(mask: ByteArrayMatrix?, deep: Boolean): ByteArrayMatrix? {
+        return if (deep && mask != null) ByteArrayMatrix(mask.width, mask.array.copyOf()) else mask
     }
 }
 
@@ -78,7 +73,8 @@ data class Project(
         val historyBiomesForwardQueue: HistoryQueue<BiomesHistoryItem> = HistoryQueue(1000),
         val customBiomeProperties: CustomBiomeProperties = CustomBiomeProperties(),
         val customBiomes: ObservableMutableList<Pair<NewBiomeData, Block>> = ObservableMutableList(ArrayList()),
-        var customBiomeDataForImport: CustomBiomeData? = null) {
+        var customBiomeDataForImport: CustomBiomeData? = null,
+        val sectionCache: ProjectSectionCache = ProjectSectionCache()) {
 
     private val valueModifiedListener: (Any?, Any?) -> Unit = { old, new ->
         if (old != new) {
@@ -111,22 +107,23 @@ data class Project(
         customBiomes.addListener(queueModifiedListener)
     }
 
-    fun copy(): Project {
+    fun snapshot(copyMasks: Boolean = false): Project {
         return Project(
                 file = file,
                 isModifiedSinceSave = ref(isModifiedSinceSave.value),
-                currentState = ref(currentState.value.copy()),
+                currentState = ref(currentState.value.copy(copyMasks)),
                 historyRegionsBackQueue = historyRegionsBackQueue.copy(),
-                historyRegionsCurrent = ref(historyRegionsCurrent.value?.copy()),
+                historyRegionsCurrent = ref(historyRegionsCurrent.value),
                 historyRegionsForwardQueue = historyRegionsForwardQueue.copy(),
                 historySplinesBackQueue = historySplinesBackQueue.copy(),
-                historySplinesCurrent = ref(historySplinesCurrent.value?.copy()),
+                historySplinesCurrent = ref(historySplinesCurrent.value),
                 historySplinesForwardQueue = historySplinesForwardQueue.copy(),
                 historyBiomesBackQueue = historyBiomesBackQueue.copy(),
-                historyBiomesCurrent = ref(historyBiomesCurrent.value?.copy()),
+                historyBiomesCurrent = ref(historyBiomesCurrent.value),
                 historyBiomesForwardQueue = historyBiomesForwardQueue.copy(),
                 customBiomeProperties = customBiomeProperties.copy(),
-                customBiomes = ObservableMutableList(ArrayList(customBiomes)))
+                customBiomes = ObservableMutableList(ArrayList(customBiomes)),
+                sectionCache = sectionCache)
     }
 }
 
@@ -373,7 +370,8 @@ fun autosave(project: Project?, dialogLayer: Block, overwriteWarningReference: M
         val nextAutosave = (preferences.windowState?.autoSaveIndex ?: 0) % 10
         preferences.windowState?.autoSaveIndex = nextAutosave + 1
         val file = File(folder, "autosave-$nextAutosave.wkp")
-        exportProjectFileBackground(project.copy(), file)
+        // autosave does not leave edit mode, so the live masks may be under a brush stroke
+        exportProjectFileBackground(project.snapshot(copyMasks = true), file)
         doOnMainThread {
             addAutosaveToRecentAutosaves(file, dialogLayer, overwriteWarningReference, overwriteWarningDialog, dialogCallback, ui, errorHandler)
         }
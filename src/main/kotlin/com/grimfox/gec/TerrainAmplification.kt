@@ -1,11 +1,15 @@
 package com.grimfox.gec
 
 import com.grimfox.gec.model.*
+import com.grimfox.gec.util.Metrics
+import com.grimfox.gec.util.Reference
 import com.grimfox.gec.util.clamp
+import com.grimfox.logging.LOG
 import kotlinx.coroutines.*
 import java.awt.image.BufferedImage
 import java.io.*
 import java.lang.Math.*
+import java.util.concurrent.CancellationException
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
 import java.util.zip.*
@@ -64,29 +68,36 @@ object TerrainAmplification {
         writeOutput(output, outputTerrainFile.parentFile, outputTerrainFile.name, input.columns * factor,input.rows * factor, maskSize * factor, min, scale)
     }
 
-    private inline fun <T> time(operation: String, block: () -> T): T {
+    private inline fun <T> time(metrics: Metrics.Registry, operation: String, block: () -> T): T {
         val start = System.nanoTime()
-        val result = block()
+        val result = metrics.time("amplification.$operation", block)
         val stop = System.nanoTime()
-        println("$operation: ${((stop - start)/1000000)/1000.0f}s")
+        LOG.debug { "$operation: ${((stop - start)/1000000)/1000.0f}s" }
         return result
     }
 
-    fun amplify(factor :Int, input: RcMatrix, inputIndexMask: IntArray, maskSize: Int, offset: Int, dictionaries: List<Pair<RcMatrix, RcMatrix>>): Triple<RcMatrix, Float, Float> {
-        val dilated = time("dilateTerrain") { dilateTerrain(input, maskSize * 2) }
-        val mask = time("buildMask") { buildMask(maskSize) }
+    fun amplify(factor :Int, input: RcMatrix, inputIndexMask: IntArray, maskSize: Int, offset: Int, dictionaries: List<Pair<RcMatrix, RcMatrix>>, canceled: Reference<Boolean>? = null, metrics: Metrics.Registry = Metrics.global): Triple<RcMatrix, Float, Float> {
+        val dilated = time(metrics, "dilateTerrain") { dilateTerrain(input, maskSize * 2) }
+        val mask = time(metrics, "buildMask") { buildMask(maskSize) }
         val maskSizeHigh = maskSize * factor
-        val maskHigh = time("buildMaskHigh") { buildMask(maskSizeHigh) }
+        val maskHigh = time(metrics, "buildMaskHigh") { buildMask(maskSizeHigh) }
         val offsetSynthesisHigh = offset * factor
-        val divisorMask = time("buildDivisorMask") { buildDivisorMask(maskHigh, offsetSynthesisHigh) }
-        val usefulIndices = time("buildMaskUsefulIndices") { buildMaskUsefulIndices(mask) }
+        val divisorMask = time(metrics, "buildDivisorMask") { buildDivisorMask(maskHigh, offsetSynthesisHigh) }
+        val usefulIndices = time(metrics, "buildMaskUsefulIndices") { buildMaskUsefulIndices(mask) }
 
-        val (coefficients, means) = time("optimization") {
-             optimizeTerrainWithDictionary(dictionaries.map { it.first }, inputIndexMask, maskSize, mask, offset, dilated, usefulIndices)
+        val (coefficients, means) = time(metrics, "optimization") {
+             optimizeTerrainWithDictionary(dictionaries.map { it.first }, inputIndexMask, maskSize, mask, offset, dilated, usefulIndices, canceled)
         }
+        checkCanceled(canceled)
 
-        return time("synthesis") {
-            synthesize(dilated, maskSize, offset, coefficients, dictionaries.map { it.second }, inputIndexMask, input, factor, maskSizeHigh, offsetSynthesisHigh, means, maskHigh, divisorMask)
+        return time(metrics, "synthesis") {
+            synthesize(dilated, maskSize, offset, coefficients, dictionaries.map { it.second }, inputIndexMask, input, factor, maskSizeHigh, offsetSynthesisHigh, means, maskHigh, divisorMask, canceled)
+        }
+    }
+
+    private fun checkCanceled(canceled: Reference<Boolean>?) {
+        if (canceled?.value == true) {
+            throw CancellationException()
         }
     }
 
@@ -122,7 +133,7 @@ object TerrainAmplification {
         return Triple(maskSize, offset, dictionaries)
     }
 
-    private fun synthesize(dilated: RcMatrix, maskSize: Int, offsetSynthesis: Int, coefficients: Coefficients, dictionaries: List<RcMatrix>, inputIndexMask: IntArray, inputTerrain: RcMatrix, factor: Int, maskSizeHigh: Int, offsetSynthesisHigh: Int, means: RcMatrix, maskHigh: RcMatrix, divisorMask: RcMatrix): Triple<RcMatrix, Float, Float> {
+    private fun synthesize(dilated: RcMatrix, maskSize: Int, offsetSynthesis: Int, coefficients: Coefficients, dictionaries: List<RcMatrix>, inputIndexMask: IntArray, inputTerrain: RcMatrix, factor: Int, maskSizeHigh: Int, offsetSynthesisHigh: Int, means: RcMatrix, maskHigh: RcMatrix, divisorMask: RcMatrix, canceled: Reference<Boolean>?): Triple<RcMatrix, Float, Float> {
         val d1 = (dilated.rows - maskSize) / offsetSynthesis
         val d2 = (dilated.columns - maskSize) / offsetSynthesis
         val synthesized = RcMatrix(inputTerrain.rows * factor + 2 * maskSizeHigh, inputTerrain.columns * factor + 2 * maskSizeHigh)
@@ -132,6 +143,9 @@ object TerrainAmplification {
         (0 until d1).toList().parallelStream().map { i ->
             var minLocal = Float.MAX_VALUE
             var maxLocal = -Float.MAX_VALUE
+            if (canceled?.value == true) {
+                return@map minLocal to maxLocal
+            }
             doWithLocks(locks[i], locks[i+1], 5) {
                 val id2 = i * d2
                 val iRange = i * offsetSynthesisHigh until i * offsetSynthesisHigh + maskSizeHigh
@@ -169,6 +183,7 @@ object TerrainAmplification {
                 max = localMax
             }
         }
+        checkCanceled(canceled)
         return Triple(synthesized, min, 65535.0f / (max - min))
     }
 
@@ -225,12 +240,13 @@ object TerrainAmplification {
         }
     }
 
-    private fun optimizeTerrainWithDictionary(dictionaries: List<RcMatrix>, inputIndexMask: IntArray, maskSize: Int, mask: RcMatrix, offset: Int, synthesized: RcMatrix, usefulIndices: IntArray): Pair<Coefficients, RcMatrix> {
+    private fun optimizeTerrainWithDictionary(dictionaries: List<RcMatrix>, inputIndexMask: IntArray, maskSize: Int, mask: RcMatrix, offset: Int, synthesized: RcMatrix, usefulIndices: IntArray, canceled: Reference<Boolean>?): Pair<Coefficients, RcMatrix> {
         val dictionaryHeight = (synthesized.rows - maskSize) / offset
         val dictionaryWidth = (synthesized.columns - maskSize) / offset
         val maskMeans = buildMeans(maskSize, offset, dictionaryHeight, dictionaryWidth, synthesized)
         val baseAtoms = buildAtoms(mask, offset, dictionaryHeight, dictionaryWidth, maskMeans, synthesized)
-        val coefficients = matching(dictionaries, inputIndexMask, baseAtoms, usefulIndices)
+        checkCanceled(canceled)
+        val coefficients = matching(dictionaries, inputIndexMask, baseAtoms, usefulIndices, canceled)
         return coefficients to maskMeans
     }
 
@@ -440,7 +456,7 @@ object TerrainAmplification {
         return gamma
     }
 
-    private fun matching(dictionaries: List<RcMatrix>, inputIndexMask: IntArray, atoms: RcMatrix, usefulIndices: IntArray): Coefficients {
+    private fun matching(dictionaries: List<RcMatrix>, inputIndexMask: IntArray, atoms: RcMatrix, usefulIndices: IntArray, canceled: Reference<Boolean>?): Coefficients {
         val gamma = Coefficients(atoms.columns, dictionaries.map { it.columns }.max()!!)
         val step = atoms.columns / 512
         val chunks = ArrayList<IntRange>()
@@ -449,13 +465,16 @@ object TerrainAmplification {
         }
 
         chunks.parallelStream().forEach {
-            for (signal in it) {
-                val (pos, max) = matTVecMaxAbs(dictionaries[inputIndexMask[signal]], atoms, signal, usefulIndices)
-                if (max >= 0.0000001f) {
-                    gamma[signal, pos] = max
+            if (canceled?.value != true) {
+                for (signal in it) {
+                    val (pos, max) = matTVecMaxAbs(dictionaries[inputIndexMask[signal]], atoms, signal, usefulIndices)
+                    if (max >= 0.0000001f) {
+                        gamma[signal, pos] = max
+                    }
                 }
             }
         }
+        checkCanceled(canceled)
         return gamma
     }
 
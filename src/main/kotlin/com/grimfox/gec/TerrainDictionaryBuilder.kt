@@ -4,13 +4,20 @@ import com.grimfox.gec.model.RcMatrix
 import com.grimfox.gec.model.RcMatrix.Companion.ALL
 import com.grimfox.gec.util.clamp
 import java.awt.image.BufferedImage
-import java.io.File
+import java.io.*
+import java.nio.file.Files
+import java.nio.ByteBuffer
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
 import java.util.*
+import java.util.stream.IntStream
 import javax.imageio.ImageIO
 import kotlin.math.*
 
 object TerrainDictionaryBuilder {
 
+    private const val SEARCH_BLOCK_SIZE = 128
+
     @JvmStatic
     fun main(vararg args: String) {
         if (args[0].equals("low", true)) {
@@ -21,7 +28,6 @@ object TerrainDictionaryBuilder {
     }
 
     private fun buildLow(exampleTerrainFile: File, exampleMaskFile: File, optimizationTerrainFile: File, optimizationTerrainMaskFile: File, outputFile: File, offsetAnalysis: Int, offsetOptimization: Int) {
-        val random = Random(0)
         val maskSize = 8
         val example4 = TerrainAmplification.imageToMatrix(ImageIO.read(exampleTerrainFile))
         val example2 = TerrainAmplification.downscaleImage(example4, 2)
@@ -45,19 +51,21 @@ object TerrainDictionaryBuilder {
             val (dictionary2) = buildDictionary(mask2, offsetAnalysis2, dictionaryHeight, dictionaryWidth, example2, null, atomsLow, keeps)
             val (dictionary4) = buildDictionary(mask4, offsetAnalysis4, dictionaryHeight, dictionaryWidth, example4, null, atomsLow, keeps)
             val optimizationDictionary = buildOptimizationSet(maskSize, mask, offsetOptimization, optimization, optimizationMask)
-            val dictionaryLowArrays = dictionaryLow.allColumns.map { dictionaryLow[ALL, it].array }
-            val optimizationDictionaryArrays = optimizationDictionary.allColumns.map { optimizationDictionary[ALL, it].array }
+            val dictionaryLowTransposed = dictionaryLow.asyncTranspose()
+            val dictionaryLowNorms = squaredRowNorms(dictionaryLowTransposed)
+            val optimizationDictionaryArrays = optimizationDictionary.allColumns.map { optimizationDictionary.column(it) }
+            val inputHash = checkpointHash(dictionaryLow, optimizationDictionary, usefulIndices)
 
             println("base dictionary size: ${dictionaryLow.columns}")
             println("optimization dictionary size: ${optimizationDictionary.columns}")
 
-            val optimized1 = time("optimize dictionary 1") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, randomSelect(random, dictionaryLow, 4096)) }
-            val optimized2 = time("optimize dictionary 2") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, stronglyUniqueSelect(random, dictionaryLow, optimized1, 2048)) }
-            val optimized3 = time("optimize dictionary 3") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, stronglyUniqueSelect(random, dictionaryLow, optimized2, 1024)) }
-//            val optimized4 = time("optimize dictionary 4") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, stronglyUniqueSelect(random, dictionaryLow, optimized3, 512)) }
-//            val optimized5 = time("optimize dictionary 5") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, stronglyUniqueSelect(random, dictionaryLow, optimized4, 256)) }
-//            val optimized6 = time("optimize dictionary 6") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, stronglyUniqueSelect(random, dictionaryLow, optimized5, 128)) }
-            val newDictionaries = dictionariesFromSelection(optimized3, dictionaryLow, dictionary2, dictionary4)
+            val optimized1 = time("optimize dictionary 1") { optimizeDictionary(1, inputHash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 1)) { randomSelect(it, dictionaryLow, 4096) } }
+            val optimized2 = time("optimize dictionary 2") { optimizeDictionary(2, optimized1.hash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 2)) { stronglyUniqueSelect(it, dictionaryLow, optimized1.indices, 2048) } }
+            val optimized3 = time("optimize dictionary 3") { optimizeDictionary(3, optimized2.hash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 3)) { stronglyUniqueSelect(it, dictionaryLow, optimized2.indices, 1024) } }
+//            val optimized4 = time("optimize dictionary 4") { optimizeDictionary(4, optimized3.hash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 4)) { stronglyUniqueSelect(it, dictionaryLow, optimized3.indices, 512) } }
+//            val optimized5 = time("optimize dictionary 5") { optimizeDictionary(5, optimized4.hash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 5)) { stronglyUniqueSelect(it, dictionaryLow, optimized4.indices, 256) } }
+//            val optimized6 = time("optimize dictionary 6") { optimizeDictionary(6, optimized5.hash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 6)) { stronglyUniqueSelect(it, dictionaryLow, optimized5.indices, 128) } }
+            val newDictionaries = dictionariesFromSelection(optimized3.indices, dictionaryLow, dictionary2, dictionary4)
             for (i in 1 until newDictionaries.size) {
                 newDictionaries[i] = newDictionaries[i].asyncTranspose()
             }
@@ -67,10 +75,10 @@ object TerrainDictionaryBuilder {
         writeDictionary(dictionaries[2].asyncTranspose(), outputFile.parentFile, "visual-dictionary.png")
 
         TerrainAmplificationDictionary(maskSize, maskSize / 2, dictionaries[0], dictionaries[1], dictionaries[2]).write(outputFile)
+        (1..6).forEach { checkpointFile(outputFile, it).delete() }
     }
 
     private fun buildHigh(exampleTerrainFile: File, exampleMaskFile: File, optimizationTerrainFile: File, optimizationTerrainMaskFile: File, outputFile: File, offsetAnalysis: Int, offsetOptimization: Int) {
-        val random = Random(0)
         val maskSize = 16
         val example8 = TerrainAmplification.imageToMatrix(ImageIO.read(exampleTerrainFile))
         val example4 = TerrainAmplification.downscaleImage(example8, 2)
@@ -98,18 +106,20 @@ object TerrainDictionaryBuilder {
             val (dictionary4) = buildDictionary(mask4, offsetAnalysis4, dictionaryHeight, dictionaryWidth, example4, null, atomsLow, keeps)
             val (dictionary8) = buildDictionary(mask8, offsetAnalysis8, dictionaryHeight, dictionaryWidth, example8, null, atomsLow, keeps)
             val optimizationDictionary = buildOptimizationSet(maskSize, mask, offsetOptimization, optimization, optimizationMask)
-            val dictionaryLowArrays = dictionaryLow.allColumns.map { dictionaryLow[ALL, it].array }
-            val optimizationDictionaryArrays = optimizationDictionary.allColumns.map { optimizationDictionary[ALL, it].array }
+            val dictionaryLowTransposed = dictionaryLow.asyncTranspose()
+            val dictionaryLowNorms = squaredRowNorms(dictionaryLowTransposed)
+            val optimizationDictionaryArrays = optimizationDictionary.allColumns.map { optimizationDictionary.column(it) }
+            val inputHash = checkpointHash(dictionaryLow, optimizationDictionary, usefulIndices)
 
             println("base dictionary size: ${dictionaryLow.columns}")
             println("optimization dictionary size: ${optimizationDictionary.columns}")
 
-            val optimized1 = time("optimize dictionary 1") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, randomSelect(random, dictionaryLow, 4096)) }
-            val optimized2 = time("optimize dictionary 2") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, stronglyUniqueSelect(random, dictionaryLow, optimized1, 2048)) }
-//            val optimized3 = time("optimize dictionary 3") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, stronglyUniqueSelect(random, dictionaryLow, optimized2, 1024)) }
-//            val optimized4 = time("optimize dictionary 4") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, stronglyUniqueSelect(random, dictionaryLow, optimized3, 512)) }
-//            val optimized5 = time("optimize dictionary 5") { optimizeDictionary(random, dictionaryLow, dictionaryLowArrays, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, stronglyUniqueSelect(random, dictionaryLow, optimized4, 256)) }
-            val newDictionaries = dictionariesFromSelection(optimized2, dictionaryLow, dictionary2, dictionary4, dictionary8)
+            val optimized1 = time("optimize dictionary 1") { optimizeDictionary(1, inputHash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 1)) { randomSelect(it, dictionaryLow, 4096) } }
+            val optimized2 = time("optimize dictionary 2") { optimizeDictionary(2, optimized1.hash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 2)) { stronglyUniqueSelect(it, dictionaryLow, optimized1.indices, 2048) } }
+//            val optimized3 = time("optimize dictionary 3") { optimizeDictionary(3, optimized2.hash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 3)) { stronglyUniqueSelect(it, dictionaryLow, optimized2.indices, 1024) } }
+//            val optimized4 = time("optimize dictionary 4") { optimizeDictionary(4, optimized3.hash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 4)) { stronglyUniqueSelect(it, dictionaryLow, optimized3.indices, 512) } }
+//            val optimized5 = time("optimize dictionary 5") { optimizeDictionary(5, optimized4.hash, dictionaryLow, dictionaryLowTransposed, dictionaryLowNorms, optimizationDictionary, optimizationDictionaryArrays, usefulIndices, 50, checkpointFile(outputFile, 5)) { stronglyUniqueSelect(it, dictionaryLow, optimized4.indices, 256) } }
+            val newDictionaries = dictionariesFromSelection(optimized2.indices, dictionaryLow, dictionary2, dictionary4, dictionary8)
             for (i in 1 until newDictionaries.size) {
                 newDictionaries[i] = newDictionaries[i].asyncTranspose()
             }
@@ -119,73 +129,107 @@ object TerrainDictionaryBuilder {
         writeDictionary(dictionaries[3].asyncTranspose(), outputFile.parentFile, "visual-dictionary.png")
 
         TerrainAmplificationDictionary(maskSize, 6, dictionaries[0], dictionaries[1], dictionaries[2], dictionaries[3]).write(outputFile)
+        (1..6).forEach { checkpointFile(outputFile, it).delete() }
     }
 
-    private fun optimizeDictionary(random: Random, dictionaryLow: RcMatrix, dictionaryLowArrays: List<FloatArray>, optimizationDictionary: RcMatrix, optimizationDictionaryArrays: List<FloatArray>, usefulIndices: IntArray, maxIterations: Int, indices: IntArray): IntArray {
-        if (indices.size >= dictionaryLow.columns) {
-            return indices
+    private class OptimizedSelection(val indices: IntArray, val hash: ByteArray)
+
+    private fun optimizeDictionary(stage: Int, parentHash: ByteArray, dictionaryLow: RcMatrix, dictionaryLowTransposed: RcMatrix, dictionaryLowNorms: DoubleArray, optimizationDictionary: RcMatrix, optimizationDictionaryArrays: List<FloatArray>, usefulIndices: IntArray, maxIterations: Int, checkpointFile: File, initialSelection: (Random) -> IntArray): OptimizedSelection {
+        val stageHash = stageHash(parentHash, stage, maxIterations)
+        val (startIteration, indices) = readCheckpoint(checkpointFile, stageHash) ?: (0 to initialSelection(stageRandom(stage, 0)))
+        if (indices.size >= dictionaryLow.columns || startIteration >= maxIterations) {
+            return OptimizedSelection(indices, stageHash)
+        }
+        val atomSize = dictionaryLow.rows
+        val selectedDictionary = RcMatrix(atomSize, indices.size)
+        val signalSumsArray = DoubleArray(atomSize * SEARCH_BLOCK_SIZE)
+        val errorTermsArray = DoubleArray(dictionaryLow.columns * SEARCH_BLOCK_SIZE)
+        val signalCounts = IntArray(SEARCH_BLOCK_SIZE)
+        val signalNorms = DoubleArray(SEARCH_BLOCK_SIZE)
+        val optimizationNorms = DoubleArray(optimizationDictionaryArrays.size) { i ->
+            val xAtom = optimizationDictionaryArrays[i]
+            var sum = 0.0
+            for (t in 0 until xAtom.size) {
+                sum += xAtom[t].toDouble() * xAtom[t]
+            }
+            sum
         }
-        val chunkedColumnIndices = dictionaryLow.allColumns.toList().chunked(max(1, dictionaryLow.columns / 16))
         var cache = HashMap<Int, Set<Int>>()
         var nextCache = HashMap<Int, Set<Int>>()
-        for (iteration in 0 until maxIterations) {
+        for (iteration in startIteration until maxIterations) {
+            val random = stageRandom(stage, iteration + 1)
             val temp = cache
             cache = nextCache
             nextCache = temp
             nextCache.clear()
-            val coefficients = TerrainAmplification.matching(dictionaryFromSelection(dictionaryLow, indices), optimizationDictionary, usefulIndices)
-            val takenIndices = HashSet<Int>(indices.size)
+            dictionaryFromSelection(dictionaryLow, indices, selectedDictionary)
+            val coefficients = TerrainAmplification.matching(selectedDictionary, optimizationDictionary, usefulIndices)
+            val reverseIndex = coefficients.reverseIndex
+            val takenIndices = BooleanArray(dictionaryLow.columns)
             val unusedDIndices = ArrayList<Int>()
             var hasChanges = false
-            coefficients.reverseIndex.forEachIndexed { dIndex, xIndices ->
-                if (xIndices.isEmpty()) {
-                    unusedDIndices.add(dIndex)
-                } else {
+            for (blockStart in 0 until indices.size step SEARCH_BLOCK_SIZE) {
+                val blockEnd = min(indices.size, blockStart + SEARCH_BLOCK_SIZE)
+                signalSumsArray.fill(0.0)
+                for (dIndex in blockStart until blockEnd) {
+                    val b = dIndex - blockStart
+                    val xIndices = reverseIndex[dIndex]
+                    signalCounts[b] = xIndices.size
+                    var norms = 0.0
+                    xIndices.forEach { xIndex ->
+                        val xAtom = optimizationDictionaryArrays[xIndex]
+                        for (t in 0 until atomSize) {
+                            signalSumsArray[t * SEARCH_BLOCK_SIZE + b] += xAtom[t]
+                        }
+                        norms += optimizationNorms[xIndex]
+                    }
+                    signalNorms[b] = norms
+                }
+                crossTerms(dictionaryLowTransposed, signalSumsArray, errorTermsArray)
+                for (dIndex in blockStart until blockEnd) {
+                    val b = dIndex - blockStart
+                    val xIndices = reverseIndex[dIndex]
+                    if (xIndices.isEmpty()) {
+                        unusedDIndices.add(dIndex)
+                        continue
+                    }
                     val key = indices[dIndex]
                     val check = cache[key]
-                    if (check != null && !takenIndices.contains(key) && check == HashSet<Int>(xIndices)) {
+                    if (check != null && !takenIndices[key] && check == HashSet<Int>(xIndices)) {
                         nextCache[key] = check
-                        takenIndices.add(key)
-                    } else {
-                        val xAtoms = xIndices.map { xIndex ->
-                            optimizationDictionaryArrays[xIndex]
-                        }
-                        var bestIndex = indices[dIndex]
-                        var bestPsnr = -Float.MAX_VALUE
-                        chunkedColumnIndices.parallelStream().map { chunk ->
-                            var localBestIndex = indices[dIndex]
-                            var localBestPsnr = -Float.MAX_VALUE
-                            chunk.forEach { newDIndex ->
-                                if (!takenIndices.contains(newDIndex)) {
-                                    val currentPsnr = psnr(dictionaryLowArrays[newDIndex], xAtoms)
-                                    if (currentPsnr > localBestPsnr) {
-                                        localBestPsnr = currentPsnr
-                                        localBestIndex = newDIndex
-                                    }
-                                }
-                            }
-                            localBestIndex to localBestPsnr
-                        }.forEach { (currentIndex, currentPsnr) ->
+                        takenIndices[key] = true
+                        continue
+                    }
+                    val xCount = signalCounts[b].toDouble()
+                    val xNorms = signalNorms[b]
+                    val divisor = xCount * atomSize
+                    var bestIndex = indices[dIndex]
+                    var bestPsnr = -Double.MAX_VALUE
+                    for (newDIndex in 0 until dictionaryLow.columns) {
+                        if (!takenIndices[newDIndex]) {
+                            val error = xCount * dictionaryLowNorms[newDIndex] - 2.0 * errorTermsArray[newDIndex * SEARCH_BLOCK_SIZE + b] + xNorms
+                            val mse = error / divisor
+                            val currentPsnr = if (mse < 0.0000001) Double.MAX_VALUE else 1.0 / mse
                             if (currentPsnr > bestPsnr) {
                                 bestPsnr = currentPsnr
-                                bestIndex = currentIndex
+                                bestIndex = newDIndex
                             }
                         }
-                        if (indices[dIndex] != bestIndex) {
-                            indices[dIndex] = bestIndex
-                            hasChanges = true
-                        } else {
-                            nextCache[bestIndex] = HashSet<Int>(xIndices)
-                        }
-                        takenIndices.add(bestIndex)
                     }
+                    if (indices[dIndex] != bestIndex) {
+                        indices[dIndex] = bestIndex
+                        hasChanges = true
+                    } else {
+                        nextCache[bestIndex] = HashSet<Int>(xIndices)
+                    }
+                    takenIndices[bestIndex] = true
                 }
             }
             unusedDIndices.forEach { dIndex ->
-                takenIndices.add(indices[dIndex])
+                takenIndices[indices[dIndex]] = true
                 while (true) {
                     val potential = random.nextInt(dictionaryLow.columns)
-                    if (!takenIndices.contains(potential)) {
+                    if (!takenIndices[potential]) {
                         indices[dIndex] = potential
                         hasChanges = true
                         break
@@ -194,12 +238,124 @@ object TerrainDictionaryBuilder {
             }
             if (!hasChanges) {
                 println("dictionary optimized naturally")
+                writeCheckpoint(checkpointFile, maxIterations, indices, stageHash)
                 break
             }
+            writeCheckpoint(checkpointFile, iteration + 1, indices, stageHash)
+        }
+        return OptimizedSelection(indices, stageHash)
+    }
+
+    private fun crossTerms(dictionaryTransposed: RcMatrix, signalSums: DoubleArray, output: DoubleArray) {
+        val atomSize = dictionaryTransposed.columns
+        val dictionaryArray = dictionaryTransposed.array
+        IntStream.range(0, dictionaryTransposed.rows).parallel().forEach { row ->
+            val rowOffset = row * atomSize
+            val outputOffset = row * SEARCH_BLOCK_SIZE
+            for (b in 0 until SEARCH_BLOCK_SIZE) {
+                output[outputOffset + b] = 0.0
+            }
+            for (t in 0 until atomSize) {
+                val value = dictionaryArray[rowOffset + t].toDouble()
+                if (value != 0.0) {
+                    val sumsOffset = t * SEARCH_BLOCK_SIZE
+                    for (b in 0 until SEARCH_BLOCK_SIZE) {
+                        output[outputOffset + b] += value * signalSums[sumsOffset + b]
+                    }
+                }
+            }
+        }
+    }
+
+    private fun stageRandom(stage: Int, iteration: Int) = Random((stage.toLong() shl 32) or iteration.toLong())
+
+    private fun stageHash(parentHash: ByteArray, stage: Int, maxIterations: Int): ByteArray {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update(parentHash)
+        digest.update(ByteBuffer.allocate(8).putInt(stage).putInt(maxIterations).array())
+        return digest.digest()
+    }
+
+    private fun checkpointHash(dictionaryLow: RcMatrix, optimizationDictionary: RcMatrix, usefulIndices: IntArray): ByteArray {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val buffer = ByteBuffer.allocate(1 shl 16)
+        fun add(value: Int) {
+            buffer.clear()
+            buffer.putInt(value)
+            digest.update(buffer.array(), 0, 4)
+        }
+        fun add(matrix: RcMatrix) {
+            add(matrix.rows)
+            add(matrix.columns)
+            val array = matrix.array
+            var offset = 0
+            while (offset < array.size) {
+                val length = min(array.size - offset, buffer.capacity() / 4)
+                buffer.clear()
+                buffer.asFloatBuffer().put(array, offset, length)
+                digest.update(buffer.array(), 0, length * 4)
+                offset += length
+            }
+        }
+        add(SEARCH_BLOCK_SIZE)
+        add(dictionaryLow)
+        add(optimizationDictionary)
+        add(usefulIndices.size)
+        usefulIndices.forEach { add(it) }
+        return digest.digest()
+    }
+
+    private fun readCheckpoint(checkpointFile: File, stageHash: ByteArray): Pair<Int, IntArray>? {
+        if (!checkpointFile.isFile) {
+            return null
+        }
+        return try {
+            DataInputStream(checkpointFile.inputStream().buffered()).use { input ->
+                val hash = ByteArray(stageHash.size)
+                input.readFully(hash)
+                val iteration = input.readInt()
+                val size = input.readInt()
+                if (!Arrays.equals(hash, stageHash)) {
+                    println("ignoring checkpoint ${checkpointFile.name} from different inputs")
+                    null
+                } else {
+                    val restored = IntArray(size) { input.readInt() }
+                    println("resuming ${checkpointFile.name} at iteration $iteration")
+                    iteration to restored
+                }
+            }
+        } catch (e: IOException) {
+            println("ignoring unreadable checkpoint ${checkpointFile.name}: ${e.message}")
+            null
+        }
+    }
+
+    private fun writeCheckpoint(checkpointFile: File, iteration: Int, indices: IntArray, inputHash: ByteArray) {
+        val tempFile = File(checkpointFile.parentFile, "${checkpointFile.name}.tmp")
+        DataOutputStream(tempFile.outputStream().buffered()).use { output ->
+            output.write(inputHash)
+            output.writeInt(iteration)
+            output.writeInt(indices.size)
+            indices.forEach { output.writeInt(it) }
+        }
+        Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    private fun squaredRowNorms(matrix: RcMatrix): DoubleArray {
+        val array = matrix.array
+        return DoubleArray(matrix.rows) { row ->
+            val offset = row * matrix.columns
+            var sum = 0.0
+            for (column in 0 until matrix.columns) {
+                val value = array[offset + column].toDouble()
+                sum += value * value
+            }
+            sum
         }
-        return indices
     }
 
+    private fun checkpointFile(outputFile: File, stage: Int) = File(outputFile.parentFile, "${outputFile.name}.optimize-$stage.checkpoint")
+
     private fun buildOptimizationSet(maskSize: Int, mask: RcMatrix, offset: Int, optimization: RcMatrix, optimizationMask: RcMatrix): RcMatrix {
         val dictionaryHeight = (optimization.rows - maskSize) / offset
         val dictionaryWidth = (optimization.columns - maskSize) / offset
@@ -285,96 +441,61 @@ object TerrainDictionaryBuilder {
         return baseAtoms to keepsArray
     }
 
-    private fun psnrMax(testIndex: Int, testAtom: FloatArray, atomsToTestAgainst: List<Pair<Int, FloatArray>>, cache: FloatArray): Float {
-        var min = Float.MAX_VALUE
-        atomsToTestAgainst.forEach { (otherIndex, otherAtom) ->
-            val currentError = sumOfError(testAtom, otherAtom, testIndex, otherIndex, cache)
-            if (currentError < min) {
-                min = currentError
-            }
-        }
-        return if (min < 0.0000001f) Float.MAX_VALUE else 1.0f / min
-    }
-
-    private fun psnr(dAtom: FloatArray, xAtoms: List<FloatArray>): Float {
-        var sum = 0.0f
-        xAtoms.forEach { xAtom ->
-            sum += sumOfError2(dAtom, xAtom)
-        }
-        val mse = sum / (xAtoms.size * dAtom.size)
-        return if (mse < 0.0000001f) Float.MAX_VALUE else 1.0f / mse
-    }
-
-    private fun sumOfError2(dAtom: FloatArray, xAtom: FloatArray): Float {
-        var sum = 0.0f
-        for (i in 0 until dAtom.size) {
-            val delta = dAtom[i] - xAtom[i]
-            sum += delta * delta
-        }
-        return sum
-    }
-
-    private fun sumOfError(dAtom: FloatArray, xAtom: FloatArray, dIndex: Int, otherIndex: Int, cache: FloatArray): Float {
-        if (dIndex == otherIndex) {
-            return 0.0f
-        }
-        val y = min(dIndex, otherIndex)
-        val x = max(dIndex, otherIndex)
-        val index = (x * (x - 1) / 2 + y)
-        val cacheVal = cache[index]
-        if (cacheVal > 0.0f) {
-            return cacheVal
-        }
-        var sum = 0.0f
-        for (i in 0 until dAtom.size) {
-            sum += Math.abs(dAtom[i] - xAtom[i])
-        }
-        cache[index] = sum
-        return sum
-    }
-
     private fun stronglyUniqueSelect(random: Random, dictionary: RcMatrix, indices: IntArray, count: Int): IntArray {
         if (count > indices.size) {
             return indices
         }
-        val cache = FloatArray((dictionary.columns * (dictionary.columns - 1)) / 2)
+        val atoms = Array(indices.size) { dictionary.column(indices[it]) }
+        val minErrors = FloatArray(indices.size) { Float.MAX_VALUE }
+        val chunks = (0 until indices.size).chunked(max(1, indices.size / 16))
+        val chunkBestIndices = IntArray(chunks.size)
+        val chunkBestPsnrs = FloatArray(chunks.size)
         val stronglyUniqueSet = HashSet<Int>(count)
-        stronglyUniqueSet.add(indices[random.nextInt(indices.size)])
+        var lastIndex = indices[random.nextInt(indices.size)]
+        stronglyUniqueSet.add(lastIndex)
         while (stronglyUniqueSet.size < count) {
-            stronglyUniqueSet.add(stronglyUniqueSelect(dictionary, indices, stronglyUniqueSet, cache))
-        }
-        return stronglyUniqueSet.toIntArray()
-    }
-
-    private fun stronglyUniqueSelect(dictionary: RcMatrix, indices: IntArray, taken: Set<Int>, cache: FloatArray): Int {
-        val takenAtoms = taken.map { tIndex ->
-            tIndex to dictionary[ALL, tIndex].array
-        }
-        var bestIndex = -1
-        var bestPsnr = Float.MAX_VALUE
-        indices.asList().chunked(max(1, indices.size / 16)).parallelStream().map { chunk ->
-            var localBestIndex = -1
-            var localBestPsnr = Float.MAX_VALUE
-            chunk.forEach { newDIndex ->
-                if (!taken.contains(newDIndex)) {
-                    val currentPsnr = psnrMax(newDIndex, dictionary[ALL, newDIndex].array, takenAtoms, cache)
-                    if (currentPsnr < localBestPsnr) {
-                        localBestPsnr = currentPsnr
-                        localBestIndex = newDIndex
+            val lastAtom = dictionary.column(lastIndex)
+            chunks.indices.toList().parallelStream().forEach { chunkIndex ->
+                var localBestIndex = -1
+                var localBestPsnr = Float.MAX_VALUE
+                chunks[chunkIndex].forEach { i ->
+                    val newDIndex = indices[i]
+                    if (!stronglyUniqueSet.contains(newDIndex)) {
+                        val minError = min(minErrors[i], sumOfError(atoms[i], lastAtom))
+                        minErrors[i] = minError
+                        val currentPsnr = if (minError < 0.0000001f) Float.MAX_VALUE else 1.0f / minError
+                        if (currentPsnr < localBestPsnr) {
+                            localBestPsnr = currentPsnr
+                            localBestIndex = newDIndex
+                        }
                     }
                 }
+                chunkBestIndices[chunkIndex] = localBestIndex
+                chunkBestPsnrs[chunkIndex] = localBestPsnr
+            }
+            var bestIndex = -1
+            var bestPsnr = Float.MAX_VALUE
+            for (chunkIndex in chunks.indices) {
+                if (chunkBestPsnrs[chunkIndex] < bestPsnr) {
+                    bestPsnr = chunkBestPsnrs[chunkIndex]
+                    bestIndex = chunkBestIndices[chunkIndex]
+                }
             }
-            localBestIndex to localBestPsnr
-        }.forEach { (currentIndex, currentPsnr) ->
-            if (currentPsnr < bestPsnr) {
-                bestPsnr = currentPsnr
-                bestIndex = currentIndex
+            if (bestIndex == -1) {
+                throw RuntimeException("dictionary has less variation than dictionary size")
             }
+            stronglyUniqueSet.add(bestIndex)
+            lastIndex = bestIndex
         }
-        if (bestIndex == -1) {
-            throw RuntimeException("dictionary has less variation than dictionary size")
+        return stronglyUniqueSet.toIntArray()
+    }
+
+    private fun sumOfError(dAtom: FloatArray, xAtom: FloatArray): Float {
+        var sum = 0.0f
+        for (i in 0 until dAtom.size) {
+            sum += Math.abs(dAtom[i] - xAtom[i])
         }
-        return bestIndex
+        return sum
     }
 
     private fun randomSelect(random: Random, dictionaryLow: RcMatrix, count: Int): IntArray {
@@ -387,7 +508,7 @@ object TerrainDictionaryBuilder {
             val newDictionary = newDictionaries[j]
             val dictionary = dictionaries[j]
             for (i in 0 until selection.size) {
-                newDictionary[ALL, i] = dictionary[ALL, selection[i]]
+                dictionary.copyColumn(selection[i], newDictionary, i)
             }
         }
         return newDictionaries
@@ -427,10 +548,9 @@ object TerrainDictionaryBuilder {
         return newDictionaries
     }
 
-    private fun dictionaryFromSelection(dictionary: RcMatrix, selection: IntArray): RcMatrix {
-        val newDictionary = RcMatrix(dictionary.rows, selection.size)
+    private fun dictionaryFromSelection(dictionary: RcMatrix, selection: IntArray, newDictionary: RcMatrix = RcMatrix(dictionary.rows, selection.size)): RcMatrix {
         for (i in 0 until selection.size) {
-            newDictionary[ALL, i] = dictionary[ALL, selection[i]]
+            dictionary.copyColumn(selection[i], newDictionary, i)
         }
         return newDictionary
     }
@@ -1,13 +1,16 @@
 package com.grimfox.gec.hdr;
 
-import java.io.DataInput;
-import java.io.DataInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * Writes and reads default 32-bit_rle_rgbe HDR files, without any other fancy stuff (no gamma, etc.)
@@ -19,6 +22,7 @@ public class HDREncoder
 {
     private static final String IDENTIFIER="#?RGBE";
     private static final String DEFAULT_FORMAT="32-bit_rle_rgbe";
+    private static final int SCANLINES_PER_BAND=16;
 
     /**
      * Writes a default header into the file
@@ -84,68 +88,98 @@ public class HDREncoder
     /**
      * This method is pretty much dark magic. I thereby present you the only existing java HDR RLE writer in the world (to date)
      *
-     * Writes into <out> the RGBE array <bdata> considering a scanline with width <scanlineWidth>. If <rgb> is set to false, <bdata> is considered to only store the RE components of each RGBE data
+     * Writes into <out> the RGBE array <bdata> considering a scanline with width <scanlineWidth>. If <rgb> is set to false, <bdata> is considered to only store the RE components of each RGBE data.
+     * Bands of scanlines are encoded in parallel and written in order.
      */
-    private static void writeDataRLE(OutputStream out,byte[] bdata,int scanlineWidth,boolean rgb) throws IOException
+    private static void writeDataRLE(OutputStream out,byte[] bdata,int scanlineWidth,int height,boolean rgb) throws IOException
     {
+        int channels=rgb?4:2;
+        int bands=(height+SCANLINES_PER_BAND-1)/SCANLINES_PER_BAND;
+        byte[][] encoded=new byte[bands][];
+        IntStream.range(0,bands).parallel().forEach(band->{
+            int first=band*SCANLINES_PER_BAND;
+            int end=Math.min(height,first+SCANLINES_PER_BAND);
+            byte[] buf=new byte[(end-first)*(4+8*scanlineWidth)];
+            int index=0;
+            for(int y=first;y<end;y++) index=encodeScanline(bdata,y*scanlineWidth*channels,scanlineWidth,rgb,buf,index);
+            encoded[band]=Arrays.copyOf(buf,index);
+        });
+        for(byte[] band:encoded) out.write(band);
+    }
 
-        byte[] scanlineHeader={2,2,(byte)((scanlineWidth>>8)&0xFF),(byte)(scanlineWidth&0xFF)}; //Scanline header with the scanline width in args
+    /**
+     * Writes the RLE encoded scanline starting at <start> in <bdata> into <buf> at <index>, returning the index after it
+     */
+    private static int encodeScanline(byte[] bdata,int start,int scanlineWidth,boolean rgb,byte[] buf,int index)
+    {
+        //Scanline header with the scanline width in args
+        buf[index++]=2;
+        buf[index++]=2;
+        buf[index++]=(byte)((scanlineWidth>>8)&0xFF);
+        buf[index++]=(byte)(scanlineWidth&0xFF);
+        if(rgb)
+        {
+            for(int c=0;c<4;c++) index=encodeChannelRLE(bdata,start+c*scanlineWidth,scanlineWidth,buf,index);
+        }
+        else
+        {
+            //R is repeated as G and B
+            int rStart=index;
+            index=encodeChannelRLE(bdata,start,scanlineWidth,buf,index);
+            int rLength=index-rStart;
+            System.arraycopy(buf,rStart,buf,index,rLength);
+            index+=rLength;
+            System.arraycopy(buf,rStart,buf,index,rLength);
+            index+=rLength;
+            index=encodeChannelRLE(bdata,start+scanlineWidth,scanlineWidth,buf,index);
+        }
+        return index;
+    }
 
-        byte[] scanlineBuf=new byte[scanlineWidth*2];
-        int scanlineBufIndex=0;
-        int curr=0;
-        int rgbeCont=0; //0 - R iteration , 1 - G iteration , 2 - B iteration , 3 - E iteration
+    /**
+     * Run length encodes one channel of a scanline (<scanlineWidth> bytes of <bdata> from <start>) into <buf> at <index>, returning the index after it
+     */
+    private static int encodeChannelRLE(byte[] bdata,int start,int scanlineWidth,byte[] buf,int index)
+    {
+        int scanlineEnd=start+scanlineWidth;
+        int curr=start;
+        int auxIndex=curr;
+        boolean repeating=bdata[curr+1]==bdata[curr];
 
-        //For each scanline (R and E of the same scanline count as different scanlines)
-        for(int scanlineEnd=scanlineWidth;scanlineEnd<=bdata.length;scanlineEnd+=scanlineWidth)
+        while(curr<scanlineEnd-1)
         {
-            int auxIndex=curr;
-            boolean repeating=bdata[curr+1]==bdata[curr];
-
-            while(curr<scanlineEnd-1)
+            curr++;
+            boolean equal=bdata[curr]==bdata[auxIndex];
+            int fromAux=curr-auxIndex;
+            if(equal!=repeating||fromAux>=127)
             {
-                curr++;
-                boolean equal=bdata[curr]==bdata[auxIndex];
-                int fromAux=curr-auxIndex;
-                if(equal!=repeating||fromAux>=127)
+                if(repeating)
                 {
-                    if(repeating)
-                    {
-                        scanlineBuf[scanlineBufIndex++]=(byte)(128+fromAux);
-                        scanlineBuf[scanlineBufIndex++]=bdata[auxIndex];
-                    }
-                    else
-                    {
-                        scanlineBuf[scanlineBufIndex++]=(byte)(fromAux);
-                        for(int i=0;i<fromAux;i++) scanlineBuf[scanlineBufIndex++]=bdata[auxIndex+i];
-                    }
-                    auxIndex=curr;
-                    repeating=curr!=scanlineEnd-1&&bdata[curr+1]==bdata[curr];
+                    buf[index++]=(byte)(128+fromAux);
+                    buf[index++]=bdata[auxIndex];
                 }
+                else
+                {
+                    buf[index++]=(byte)(fromAux);
+                    System.arraycopy(bdata,auxIndex,buf,index,fromAux);
+                    index+=fromAux;
+                }
+                auxIndex=curr;
+                repeating=curr!=scanlineEnd-1&&bdata[curr+1]==bdata[curr];
             }
-            curr++;
-            int fromAux=curr-auxIndex;
-            if(repeating){
-                scanlineBuf[scanlineBufIndex++]=(byte)(128+fromAux);
-                scanlineBuf[scanlineBufIndex++]=bdata[auxIndex];
-            }
-            else{
-                scanlineBuf[scanlineBufIndex++]=(byte)(fromAux);
-                for(int i=0;i<fromAux;i++) scanlineBuf[scanlineBufIndex++]=bdata[auxIndex+i];
-            }
-
-            if(rgbeCont==0) out.write(scanlineHeader);
-
-            out.write(scanlineBuf, 0, scanlineBufIndex);
-
-            if(!rgb&&rgbeCont==0){
-                out.write(scanlineBuf, 0, scanlineBufIndex);
-                out.write(scanlineBuf, 0, scanlineBufIndex);
-            }
-
-            rgbeCont+=(rgb?1:3); if(rgbeCont>3) rgbeCont=0;
-            scanlineBufIndex=0;
         }
+        curr++;
+        int fromAux=curr-auxIndex;
+        if(repeating){
+            buf[index++]=(byte)(128+fromAux);
+            buf[index++]=bdata[auxIndex];
+        }
+        else{
+            buf[index++]=(byte)(fromAux);
+            System.arraycopy(bdata,auxIndex,buf,index,fromAux);
+            index+=fromAux;
+        }
+        return index;
     }
 
     /**
@@ -156,9 +190,13 @@ public class HDREncoder
         boolean rgb=img.getChannels()>1;
         byte[] bdata=new byte[img.getWidth()*img.getHeight()*(rgb?4:2)];
 
-        //Get RGBE from data[] values and parse it into bdata. Only RE components are needed as R=G=B in non-rgb images
-        if(!rgb) for(int s=0;s<img.getInternalData().length;s+=img.getWidth()) for(int i=0;i<img.getWidth();i++) RGBE.float2re(bdata, img.getInternalData()[i+s], i +s*2, img.getWidth());
-        else for(int s=0;s<img.getInternalData().length;s+=img.getWidth()*3) for(int i=0;i<img.getWidth();i++) RGBE.float2rgbe(bdata, img.getInternalData()[i*3+s], img.getInternalData()[i*3+s+1], img.getInternalData()[i*3+s+2], i +(s/3)*4, img.getWidth());
+        //Get RGBE from data[] values and parse it into bdata, one scanline per task. Only RE components are needed as R=G=B in non-rgb images
+        float[] data=img.getInternalData();
+        int width=img.getWidth();
+        IntStream.range(0,img.getHeight()).parallel().forEach(y->{
+            if(!rgb) for(int i=0,s=y*width;i<width;i++) RGBE.float2re(bdata, data[i+s], i +s*2, width);
+            else for(int i=0,s=y*width*3;i<width;i++) RGBE.float2rgbe(bdata, data[i*3+s], data[i*3+s+1], data[i*3+s+2], i +(s/3)*4, width);
+        });
 
         writeHDR(bdata,img.getWidth(),img.getHeight(),rgb,file);
     }
@@ -168,70 +206,61 @@ public class HDREncoder
      */
     public static void writeHDR(byte[] bdata,int width,int height,boolean rgb,File file) throws IOException
     {
-        PrintStream out=new PrintStream(new FileOutputStream(file));
-        writeHeader(out,width,height);
-        if(width>=8 && width <= 0x7fff)writeDataRLE(out,bdata,width,rgb);
-        else if(rgb)writeDataRgb(out,bdata);
-        else writeDataGrayscale(out,bdata);
-        out.flush();
-        out.close();
+        try(OutputStream out=new BufferedOutputStream(new FileOutputStream(file),1<<16))
+        {
+            PrintStream headerOut=new PrintStream(out);
+            writeHeader(headerOut,width,height);
+            headerOut.flush();
+            if(width>=8 && width <= 0x7fff)writeDataRLE(out,bdata,width,height,rgb);
+            else if(rgb)writeDataRgb(out,bdata);
+            else writeDataGrayscale(out,bdata);
+        }
     }
 
     /**
      * Reads an HDR image <f> into a HDRImage class structure. If <rgb> is not set, only the R channel of the HDR image will be read.
+     *
+     * The file is memory mapped and its scanlines indexed up front, so bands of scanlines are decoded in parallel straight into the float data.
      */
     public static HDRImage readHDR(File f,boolean rgb) throws IOException
     {
-        FileInputStream fis=new FileInputStream(f);
-        DataInput di=new DataInputStream(fis);
-        RGBE.Header header=RGBE.readHeader(di);
+        ByteBuffer in=mapFile(f);
+        RGBE.Header header=RGBE.readHeader(in);
 
         int width=header.getWidth();
         int height=header.getHeight();
 
-        byte[] bbuff=new byte[width*4];
+        RGBE.ScanlineIndex index=RGBE.indexScanlines(in,in.position(),width,height);
         int rgbmult=rgb?3:1;
         float[] outImage=new float[width*height*rgbmult];
-        int floatOffset=0;
+        int bands=(height+SCANLINES_PER_BAND-1)/SCANLINES_PER_BAND;
 
-        for(int h=0;h<height;h++)
-        {
-            RGBE.readPixelsRawRLE(di, bbuff, 0, width, 1);
-            //Convert RGBE into float
-            if(rgb){
-                floatOffset=scanlineToFloatRGB(bbuff,outImage,floatOffset);
-            }
-            else {
-                floatOffset=scanlineToFloatGrayscale(bbuff,outImage,floatOffset);
+        IntStream.range(0,bands).parallel().forEach(band->{
+            ByteBuffer bandIn=in.duplicate();
+            byte[] scanline=new byte[width*4];
+            int end=Math.min(height,(band+1)*SCANLINES_PER_BAND);
+            for(int h=band*SCANLINES_PER_BAND;h<end;h++)
+            {
+                RGBE.readScanline(bandIn,index,h,width,scanline);
+                //Convert RGBE into float
+                if(rgb) RGBE.planarRgbe2float(outImage,scanline,width,h*width*3);
+                else RGBE.planarRe2float(outImage,scanline,width,h*width);
             }
-        }
+        });
 
-        fis.close();
         return rgb?
                 new HDRImageRGB(width,height,outImage):
                 new HDRImageGrayscale(width,height,outImage);
 
     }
 
-    private static int scanlineToFloatRGB(byte[] scanline,float[] dest,int initialOffset)
-    {
-        int off=initialOffset;
-        for(int i=0;i<scanline.length;i+=4)
-        {
-            RGBE.rgbe2float(dest, scanline, i,off);
-            off+=3;
-        }
-        return off;
-    }
-    private static int scanlineToFloatGrayscale(byte[] scanline,float[] dest,int initialOffset)
+    private static ByteBuffer mapFile(File f) throws IOException
     {
-        int off=initialOffset;
-        for(int i=0;i<scanline.length;i+=4)
+        try(FileChannel channel=FileChannel.open(f.toPath(),StandardOpenOption.READ))
         {
-            RGBE.re2float(dest, scanline, i,off);
-            off++;
+            if(channel.size()>Integer.MAX_VALUE) throw new IOException("HDR file too large to map: "+f);
+            return channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
         }
-        return off;
     }
 
 
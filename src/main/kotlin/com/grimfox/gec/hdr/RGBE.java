@@ -1,6 +1,8 @@
 package com.grimfox.gec.hdr;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -124,7 +126,67 @@ public class RGBE {
         }
     }
 
+    /**
+     * Offsets of each scanline within a mapped rgbe file.  Scanlines from
+     * firstFlatScanline onwards are stored as flat rgbe quadruples rather
+     * than run length encoded.
+     */
+    public static class ScanlineIndex {
+        private final int[] offsets;
+        private final int firstFlatScanline;
+
+        private ScanlineIndex(int[] offsets, int firstFlatScanline) {
+            this.offsets = offsets;
+            this.firstFlatScanline = firstFlatScanline;
+        }
+
+        public int getOffset(int scanline) {
+            return offsets[scanline];
+        }
+
+        public int getFirstFlatScanline() {
+            return firstFlatScanline;
+        }
+    }
+
+    private interface LineSource {
+        String readLine() throws IOException;
+    }
+
     public static Header readHeader(final DataInput in) throws IOException {
+        return parseHeader(in::readLine);
+    }
+
+    /**
+     * Reads the header from the current position of <in>, leaving it
+     * positioned at the first scanline.
+     */
+    public static Header readHeader(final ByteBuffer in) throws IOException {
+        return parseHeader(() -> readLine(in));
+    }
+
+    private static String readLine(ByteBuffer in) {
+        if (!in.hasRemaining()) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder();
+        while (in.hasRemaining()) {
+            char c = (char) (in.get() & 0xFF);
+            if (c == '\n') {
+                break;
+            }
+            if (c == '\r') {
+                if (in.hasRemaining() && in.get(in.position()) == '\n') {
+                    in.get();
+                }
+                break;
+            }
+            line.append(c);
+        }
+        return line.toString();
+    }
+
+    private static Header parseHeader(final LineSource in) throws IOException {
         int valid = 0;
         String programType = null;
         float gamma = 1.0f;
@@ -285,6 +347,118 @@ public class RGBE {
         }
     }
 
+    /**
+     * Walks the run length encoded data starting at <start> without decoding
+     * it and records where each scanline begins, so scanlines can be decoded
+     * independently.
+     */
+    public static ScanlineIndex indexScanlines(ByteBuffer in, int start,
+                                               int scanline_width, int num_scanlines) throws IOException {
+        int[] offsets = new int[num_scanlines + 1];
+        int limit = in.limit();
+        int offset = start;
+        int scanline = 0;
+        if ((scanline_width >= 8) && (scanline_width <= 0x7fff)) {
+            for (; scanline < num_scanlines; scanline++) {
+                if (offset + 4 > limit) {
+                    throw new IOException("Unexpected EOF reading scanline " + scanline);
+                }
+                if ((in.get(offset) != 2) || (in.get(offset + 1) != 2) || ((in.get(offset + 2) & 0x80) != 0)) {
+                    // this file is not run length encoded from here on
+                    break;
+                }
+                int width = ((in.get(offset + 2) & 0xFF) << 8) | (in.get(offset + 3) & 0xFF);
+                if (width != scanline_width) {
+                    throw new IOException("Wrong scanline width " + width + ", expected " + scanline_width);
+                }
+                offsets[scanline] = offset;
+                offset += 4;
+                for (int i = 0; i < 4; i++) {
+                    int ptr = 0;
+                    while (ptr < scanline_width) {
+                        if (offset + 2 > limit) {
+                            throw new IOException("Unexpected EOF reading scanline " + scanline);
+                        }
+                        int code = in.get(offset) & 0xFF;
+                        int count = code > 128 ? code - 128 : code;
+                        if ((count == 0) || (count > scanline_width - ptr)) {
+                            throw new IOException("Bad scanline data");
+                        }
+                        offset += code > 128 ? 2 : 1 + count;
+                        ptr += count;
+                    }
+                }
+            }
+        }
+        int firstFlatScanline = scanline;
+        for (; scanline <= num_scanlines; scanline++) {
+            offsets[scanline] = offset;
+            offset += 4 * scanline_width;
+        }
+        if (offsets[num_scanlines] > limit) {
+            throw new IOException("Unexpected EOF reading scanline data");
+        }
+        return new ScanlineIndex(offsets, firstFlatScanline);
+    }
+
+    /**
+     * Decodes one indexed scanline into <scanline_buffer> as four planes of
+     * <scanline_width> bytes (r, g, b, e).  Uses relative reads on <in>, so
+     * each thread needs its own duplicate of the mapped buffer.
+     */
+    public static void readScanline(ByteBuffer in, ScanlineIndex index, int scanline,
+                                    int scanline_width, byte[] scanline_buffer) {
+        in.position(index.getOffset(scanline));
+        if (scanline >= index.getFirstFlatScanline()) {
+            for (int i = 0; i < scanline_width; i++) {
+                scanline_buffer[i] = in.get();
+                scanline_buffer[i + scanline_width] = in.get();
+                scanline_buffer[i + 2 * scanline_width] = in.get();
+                scanline_buffer[i + 3 * scanline_width] = in.get();
+            }
+            return;
+        }
+        in.position(in.position() + 4);
+        int ptr = 0;
+        int ptr_end = 4 * scanline_width;
+        while (ptr < ptr_end) {
+            int count = in.get() & 0xFF;
+            if (count > 128) {
+                count -= 128;
+                byte value = in.get();
+                Arrays.fill(scanline_buffer, ptr, ptr + count, value);
+            }
+            else {
+                in.get(scanline_buffer, ptr, count);
+            }
+            ptr += count;
+        }
+    }
+
+    /**
+     * Converts a planar rgbe scanline as produced by readScanline to three
+     * floats per pixel.
+     */
+    public static void planarRgbe2float(float[] rgb, byte[] scanline_buffer, int scanline_width, int startFloatOffset) {
+        int off = startFloatOffset;
+        for (int i = 0; i < scanline_width; i++) {
+            float f = exponentScales[scanline_buffer[i + 3 * scanline_width] & 0xFF];
+            rgb[off++] = (scanline_buffer[i] & 0xFF) * f;
+            rgb[off++] = (scanline_buffer[i + scanline_width] & 0xFF) * f;
+            rgb[off++] = (scanline_buffer[i + 2 * scanline_width] & 0xFF) * f;
+        }
+    }
+
+    /**
+     * Converts the red channel of a planar rgbe scanline as produced by
+     * readScanline to one float per pixel.
+     */
+    public static void planarRe2float(float[] r, byte[] scanline_buffer, int scanline_width, int startFloatOffset) {
+        for (int i = 0; i < scanline_width; i++) {
+            r[startFloatOffset + i] = (scanline_buffer[i] & 0xFF) * exponentScales[scanline_buffer[i + 3 * scanline_width] & 0xFF];
+        }
+    }
+
     /**
      * Standard conversion from float pixels to rgbe pixels.
      */
@@ -397,6 +571,17 @@ public class RGBE {
         }
     }
 
+    // rgbe2float scale for each exponent byte, zero for the zero pixel
+    private static final float[] exponentScales = buildExponentScales();
+
+    private static float[] buildExponentScales() {
+        float[] scales = new float[256];
+        for (int e = 1; e < 256; e++) {
+            scales[e] = (float) ldexp(1.0, e - (128 + 8));
+        }
+        return scales;
+    }
+
     public static double ldexp(double value, int exp) {
         if (!finite(value) || value == 0.0) {
             return value;
@@ -3,6 +3,9 @@ package com.grimfox.gec.model
 import com.grimfox.gec.model.geometry.*
 import com.grimfox.gec.model.geometry.Polygon2F.Companion.fromUnsortedEdges
 import java.util.*
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicIntegerArray
 import kotlin.collections.LinkedHashSet
 
 
@@ -515,6 +518,31 @@ class Graph(val seed: Long,
         return closestPoint
     }
 
+    fun getClosestGridPoint(x: Float, y: Float, expansions: Int = 2): Int {
+        if (stride == null) throw UnsupportedOperationException()
+        val strideMinus1 = stride - 1
+        val gridX = Math.round(x * strideMinus1)
+        val gridY = Math.round(y * strideMinus1)
+        val minX = Math.max(0, gridX - expansions)
+        val maxX = Math.min(strideMinus1, gridX + expansions)
+        var closestPoint = -1
+        var minD2 = Float.MAX_VALUE
+        for (gy in Math.max(0, gridY - expansions)..Math.min(strideMinus1, gridY + expansions)) {
+            val rowOffset = gy * stride
+            for (gx in minX..maxX) {
+                val id = rowOffset + gx
+                val dx = vertexIdsToPoints[id * 2] - x
+                val dy = vertexIdsToPoints[id * 2 + 1] - y
+                val d2 = dx * dx + dy * dy
+                if (d2 < minD2) {
+                    closestPoint = id
+                    minD2 = d2
+                }
+            }
+        }
+        return closestPoint
+    }
+
     fun getClosePoints(point: Point2F, expansions: Int = 3, includeLower: Boolean = true): Set<Int> {
         if (stride == null) throw UnsupportedOperationException()
         val strideMinus1 = stride - 1
@@ -646,55 +674,178 @@ class Graph(val seed: Long,
         return degrees
     }
 
+    class ConnectedComponents(val labels: IntArray, val seeds: IntArray, val sizes: IntArray, val borderIds: Array<IntArray>) {
+
+        val count: Int get() = seeds.size
+    }
+
     fun getConnectedBodies(mask: LinkedHashSet<Int>): ArrayList<LinkedHashSet<Int>> {
-        val bodies = ArrayList<LinkedHashSet<Int>>()
-        val unconnected = LinkedHashSet<Int>(mask)
-        while (unconnected.isNotEmpty()) {
-            val seed = unconnected.first()
-            unconnected.remove(seed)
-            val body = getConnectedIds(seed, mask)
-            unconnected.removeAll(body)
-            bodies.add(body)
+        return getConnectedBodies(VertexSet.of(vertices.size, mask)).mapTo(ArrayList()) { it.toLinkedHashSet() }
+    }
+
+    fun getConnectedBodies(mask: VertexSet, executor: ExecutorService? = null, threadCount: Int = 1): ArrayList<VertexSet> {
+        return getConnectedBodies(labelConnectedComponents(mask, executor, threadCount), mask, executor, threadCount)
+    }
+
+    fun getConnectedBodies(components: ConnectedComponents, mask: VertexSet, executor: ExecutorService? = null, threadCount: Int = 1): ArrayList<VertexSet> {
+        val bodies = arrayOfNulls<VertexSet>(components.count)
+        forEachParallel(executor, threadCount, components.count) {
+            bodies[it] = getConnectedIds(components.seeds[it], mask)
+        }
+        return bodies.mapTo(ArrayList(bodies.size)) { it!! }
+    }
+
+    fun labelConnectedComponents(mask: VertexSet, executor: ExecutorService? = null, threadCount: Int = 1): ConnectedComponents {
+        val ids = mask.toIntArray()
+        val parents = AtomicIntegerArray(vertices.size)
+        forEachParallel(executor, threadCount, ids.size) {
+            parents.set(ids[it], ids[it])
+        }
+        forEachParallel(executor, threadCount, ids.size) {
+            val id = ids[it]
+            val adjacents = vertices.getAdjacentVertices(id)
+            for (i in 0 until adjacents.size) {
+                val adjacent = adjacents[i]
+                if (mask.containsId(adjacent)) {
+                    union(parents, id, adjacent)
+                }
+            }
+        }
+        val roots = IntArray(ids.size)
+        val isBorder = BooleanArray(ids.size)
+        forEachParallel(executor, threadCount, ids.size) {
+            val id = ids[it]
+            roots[it] = find(parents, id)
+            isBorder[it] = vertices.getAdjacentVertices(id).any { adjacent -> !mask.containsId(adjacent) }
+        }
+        val labels = IntArray(vertices.size) { -1 }
+        val rootLabels = IntArray(vertices.size) { -1 }
+        val seeds = ArrayList<Int>()
+        for (i in 0 until ids.size) {
+            val root = roots[i]
+            var label = rootLabels[root]
+            if (label < 0) {
+                label = seeds.size
+                rootLabels[root] = label
+                seeds.add(ids[i])
+            }
+            labels[ids[i]] = label
+        }
+        val sizes = IntArray(seeds.size)
+        val borderCounts = IntArray(seeds.size)
+        for (i in 0 until ids.size) {
+            val label = labels[ids[i]]
+            sizes[label]++
+            if (isBorder[i]) {
+                borderCounts[label]++
+            }
+        }
+        val borderIds = Array(seeds.size) { IntArray(borderCounts[it]) }
+        borderCounts.fill(0)
+        for (i in 0 until ids.size) {
+            if (isBorder[i]) {
+                val label = labels[ids[i]]
+                borderIds[label][borderCounts[label]++] = ids[i]
+            }
+        }
+        return ConnectedComponents(labels, seeds.toIntArray(), sizes, borderIds)
+    }
+
+    private fun find(parents: AtomicIntegerArray, id: Int): Int {
+        var current = id
+        while (true) {
+            val parent = parents.get(current)
+            if (parent == current) {
+                return current
+            }
+            val grandParent = parents.get(parent)
+            if (parent != grandParent) {
+                parents.compareAndSet(current, parent, grandParent)
+            }
+            current = grandParent
+        }
+    }
+
+    private fun union(parents: AtomicIntegerArray, id1: Int, id2: Int) {
+        while (true) {
+            val root1 = find(parents, id1)
+            val root2 = find(parents, id2)
+            if (root1 == root2) {
+                return
+            }
+            val low = Math.min(root1, root2)
+            val high = Math.max(root1, root2)
+            if (parents.compareAndSet(high, high, low)) {
+                return
+            }
+        }
+    }
+
+    private inline fun forEachParallel(executor: ExecutorService?, threadCount: Int, count: Int, crossinline action: (Int) -> Unit) {
+        if (executor == null || threadCount < 2 || count < threadCount * 64) {
+            for (i in 0 until count) {
+                action(i)
+            }
+        } else {
+            val futures = ArrayList<Future<*>>(threadCount)
+            (0 until threadCount).mapTo(futures) {
+                executor.submit {
+                    for (i in it until count step threadCount) {
+                        action(i)
+                    }
+                }
+            }
+            futures.forEach { it.get() }
         }
-        return bodies
     }
 
     fun getConnectedIds(seed: Int, mask: LinkedHashSet<Int>): LinkedHashSet<Int> {
-        val connectedPoints = LinkedHashSet<Int>()
-        connectedPoints.add(seed)
-        var nextPoints = LinkedHashSet<Int>(connectedPoints)
-        while (nextPoints.isNotEmpty()) {
-            val newPoints = LinkedHashSet<Int>()
-            nextPoints.forEach {
-                vertices.getAdjacentVertices(it).forEach {
-                    if (mask.contains(it)) {
-                        newPoints.add(it)
+        return getConnectedIds(seed, VertexSet.of(vertices.size, mask)).toLinkedHashSet()
+    }
+
+    fun getConnectedIds(seed: Int, mask: VertexSet): VertexSet {
+        val connectedPoints = VertexSet(vertices.size)
+        connectedPoints.addId(seed)
+        var queue = IntArray(16)
+        var head = 0
+        var tail = 0
+        queue[tail++] = seed
+        while (head < tail) {
+            val adjacents = vertices.getAdjacentVertices(queue[head++])
+            for (i in 0 until adjacents.size) {
+                val adjacent = adjacents[i]
+                if (mask.containsId(adjacent) && connectedPoints.addId(adjacent)) {
+                    if (tail == queue.size) {
+                        queue = queue.copyOf(queue.size * 2)
                     }
+                    queue[tail++] = adjacent
                 }
             }
-            newPoints.removeAll(connectedPoints)
-            connectedPoints.addAll(newPoints)
-            nextPoints = newPoints
         }
         return connectedPoints
     }
 
     fun findBorderIds(ids: LinkedHashSet<Int>, mask: LinkedHashSet<Int>? = null, negate: Boolean = false): LinkedHashSet<Int> {
-        val borderIds = LinkedHashSet<Int>()
-        ids.forEach { id ->
+        val vertexMask = if (mask == null) null else VertexSet.of(vertices.size, mask)
+        return findBorderIds(VertexSet.of(vertices.size, ids), vertexMask, negate).toLinkedHashSet()
+    }
+
+    fun findBorderIds(ids: VertexSet, mask: VertexSet? = null, negate: Boolean = false): VertexSet {
+        val borderIds = VertexSet(vertices.size)
+        ids.forEachId { id ->
             val adjacents = vertices.getAdjacentVertices(id)
             for (i in 0..adjacents.size - 1) {
                 val adjacent = adjacents[i]
-                if (!ids.contains(adjacent)) {
+                if (!ids.containsId(adjacent)) {
                     if (mask == null) {
-                        borderIds.add(id)
+                        borderIds.addId(id)
                         break
                     } else {
-                        if (!negate && mask.contains(adjacent)) {
-                            borderIds.add(id)
+                        if (!negate && mask.containsId(adjacent)) {
+                            borderIds.addId(id)
                             break
-                        } else if (negate && !mask.contains(adjacent)) {
-                            borderIds.add(id)
+                        } else if (negate && !mask.containsId(adjacent)) {
+                            borderIds.addId(id)
                             break
                         }
                     }
@@ -704,7 +855,7 @@ class Graph(val seed: Long,
         return borderIds
     }
 
-    fun findBorder(ids: LinkedHashSet<Int>, mask: LinkedHashSet<Int>? = null, negate: Boolean = false, splices: ArrayList<Pair<LineSegment2F, Point2F>>? = null, useTriangles: Boolean): ArrayList<Polygon2F> {
+    fun findBorder(ids: Set<Int>, mask: Set<Int>? = null, negate: Boolean = false, splices: ArrayList<Pair<LineSegment2F, Point2F>>? = null, useTriangles: Boolean): ArrayList<Polygon2F> {
         val edges = findBorderEdges(ids, mask, negate, useTriangles)
         if (edges.isEmpty()) {
             return arrayListOf()
@@ -717,7 +868,7 @@ class Graph(val seed: Long,
         return borders
     }
 
-    fun findBorderEdges(ids: LinkedHashSet<Int>, mask: LinkedHashSet<Int>? = null, negate: Boolean = false, useTriangles: Boolean): List<LineSegment2F> {
+    fun findBorderEdges(ids: Set<Int>, mask: Set<Int>? = null, negate: Boolean = false, useTriangles: Boolean): List<LineSegment2F> {
         val borderIds = ArrayList<LineSegment2F>()
         ids.forEach { id ->
             vertices.getAdjacentVertices(id).forEach { adjacentId ->
@@ -19,26 +19,66 @@ class HistoryQueue<T>(private val limit: Int) : ObservableCollection<T> {
             newQueue._size = size
             return newQueue
         }
+
+        fun <T> deferred(head: Int, tail: Int, size: Int, limit: Int, bufferSize: Int, bufferLoader: () -> List<T?>): HistoryQueue<T> {
+            val newQueue = HistoryQueue<T>(limit)
+            newQueue.pendingBuffer = bufferLoader
+            newQueue.pendingBufferSize = bufferSize
+            newQueue.head = head
+            newQueue.tail = tail
+            newQueue._size = size
+            return newQueue
+        }
     }
 
     fun serializableData(): Quintuple<List<T?>, Int, Int, Int, Int> {
-        return Quintuple(ArrayList(buffer), head, tail, _size, limit)
+        lock.lock()
+        try {
+            ensureLoaded()
+            return Quintuple(ArrayList(buffer), head, tail, _size, limit)
+        } finally {
+            lock.unlock()
+        }
+    }
+
+    fun serializableHeader(): Quintuple<Int, Int, Int, Int, Int> {
+        lock.lock()
+        try {
+            val bufferSize = if (pendingBuffer != null) pendingBufferSize else buffer.size
+            return Quintuple(head, tail, _size, limit, bufferSize)
+        } finally {
+            lock.unlock()
+        }
     }
 
     fun copy(): HistoryQueue<T> {
-        val newQueue = HistoryQueue<T>(limit)
-        newQueue.buffer.addAll(ArrayList(buffer))
-        newQueue.head = head
-        newQueue.tail = tail
-        newQueue._size = _size
-        return newQueue
+        lock.lock()
+        try {
+            val newQueue = HistoryQueue<T>(limit)
+            newQueue.pendingBuffer = pendingBuffer
+            newQueue.pendingBufferSize = pendingBufferSize
+            newQueue.buffer = buffer
+            newQueue.isBufferShared = true
+            isBufferShared = true
+            newQueue.head = head
+            newQueue.tail = tail
+            newQueue._size = _size
+            newQueue._revision = _revision
+            return newQueue
+        } finally {
+            lock.unlock()
+        }
     }
 
-    private val buffer = ArrayList<T?>(limit)
+    private var buffer = ArrayList<T?>(limit)
+    private var isBufferShared = false
 
     private var head = 0
     private var tail = 0
     private var _size = 0
+    private var _revision = 0L
+    private var pendingBuffer: (() -> List<T?>)? = null
+    private var pendingBufferSize = 0
     private val lock = ReentrantLock()
 
     private val listeners: MutableList<(ModificationEvent<T?>) -> Unit> = CopyOnWriteArrayList()
@@ -52,6 +92,15 @@ class HistoryQueue<T>(private val limit: Int) : ObservableCollection<T> {
         }
     }
 
+    val revision: Long get() {
+        lock.lock()
+        try {
+            return _revision
+        } finally {
+            lock.unlock()
+        }
+    }
+
     override fun addListener(listener: (ModificationEvent<T?>) -> Unit): HistoryQueue<T> {
         listeners.add(listener)
         return this
@@ -64,6 +113,7 @@ class HistoryQueue<T>(private val limit: Int) : ObservableCollection<T> {
     fun push(value: T) {
         lock.lock()
         try {
+            prepareForWrite()
             if (_size < limit) {
                 if (buffer.size < limit && tail == buffer.size) {
                     buffer.add(value)
@@ -91,6 +141,7 @@ class HistoryQueue<T>(private val limit: Int) : ObservableCollection<T> {
             if (_size < 1) {
                 return null
             }
+            prepareForWrite()
             tail = ((tail - 1) + limit) % limit
             _size--
             val temp = buffer[tail]
@@ -109,6 +160,7 @@ class HistoryQueue<T>(private val limit: Int) : ObservableCollection<T> {
             if (_size < 1) {
                 throw IllegalStateException("Calling peek on empty queue.")
             }
+            ensureLoaded()
             return buffer[((tail - 1) + limit) % limit]!!
         } finally {
             lock.unlock()
@@ -121,11 +173,30 @@ class HistoryQueue<T>(private val limit: Int) : ObservableCollection<T> {
             head = 0
             tail = 0
             _size = 0
-            buffer.clear()
+            _revision++
+            pendingBuffer = null
+            buffer = ArrayList(limit)
+            isBufferShared = false
             val event = ModificationEvent<T>(CLEAR)
             listeners.forEach { it(event) }
         } finally {
             lock.unlock()
         }
     }
-}
\ No newline at end of file
+
+    private fun ensureLoaded() {
+        val loader = pendingBuffer ?: return
+        pendingBuffer = null
+        buffer = ArrayList(loader())
+        isBufferShared = false
+    }
+
+    private fun prepareForWrite() {
+        ensureLoaded()
+        if (isBufferShared) {
+            buffer = ArrayList(buffer)
+            isBufferShared = false
+        }
+        _revision++
+    }
+}
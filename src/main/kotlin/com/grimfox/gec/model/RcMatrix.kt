@@ -2,15 +2,20 @@ package com.grimfox.gec.model
 
 import java.io.*
 import java.lang.Math.sqrt
+import java.util.stream.IntStream
 import java.util.zip.*
 import kotlin.Float.Companion.NaN
 import kotlin.math.max
+import kotlin.math.min
 
 class RcMatrix(val rows: Int, val columns: Int, array: FloatArray? = null, init: ((Int) -> Float)? = null){
 
     companion object {
         val ALL = -1..-1
 
+        private const val BLOCK_SIZE = 64
+        private const val PARALLEL_THRESHOLD = 1 shl 18
+
         fun read(file: File) = DataInputStream(GZIPInputStream(file.inputStream().buffered()).buffered()).use { read(it) }
 
         fun read(input: DataInputStream): RcMatrix {
@@ -37,9 +42,18 @@ class RcMatrix(val rows: Int, val columns: Int, array: FloatArray? = null, init:
     operator fun set(row: Int, column: Int, value: Float) = set(row * columns + column, value)
 
     operator fun set(rowRange: IntRange, columnRange: IntRange, values: RcMatrix) {
-        (if (rowRange === ALL) allRows else rowRange).forEachIndexed { rowIndex, row ->
-            (if (columnRange === ALL) allColumns else columnRange).forEachIndexed { columnIndex, column ->
-                set(row, column, values[rowIndex, columnIndex])
+        val actualRowRange = if (rowRange === ALL) allRows else rowRange
+        val actualColumnRange = if (columnRange === ALL) allColumns else columnRange
+        val width = actualColumnRange.last - actualColumnRange.first + 1
+        if (width <= 0) return
+        if (width == 1) {
+            val column = actualColumnRange.first
+            actualRowRange.forEachIndexed { rowIndex, row ->
+                array[row * columns + column] = values.array[rowIndex * values.columns]
+            }
+        } else {
+            actualRowRange.forEachIndexed { rowIndex, row ->
+                System.arraycopy(values.array, rowIndex * values.columns, array, row * columns + actualColumnRange.first, width)
             }
         }
     }
@@ -56,91 +70,125 @@ class RcMatrix(val rows: Int, val columns: Int, array: FloatArray? = null, init:
         val actualRowRange = if (rowRange === ALL) allRows else rowRange
         val actualColumnRange = if (columnRange === ALL) allColumns else columnRange
         val output = RcMatrix(max(0, actualRowRange.last - actualRowRange.first + 1), max(0, actualColumnRange.last - actualColumnRange.first + 1))
-        actualRowRange.forEachIndexed { rowIndex, row ->
-            actualColumnRange.forEachIndexed { columnIndex, column ->
-                output[rowIndex, columnIndex] = get(row, column)
-            }
-        }
-        return output
+        return getInto(actualRowRange, actualColumnRange, output)
     }
 
     operator fun get(rowRange: IntRange, columnRange: IntRange, alpha: Float): RcMatrix {
+        val output = get(rowRange, columnRange)
+        return output.times(alpha, output)
+    }
+
+    operator fun get(row: Int, columnRange: IntRange) = get(row..row, columnRange)
+
+    operator fun get(rowRange: IntRange, column: Int) = get(rowRange, column..column)
+
+    fun getInto(rowRange: IntRange, columnRange: IntRange, output: RcMatrix): RcMatrix {
         val actualRowRange = if (rowRange === ALL) allRows else rowRange
         val actualColumnRange = if (columnRange === ALL) allColumns else columnRange
-        val output = RcMatrix(max(0, actualRowRange.last - actualRowRange.first + 1), max(0, actualColumnRange.last - actualColumnRange.first + 1))
-        actualRowRange.forEachIndexed { rowIndex, row ->
-            actualColumnRange.forEachIndexed { columnIndex, column ->
-                output[rowIndex, columnIndex] = get(row, column) * alpha
+        val width = actualColumnRange.last - actualColumnRange.first + 1
+        if (width <= 0) return output
+        if (width == 1) {
+            val column = actualColumnRange.first
+            actualRowRange.forEachIndexed { rowIndex, row ->
+                output.array[rowIndex * output.columns] = array[row * columns + column]
+            }
+        } else {
+            actualRowRange.forEachIndexed { rowIndex, row ->
+                System.arraycopy(array, row * columns + actualColumnRange.first, output.array, rowIndex * output.columns, width)
             }
         }
         return output
     }
 
-    operator fun get(row: Int, columnRange: IntRange) = get(row..row, columnRange)
-
-    operator fun get(rowRange: IntRange, column: Int) = get(rowRange, column..column)
+    fun copyColumn(column: Int, output: RcMatrix, outputColumn: Int) {
+        val source = array
+        val destination = output.array
+        val outputColumns = output.columns
+        for (row in 0 until rows) {
+            destination[row * outputColumns + outputColumn] = source[row * columns + column]
+        }
+    }
 
-    operator fun plus(other: RcMatrix): RcMatrix {
-        val output = RcMatrix(rows, columns)
-        for (i in 0 until size) {
-            output[i] = get(i) + other[i]
+    fun column(column: Int, output: FloatArray = FloatArray(rows)): FloatArray {
+        for (row in 0 until rows) {
+            output[row] = array[row * columns + column]
         }
         return output
     }
 
-    operator fun plus(scalar: Float): RcMatrix {
-        val output = RcMatrix(rows, columns)
-        for (i in 0 until size) {
-            output[i] = get(i) + scalar
-        }
+    operator fun plus(other: RcMatrix) = plus(other, RcMatrix(rows, columns))
+
+    operator fun plus(scalar: Float) = plus(scalar, RcMatrix(rows, columns))
+
+    operator fun minus(other: RcMatrix) = minus(other, RcMatrix(rows, columns))
+
+    operator fun minus(scalar: Float) = minus(scalar, RcMatrix(rows, columns))
+
+    operator fun times(other: RcMatrix) = times(other, RcMatrix(rows, columns))
+
+    operator fun times(scalar: Float) = times(scalar, RcMatrix(rows, columns))
+
+    operator fun div(other: RcMatrix) = div(other, RcMatrix(rows, columns))
+
+    operator fun div(scalar: Float) = div(scalar, RcMatrix(rows, columns))
+
+    fun plus(other: RcMatrix, output: RcMatrix): RcMatrix {
+        val a = array
+        val b = other.array
+        val c = output.array
+        forEachChunk { start, end -> for (i in start until end) c[i] = a[i] + b[i] }
         return output
     }
 
-    operator fun minus(other: RcMatrix): RcMatrix {
-        val output = RcMatrix(rows, columns)
-        for (i in 0 until size) {
-            output[i] = get(i) - other[i]
-        }
+    fun plus(scalar: Float, output: RcMatrix): RcMatrix {
+        val a = array
+        val c = output.array
+        forEachChunk { start, end -> for (i in start until end) c[i] = a[i] + scalar }
         return output
     }
 
-    operator fun minus(scalar: Float): RcMatrix {
-        val output = RcMatrix(rows, columns)
-        for (i in 0 until size) {
-            output[i] = get(i) - scalar
-        }
+    fun minus(other: RcMatrix, output: RcMatrix): RcMatrix {
+        val a = array
+        val b = other.array
+        val c = output.array
+        forEachChunk { start, end -> for (i in start until end) c[i] = a[i] - b[i] }
         return output
     }
 
-    operator fun times(other: RcMatrix): RcMatrix {
-        val output = RcMatrix(rows, columns)
-        for (i in 0 until size) {
-            output[i] = get(i) * other[i]
-        }
+    fun minus(scalar: Float, output: RcMatrix): RcMatrix {
+        val a = array
+        val c = output.array
+        forEachChunk { start, end -> for (i in start until end) c[i] = a[i] - scalar }
         return output
     }
 
-    operator fun times(scalar: Float): RcMatrix {
-        val output = RcMatrix(rows, columns)
-        for (i in 0 until size) {
-            output[i] = get(i) * scalar
-        }
+    fun times(other: RcMatrix, output: RcMatrix): RcMatrix {
+        val a = array
+        val b = other.array
+        val c = output.array
+        forEachChunk { start, end -> for (i in start until end) c[i] = a[i] * b[i] }
         return output
     }
 
-    operator fun div(other: RcMatrix): RcMatrix {
-        val output = RcMatrix(rows, columns)
-        for (i in 0 until size) {
-            output[i] = get(i) / other[i]
-        }
+    fun times(scalar: Float, output: RcMatrix): RcMatrix {
+        val a = array
+        val c = output.array
+        forEachChunk { start, end -> for (i in start until end) c[i] = a[i] * scalar }
         return output
     }
 
-    operator fun div(scalar: Float): RcMatrix {
-        val output = RcMatrix(rows, columns)
-        for (i in 0 until size) {
-            output[i] = get(i) / scalar
-        }
+    fun div(other: RcMatrix, output: RcMatrix): RcMatrix {
+        val a = array
+        val b = other.array
+        val c = output.array
+        forEachChunk { start, end -> for (i in start until end) c[i] = a[i] / b[i] }
+        return output
+    }
+
+    fun div(scalar: Float, output: RcMatrix): RcMatrix {
+        val a = array
+        val c = output.array
+        forEachChunk { start, end -> for (i in start until end) c[i] = a[i] / scalar }
         return output
     }
 
@@ -150,8 +198,9 @@ class RcMatrix(val rows: Int, val columns: Int, array: FloatArray? = null, init:
         var sum = 0.0
         var count = 0
         actualRowRange.forEach { row ->
-            actualColumnRange.forEach{ column ->
-                sum += get(row, column)
+            val offset = row * columns
+            for (column in actualColumnRange) {
+                sum += array[offset + column]
                 count++
             }
         }
@@ -163,8 +212,9 @@ class RcMatrix(val rows: Int, val columns: Int, array: FloatArray? = null, init:
         val actualColumnRange = if (columnRange === ALL) allColumns else columnRange
         var sum = 0.0
         actualRowRange.forEach { row ->
-            actualColumnRange.forEach{ column ->
-                sum += get(row, column)
+            val offset = row * columns
+            for (column in actualColumnRange) {
+                sum += array[offset + column]
             }
         }
         return sum.toFloat()
@@ -195,26 +245,44 @@ class RcMatrix(val rows: Int, val columns: Int, array: FloatArray? = null, init:
 
     fun max() = array.max() ?: NaN
 
-    fun transpose(): RcMatrix {
-        val output = RcMatrix(columns, rows)
-        for (row in 0 until rows) {
-            for (column in 0 until columns) {
-                output[column, row] = get(row, column)
-            }
+    fun transpose() = transpose(RcMatrix(columns, rows))
+
+    fun transpose(output: RcMatrix): RcMatrix {
+        if (output.rows != columns || output.columns != rows) {
+            throw IllegalArgumentException("Output: ${output.rows}x${output.columns} did not match ${columns}x$rows.")
+        }
+        if (output === this || output.array === array) {
+            throw IllegalArgumentException("Output must not alias the input.")
+        }
+        for (rowBlock in 0 until rows step BLOCK_SIZE) {
+            transposeBlockRow(rowBlock, output)
         }
         return output
     }
 
     fun asyncTranspose(): RcMatrix {
         val output = RcMatrix(columns, rows)
-        (0 until rows).toList().parallelStream().forEach { row ->
-            (0 until columns).forEach { column ->
-                output[column, row] = get(row, column)
-            }
+        IntStream.range(0, (rows + BLOCK_SIZE - 1) / BLOCK_SIZE).parallel().forEach { block ->
+            transposeBlockRow(block * BLOCK_SIZE, output)
         }
         return output
     }
 
+    private fun transposeBlockRow(rowBlock: Int, output: RcMatrix) {
+        val source = array
+        val destination = output.array
+        val rowEnd = min(rows, rowBlock + BLOCK_SIZE)
+        for (columnBlock in 0 until columns step BLOCK_SIZE) {
+            val columnEnd = min(columns, columnBlock + BLOCK_SIZE)
+            for (row in rowBlock until rowEnd) {
+                val rowOffset = row * columns
+                for (column in columnBlock until columnEnd) {
+                    destination[column * rows + row] = source[rowOffset + column]
+                }
+            }
+        }
+    }
+
     fun norm(row: Int, columnRange: IntRange): Float {
         val actualColumnRange = if (columnRange === ALL) allColumns else columnRange
         var sum = 0.0
@@ -247,21 +315,84 @@ class RcMatrix(val rows: Int, val columns: Int, array: FloatArray? = null, init:
         return output
     }
 
-    fun matrixMultiply(other: RcMatrix): RcMatrix {
+    fun matrixMultiply(other: RcMatrix) = matrixMultiply(other, RcMatrix(rows, other.columns))
+
+    fun matrixMultiply(other: RcMatrix, output: RcMatrix): RcMatrix {
+        checkMultiply(other, output)
+        output.array.fill(0.0f)
+        if (rows.toLong() * columns * other.columns >= PARALLEL_THRESHOLD) {
+            multiplyParallel(other, output)
+        } else {
+            for (rowBlock in 0 until rows step BLOCK_SIZE) {
+                multiplyBlockRow(rowBlock, other, output)
+            }
+        }
+        return output
+    }
+
+    fun asyncMatrixMultiply(other: RcMatrix) = asyncMatrixMultiply(other, RcMatrix(rows, other.columns))
+
+    fun asyncMatrixMultiply(other: RcMatrix, output: RcMatrix): RcMatrix {
+        checkMultiply(other, output)
+        output.array.fill(0.0f)
+        multiplyParallel(other, output)
+        return output
+    }
+
+    private fun checkMultiply(other: RcMatrix, output: RcMatrix) {
         if (columns != other.rows) {
             throw IllegalArgumentException("A.Columns: $columns did not match B.Rows ${other.rows}.")
         }
-        val output = RcMatrix(rows, other.columns)
-        for (i in 0 until rows) {
-            for (k in 0 until columns) {
-                val ik = get(i, k)
-                if (ik == 0.0f) continue
-                for (j in 0 until other.columns) {
-                    output[i, j] = output[i, j] + ik * other[k, j]
+        if (output.rows != rows || output.columns != other.columns) {
+            throw IllegalArgumentException("Output: ${output.rows}x${output.columns} did not match ${rows}x${other.columns}.")
+        }
+        if (output === this || output === other || output.array === array || output.array === other.array) {
+            throw IllegalArgumentException("Output must not alias an input.")
+        }
+    }
+
+    private fun multiplyParallel(other: RcMatrix, output: RcMatrix) {
+        IntStream.range(0, (rows + BLOCK_SIZE - 1) / BLOCK_SIZE).parallel().forEach { block ->
+            multiplyBlockRow(block * BLOCK_SIZE, other, output)
+        }
+    }
+
+    private fun multiplyBlockRow(rowBlock: Int, other: RcMatrix, output: RcMatrix) {
+        val a = array
+        val b = other.array
+        val c = output.array
+        val bColumns = other.columns
+        val rowEnd = min(rows, rowBlock + BLOCK_SIZE)
+        for (kBlock in 0 until columns step BLOCK_SIZE) {
+            val kEnd = min(columns, kBlock + BLOCK_SIZE)
+            for (jBlock in 0 until bColumns step BLOCK_SIZE) {
+                val jEnd = min(bColumns, jBlock + BLOCK_SIZE)
+                for (i in rowBlock until rowEnd) {
+                    val aOffset = i * columns
+                    val cOffset = i * bColumns
+                    for (k in kBlock until kEnd) {
+                        val ik = a[aOffset + k]
+                        if (ik == 0.0f) continue
+                        val bOffset = k * bColumns
+                        for (j in jBlock until jEnd) {
+                            c[cOffset + j] += ik * b[bOffset + j]
+                        }
+                    }
                 }
             }
         }
-        return output
+    }
+
+    private inline fun forEachChunk(crossinline block: (Int, Int) -> Unit) {
+        if (size >= PARALLEL_THRESHOLD) {
+            val chunkSize = BLOCK_SIZE * BLOCK_SIZE
+            IntStream.range(0, (size + chunkSize - 1) / chunkSize).parallel().forEach { chunk ->
+                val start = chunk * chunkSize
+                block(start, min(size, start + chunkSize))
+            }
+        } else {
+            block(0, size)
+        }
     }
 
     fun rotate90Clockwise() {
@@ -283,23 +414,6 @@ class RcMatrix(val rows: Int, val columns: Int, array: FloatArray? = null, init:
         }
     }
 
-    fun asyncMatrixMultiply(other: RcMatrix): RcMatrix {
-        if (columns != other.rows) {
-            throw IllegalArgumentException("A.Columns: $columns did not match B.Rows ${other.rows}.")
-        }
-        val output = RcMatrix(rows, other.columns)
-        (0 until rows).toList().parallelStream().forEach { i ->
-            for (k in 0 until columns) {
-                val ik = get(i, k)
-                if (ik == 0.0f) continue
-                for (j in 0 until other.columns) {
-                    output[i, j] = output[i, j] + ik * other[k, j]
-                }
-            }
-        }
-        return output
-    }
-
     fun write(file: File) = DataOutputStream(GZIPOutputStream(file.outputStream().buffered()).buffered()).use { write(it) }
 
     fun write(output: DataOutputStream) {
@@ -307,4 +421,4 @@ class RcMatrix(val rows: Int, val columns: Int, array: FloatArray? = null, init:
         output.writeInt(columns)
         array.forEach(output::writeFloat)
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,171 @@
+package com.grimfox.gec.model
+
+import java.util.*
+
+class VertexSet(private val capacity: Int) : AbstractMutableSet<Int>() {
+
+    companion object {
+
+        fun of(capacity: Int, ids: Iterable<Int>): VertexSet {
+            val set = VertexSet(capacity)
+            ids.forEach { set.addId(it) }
+            return set
+        }
+    }
+
+    private val members = BitSet()
+    @PublishedApi internal var order = IntArray(16)
+    @PublishedApi internal var tail = 0
+    private var positions: IntArray? = null
+    private var count = 0
+
+    override val size: Int
+        get() = count
+
+    fun containsId(id: Int) = id >= 0 && members.get(id)
+
+    fun addId(id: Int): Boolean {
+        if (members.get(id)) {
+            return false
+        }
+        members.set(id)
+        if (tail == order.size) {
+            if (tail - count > count) {
+                compact()
+            }
+            if (tail == order.size) {
+                order = order.copyOf(Math.min(Math.max(16, order.size * 2), Math.max(capacity, tail + 1)))
+            }
+        }
+        positions?.set(id, tail)
+        order[tail++] = id
+        count++
+        return true
+    }
+
+    fun removeId(id: Int): Boolean {
+        if (!containsId(id)) {
+            return false
+        }
+        members.clear(id)
+        order[positionOf(id)] = -1
+        count--
+        if (count == 0) {
+            tail = 0
+        }
+        return true
+    }
+
+    fun firstId(): Int {
+        for (i in 0 until tail) {
+            val id = order[i]
+            if (id >= 0) {
+                return id
+            }
+        }
+        throw NoSuchElementException()
+    }
+
+    inline fun forEachId(action: (Int) -> Unit) {
+        val order = order
+        val tail = tail
+        for (i in 0 until tail) {
+            val id = order[i]
+            if (id >= 0) {
+                action(id)
+            }
+        }
+    }
+
+    fun toIntArray(): IntArray {
+        val output = IntArray(count)
+        var i = 0
+        forEachId { output[i++] = it }
+        return output
+    }
+
+    fun toLinkedHashSet(): LinkedHashSet<Int> {
+        val output = LinkedHashSet<Int>(count)
+        forEachId { output.add(it) }
+        return output
+    }
+
+    override fun contains(element: Int) = containsId(element)
+
+    override fun add(element: Int) = addId(element)
+
+    override fun remove(element: Int) = removeId(element)
+
+    override fun clear() {
+        members.clear()
+        positions = null
+        tail = 0
+        count = 0
+    }
+
+    override fun iterator(): MutableIterator<Int> {
+        return object : MutableIterator<Int> {
+
+            private var next = advance(0)
+            private var last = -1
+
+            private fun advance(from: Int): Int {
+                var i = from
+                while (i < tail && order[i] < 0) {
+                    i++
+                }
+                return i
+            }
+
+            override fun hasNext() = next < tail
+
+            override fun next(): Int {
+                if (next >= tail) {
+                    throw NoSuchElementException()
+                }
+                last = order[next]
+                next = advance(next + 1)
+                return last
+            }
+
+            override fun remove() {
+                if (last < 0) {
+                    throw IllegalStateException()
+                }
+                members.clear(last)
+                order[positionOf(last)] = -1
+                count--
+                last = -1
+            }
+        }
+    }
+
+    private fun positionOf(id: Int): Int {
+        var positions = positions
+        if (positions == null) {
+            positions = IntArray(capacity)
+            for (i in 0 until tail) {
+                val orderId = order[i]
+                if (orderId >= 0) {
+                    positions[orderId] = i
+                }
+            }
+            this.positions = positions
+        }
+        return positions[id]
+    }
+
+    private fun compact() {
+        var write = 0
+        val positions = positions
+        for (i in 0 until tail) {
+            val id = order[i]
+            if (id >= 0) {
+                order[write] = id
+                positions?.set(id, write)
+                write++
+            }
+        }
+        tail = write
+    }
+}
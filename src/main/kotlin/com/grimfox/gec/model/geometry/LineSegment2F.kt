@@ -8,13 +8,13 @@ open class LineSegment2F(open var a: Point2F, open var b: Point2F) {
 
         fun getConnectedEdgeSegments(edgeSet: Collection<LineSegment2F>, epsilon: Float = 0.000001f): ArrayList<ArrayList<LineSegment2F>> {
             val segments = ArrayList<ArrayList<LineSegment2F>>()
-            val unconnected = LinkedHashSet<LineSegment2F>(edgeSet)
-            while (unconnected.isNotEmpty()) {
-                val seed = unconnected.first()
-                unconnected.remove(seed)
-                val segment = seed.getConnectedEdges(edgeSet, epsilon)
-                unconnected.removeAll(segment)
-                segments.add(segment)
+            val index = EdgeIndex(edgeSet, epsilon)
+            val visited = BooleanArray(index.edges.size)
+            for (i in 0 until index.edges.size) {
+                if (!visited[i]) {
+                    visited[i] = true
+                    segments.add(index.getConnectedEdges(index.edges[i], visited))
+                }
             }
             return segments
         }
@@ -266,29 +266,60 @@ open class LineSegment2F(open var a: Point2F, open var b: Point2F) {
     }
 
     fun getConnectedEdges(edgeSet: Collection<LineSegment2F>, epsilon: Float = 0.000001f): ArrayList<LineSegment2F> {
-        val unconnected = LinkedHashSet(edgeSet)
-        val connectedEdges = ArrayList<LineSegment2F>()
-        connectedEdges.add(this)
-        var nextEdges = LinkedHashSet<LineSegment2F>(connectedEdges)
-        while (nextEdges.isNotEmpty()) {
-            val newEdges = LinkedHashSet<LineSegment2F>()
-            nextEdges.forEach { edge ->
-                unconnected.forEach {
-                    if (edge.a.epsilonEquals(it.a, epsilon)
-                            || edge.a.epsilonEquals(it.b, epsilon)
-                            || edge.b.epsilonEquals(it.a, epsilon)
-                            || edge.b.epsilonEquals(it.b, epsilon)) {
-                        if (!connectedEdges.contains(it)) {
-                            newEdges.add(it)
-                            connectedEdges.add(it)
+        val index = EdgeIndex(edgeSet, epsilon)
+        val visited = BooleanArray(index.edges.size)
+        index.edges.forEachIndexed { i, edge ->
+            if (edge === this) {
+                visited[i] = true
+            }
+        }
+        return index.getConnectedEdges(this, visited)
+    }
+
+    private class EdgeIndex(edgeSet: Collection<LineSegment2F>, private val epsilon: Float) {
+
+        val edges = ArrayList(LinkedHashSet(edgeSet))
+        private val endpoints = PointIndex(epsilon)
+
+        init {
+            edges.forEachIndexed { i, edge ->
+                endpoints.add(edge.a, i)
+                endpoints.add(edge.b, i)
+            }
+        }
+
+        fun getConnectedEdges(seed: LineSegment2F, visited: BooleanArray): ArrayList<LineSegment2F> {
+            val connectedEdges = ArrayList<LineSegment2F>()
+            connectedEdges.add(seed)
+            var nextEdges = ArrayList<LineSegment2F>(connectedEdges)
+            val candidates = TreeSet<Int>()
+            while (nextEdges.isNotEmpty()) {
+                val newEdges = ArrayList<LineSegment2F>()
+                nextEdges.forEach { edge ->
+                    val collect: (Int) -> Unit = { i ->
+                        if (!visited[i]) {
+                            val other = edges[i]
+                            if (edge.a.epsilonEquals(other.a, epsilon)
+                                    || edge.a.epsilonEquals(other.b, epsilon)
+                                    || edge.b.epsilonEquals(other.a, epsilon)
+                                    || edge.b.epsilonEquals(other.b, epsilon)) {
+                                candidates.add(i)
+                            }
                         }
                     }
+                    endpoints.forEachCandidate(edge.a, collect)
+                    endpoints.forEachCandidate(edge.b, collect)
+                    candidates.forEach { i ->
+                        visited[i] = true
+                        newEdges.add(edges[i])
+                        connectedEdges.add(edges[i])
+                    }
+                    candidates.clear()
                 }
+                nextEdges = newEdges
             }
-            unconnected.removeAll(newEdges)
-            nextEdges = newEdges
+            return connectedEdges
         }
-        return connectedEdges
     }
 
     fun getConnectedEdgesAlt(edgeSet: Collection<LineSegment2F>, epsilon: Float = 0.000001f): ArrayList<LineSegment2F> {
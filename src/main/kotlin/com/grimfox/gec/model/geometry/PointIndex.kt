@@ -0,0 +1,38 @@
+package com.grimfox.gec.model.geometry
+
+import java.util.*
+import kotlin.math.floor
+import kotlin.math.max
+
+class PointIndex(epsilon: Float) {
+
+    private val cellSize = max(epsilon, 0.000001f) * 2.0f
+    private val cells = HashMap<Long, ArrayList<Int>>()
+
+    fun add(point: Point2F, id: Int) {
+        cells.getOrPut(key(cell(point.x), cell(point.y))) { ArrayList(2) }.add(id)
+    }
+
+    fun remove(point: Point2F, id: Int) {
+        val key = key(cell(point.x), cell(point.y))
+        val bucket = cells[key] ?: return
+        bucket.remove(id)
+        if (bucket.isEmpty()) {
+            cells.remove(key)
+        }
+    }
+
+    fun forEachCandidate(point: Point2F, callback: (Int) -> Unit) {
+        val cx = cell(point.x)
+        val cy = cell(point.y)
+        for (x in cx - 1..cx + 1) {
+            for (y in cy - 1..cy + 1) {
+                cells[key(x, y)]?.forEach(callback)
+            }
+        }
+    }
+
+    private fun cell(value: Float) = floor(value / cellSize).toLong()
+
+    private fun key(x: Long, y: Long) = (x shl 32) xor (y and 0xFFFFFFFFL)
+}
@@ -8,10 +8,39 @@ class Polygon2F(val points: List<Point2F>, val isClosed: Boolean) {
 
         fun fromUnsortedEdges(edges: Collection<LineSegment2F>, splices: ArrayList<Pair<LineSegment2F, Point2F>>? = null, reusePoints: Boolean = false, epsilon: Float = 0.000001f): Polygon2F {
             val polygons = ArrayList<Polygon2F>()
-            val mutableEdges = ArrayList(edges)
-            while (mutableEdges.isNotEmpty()) {
-                val border = ArrayList<Point2F>(mutableEdges.size + 1)
-                val seedEdge = mutableEdges.removeAt(0)
+            val edgeList = ArrayList(edges)
+            val removed = BooleanArray(edgeList.size)
+            val startPoints = PointIndex(epsilon)
+            val endPoints = PointIndex(epsilon)
+            edgeList.forEachIndexed { i, edge ->
+                startPoints.add(edge.a, i)
+                endPoints.add(edge.b, i)
+            }
+            var remaining = edgeList.size
+            var nextSeed = 0
+            fun take(i: Int): LineSegment2F {
+                val edge = edgeList[i]
+                removed[i] = true
+                startPoints.remove(edge.a, i)
+                endPoints.remove(edge.b, i)
+                remaining--
+                return edge
+            }
+            fun firstMatch(index: PointIndex, point: Point2F, endpoint: (LineSegment2F) -> Point2F): Int {
+                var first = -1
+                index.forEachCandidate(point) { i ->
+                    if (!removed[i] && (first == -1 || i < first) && point.epsilonEquals(endpoint(edgeList[i]), epsilon)) {
+                        first = i
+                    }
+                }
+                return first
+            }
+            while (remaining > 0) {
+                while (removed[nextSeed]) {
+                    nextSeed++
+                }
+                val border = ArrayList<Point2F>(remaining + 1)
+                val seedEdge = take(nextSeed)
                 border.add(seedEdge.a)
                 splices?.forEach {
                     if (it.first.epsilonEquals(seedEdge, epsilon)) {
@@ -20,46 +49,30 @@ class Polygon2F(val points: List<Point2F>, val isClosed: Boolean) {
                 }
                 border.add(seedEdge.b)
                 var currentEdge = seedEdge
-                while (mutableEdges.isNotEmpty()) {
-                    var nextEdge: LineSegment2F? = null
-                    for (i in 0..mutableEdges.size - 1) {
-                        if (currentEdge.a.epsilonEquals(mutableEdges[i].b, epsilon)) {
-                            nextEdge = mutableEdges.removeAt(i)
-                            break
-                        }
-                    }
-                    if (nextEdge == null) {
+                while (remaining > 0) {
+                    val nextIndex = firstMatch(endPoints, currentEdge.a) { it.b }
+                    if (nextIndex == -1) {
                         break
                     }
+                    val nextEdge = take(nextIndex)
                     splices?.forEach {
-                        val finalNextEdge = nextEdge
-                        if (finalNextEdge != null) {
-                            if (it.first.epsilonEquals(finalNextEdge, epsilon)) {
-                                border.add(0, it.second)
-                            }
+                        if (it.first.epsilonEquals(nextEdge, epsilon)) {
+                            border.add(0, it.second)
                         }
                     }
                     border.add(0, nextEdge.a)
                     currentEdge = nextEdge
                 }
                 currentEdge = seedEdge
-                while (mutableEdges.isNotEmpty()) {
-                    var nextEdge: LineSegment2F? = null
-                    for (i in 0..mutableEdges.size - 1) {
-                        if (currentEdge.b.epsilonEquals(mutableEdges[i].a, epsilon)) {
-                            nextEdge = mutableEdges.removeAt(i)
-                            break
-                        }
-                    }
-                    if (nextEdge == null) {
+                while (remaining > 0) {
+                    val nextIndex = firstMatch(startPoints, currentEdge.b) { it.a }
+                    if (nextIndex == -1) {
                         break
                     }
+                    val nextEdge = take(nextIndex)
                     splices?.forEach {
-                        val finalNextEdge = nextEdge
-                        if (finalNextEdge != null) {
-                            if (it.first.epsilonEquals(finalNextEdge, epsilon)) {
-                                border.add(it.second)
-                            }
+                        if (it.first.epsilonEquals(nextEdge, epsilon)) {
+                            border.add(it.second)
                         }
                     }
                     border.add(nextEdge.b)
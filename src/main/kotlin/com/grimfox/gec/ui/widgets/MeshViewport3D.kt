@@ -128,6 +128,8 @@ class MeshViewport3D(
     private val horizonBlendUniform = ShaderUniform("horizonBlend")
     private val lightMaxFogEffectUniform = ShaderUniform("lightMaxFogEffect")
     private val heightMapTextureUniform = ShaderUniform("heightMapTexture")
+    private val tilePositionUniform = ShaderUniform("tilePosition")
+    private val tileUvUniform = ShaderUniform("tileUv")
     private val normalAoTextureUniform = ShaderUniform("normalAoTexture")
     private val fogParamsUniform = ShaderUniform("fogParams")
     private val riverMapTextureUniform = ShaderUniform("riverMapTexture")
@@ -273,7 +275,7 @@ class MeshViewport3D(
 
     private var isFlyModeOn = false
 
-    private lateinit var heightMap: HexGrid
+    private lateinit var heightMap: ClipmapGrid
 
     private lateinit var waterPlane: HexGrid
 
@@ -405,6 +407,8 @@ class MeshViewport3D(
                         horizonBlendUniform,
                         lightMaxFogEffectUniform,
                         heightMapTextureUniform,
+                        tilePositionUniform,
+                        tileUvUniform,
                         normalAoTextureUniform,
                         fogParamsUniform,
                         riverMapTextureUniform,
@@ -478,7 +482,7 @@ class MeshViewport3D(
                         inscatterHorizonTextureUniformSky
                 ))
 
-        heightMap = HexGrid(VIEWPORT_MESH_SCALE - 40.0f, 10000, positionAttribute, uvAttribute, true)
+        heightMap = ClipmapGrid(VIEWPORT_MESH_SCALE - 40.0f, 64, 8, 2.0f, positionAttribute, uvAttribute)
 
         waterPlane = HexGrid(100000.0f, 16, positionAttributeWater, uvAttributeWater, true)
 
@@ -1175,7 +1179,7 @@ class MeshViewport3D(
         glActiveTexture(GL_TEXTURE8)
         glBindTexture(GL_TEXTURE_2D, inscatterHorizonTexture.id)
 
-        heightMap.render()
+        heightMap.render(cameraPosition.x, cameraPosition.y, cameraPosition.z, heightMapScaleFactor.value, tilePositionUniform, tileUvUniform)
     }
 
     private fun drawWaterPlane(lightColor: Quadruple<Float, Float, Float, Float>) {
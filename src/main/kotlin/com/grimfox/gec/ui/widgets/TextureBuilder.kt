@@ -16,6 +16,7 @@ import java.nio.FloatBuffer
 import java.nio.ShortBuffer
 import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicLong
 
 object TextureBuilder {
 
@@ -31,9 +32,12 @@ object TextureBuilder {
 
     private val deadTextureQueue = ConcurrentLinkedQueue<Int>()
     private val deadProgramQueue = ConcurrentLinkedQueue<Int>()
+    private val textureGenerations = AtomicLong()
 
     class TextureId(val id: Int) {
 
+        val generation = textureGenerations.incrementAndGet()
+
         @Volatile private var free: Boolean = false
 
         fun free() {
@@ -3,6 +3,8 @@ package com.grimfox.gec.util
 import com.grimfox.gec.model.*
 import com.grimfox.gec.model.Graph.Vertices
 import com.grimfox.gec.model.geometry.*
+import com.grimfox.gec.executor
+import com.grimfox.gec.threadCount
 import com.grimfox.gec.ui.widgets.TextureBuilder.TextureId
 import com.grimfox.gec.util.Biomes.Biome
 import com.grimfox.gec.util.Coastline.applyMask
@@ -13,6 +15,7 @@ import com.grimfox.gec.util.WaterFlows.generateWaterFlows
 import java.io.*
 import java.util.*
 import java.util.concurrent.ExecutorService
+import java.util.concurrent.Future
 import kotlin.collections.ArrayList
 import kotlin.collections.LinkedHashSet
 
@@ -193,38 +196,40 @@ object BuildContinent {
         }
         val biomeGraphMidFuture = executor.call {
             val graph = Graphs.generateGraph(28, randomSeeds[1], 0.98)
-            val vertices = graph.vertices
             val (parentGraph, parentMask) = biomeGraphSmallFuture.value
-            val mask = ByteArrayMatrix(graph.stride!!) { i ->
-                val point = vertices[i].point
-                parentMask[parentGraph.getClosestPoint(point, parentGraph.getClosePoints(point, 2))]
-            }
-            graph to mask
+            graph to buildChildMask(executor, graph, parentGraph, parentMask)
         }
         val biomeGraphHighFuture = executor.call {
             val graph = Graphs.generateGraph(72, randomSeeds[2], 0.88)
-            val vertices = graph.vertices
             val (parentGraph, parentMask) = biomeGraphMidFuture.value
-            val mask = ByteArrayMatrix(graph.stride!!) { i ->
-                val point = vertices[i].point
-                parentMask[parentGraph.getClosestPoint(point, parentGraph.getClosePoints(point, 2))]
-            }
-            graph to mask
+            graph to buildChildMask(executor, graph, parentGraph, parentMask)
         }
         val biomeGraphFinalFuture = executor.call {
-            val graph = inputGraph
-            val vertices = graph.vertices
             val (parentGraph, parentMask) = biomeGraphHighFuture.value
-            val mask = ByteArrayMatrix(inputGraph.stride!!) { i ->
-                val vertex = vertices[i]
-                val point = vertex.point
-                parentMask[parentGraph.getClosestPoint(point, parentGraph.getClosePoints(point, 2))]
-            }
-            graph to mask
+            inputGraph to buildChildMask(executor, inputGraph, parentGraph, parentMask)
         }
         return biomeGraphFinalFuture.value
     }
 
+    private fun buildChildMask(executor: ExecutorService, graph: Graph, parentGraph: Graph, parentMask: ByteArrayMatrix): ByteArrayMatrix {
+        val stride = graph.stride!!
+        val points = graph.vertexIdsToPoints
+        val parentArray = parentMask.array
+        val maskArray = ByteArray(stride * stride)
+        val futures = ArrayList<Future<*>>(threadCount)
+        (0 until threadCount).mapTo(futures) {
+            executor.submit {
+                for (y in it until stride step threadCount) {
+                    for (i in y * stride until (y + 1) * stride) {
+                        maskArray[i] = parentArray[parentGraph.getClosestGridPoint(points[i * 2], points[i * 2 + 1])]
+                    }
+                }
+            }
+        }
+        futures.forEach(Future<*>::join)
+        return ByteArrayMatrix(stride, maskArray)
+    }
+
     data class RegionSplines(
             val hasCustomizations: Boolean,
             val coastEdges: List<Pair<List<LineSegment2F>, List<List<LineSegment2F>>>>,
@@ -405,10 +410,19 @@ object BuildContinent {
 
     fun findAllBorderSegments(random: Random, graph: Graph, regionMask: Matrix<Byte>, regionCount: Int, land: LinkedHashSet<Int>, water: LinkedHashSet<Int>): Triple<ArrayList<Pair<ArrayList<Polygon2F>, ArrayList<ArrayList<Polygon2F>>>>, ArrayList<Polygon2F>, ArrayList<Polygon2F>> {
         val borderPoints = graph.vertices.asSequence().filter { it.cell.isBorder }.map { it.id }.toList()
-        val waterBodies = graph.getConnectedBodies(water)
-        val landBodies = graph.getConnectedBodies(land)
-        val oceanWaterBodies = waterBodies.filter { it.containsAny(borderPoints) }
-        val lakeWaterBodies = ArrayList(waterBodies.filter { !oceanWaterBodies.contains(it) })
+        val waterMask = VertexSet.of(graph.vertices.size, water)
+        val waterComponents = graph.labelConnectedComponents(waterMask, executor, threadCount)
+        val waterBodies = graph.getConnectedBodies(waterComponents, waterMask, executor, threadCount).map { it.toLinkedHashSet() }
+        val landBodies = graph.getConnectedBodies(VertexSet.of(graph.vertices.size, land), executor, threadCount).mapTo(ArrayList()) { it.toLinkedHashSet() }
+        val oceanLabels = BitSet(waterBodies.size)
+        borderPoints.forEach {
+            val label = waterComponents.labels[it]
+            if (label >= 0) {
+                oceanLabels.set(label)
+            }
+        }
+        val oceanWaterBodies = waterBodies.filterIndexed { i, _ -> oceanLabels.get(i) }
+        val lakeWaterBodies = ArrayList(waterBodies.filterIndexed { i, _ -> !oceanLabels.get(i) })
         val oceanWater = oceanWaterBodies.flatMapTo(LinkedHashSet<Int>()) { it }
         val ocean = findNestedBodies(graph, listOf(oceanWater), landBodies, lakeWaterBodies, regionCount).first()
         val vertices = graph.vertices
@@ -872,7 +886,8 @@ object BuildContinent {
             biomeTemplates: Biomes,
             renderLevel: Int,
             colorHeightScaleFactor: MutableReference<Float>? = null,
-            exportFiles: WaterFlows.ExportFiles? = null): Triple<TextureId?, TextureId?, TextureId?> {
+            exportFiles: WaterFlows.ExportFiles? = null,
+            onLevelReady: ((Triple<TextureId?, TextureId?, TextureId?>) -> Unit)? = null): Triple<TextureId?, TextureId?, TextureId?> {
         return generateWaterFlows(
                 random = Random(parameterSet.regionsSeed),
                 regionSplines = regionSplines,
@@ -892,6 +907,7 @@ object BuildContinent {
                 biomeTemplates = biomeTemplates,
                 renderLevel = renderLevel,
                 colorHeightScaleFactor = colorHeightScaleFactor,
-                exportFiles = exportFiles)
+                exportFiles = exportFiles,
+                onLevelReady = onLevelReady)
     }
 }
@@ -0,0 +1,235 @@
+package com.grimfox.gec.util
+
+import com.grimfox.logging.LOG
+import org.lwjgl.BufferUtils
+import org.lwjgl.opengl.*
+import java.util.*
+
+class ClipmapGrid(val width: Float, private val tileResolution: Int, private val maxLevel: Int, private val lodFactor: Float, positionAttribute: ShaderAttribute, uvAttribute: ShaderAttribute) {
+
+    companion object {
+
+        const val STITCH_SOUTH = 1
+        const val STITCH_EAST = 2
+        const val STITCH_NORTH = 4
+        const val STITCH_WEST = 8
+
+        private val directions = arrayOf(intArrayOf(0, -1, STITCH_SOUTH), intArrayOf(1, 0, STITCH_EAST), intArrayOf(0, 1, STITCH_NORTH), intArrayOf(-1, 0, STITCH_WEST))
+
+        fun buildIndices(resolution: Int, stitchMask: Int): IntArray {
+            val rowWidth = resolution + 1
+            fun vertex(x: Int, y: Int): Int {
+                var snappedX = x
+                var snappedY = y
+                if (snappedX % 2 == 1 && ((y == 0 && stitchMask and STITCH_SOUTH != 0) || (y == resolution && stitchMask and STITCH_NORTH != 0))) {
+                    snappedX--
+                }
+                if (snappedY % 2 == 1 && ((x == 0 && stitchMask and STITCH_WEST != 0) || (x == resolution && stitchMask and STITCH_EAST != 0))) {
+                    snappedY--
+                }
+                return snappedY * rowWidth + snappedX
+            }
+            val indices = IntArray(resolution * resolution * 6)
+            var count = 0
+            fun triangle(a: Int, b: Int, c: Int) {
+                if (a != b && b != c && c != a) {
+                    indices[count++] = a
+                    indices[count++] = b
+                    indices[count++] = c
+                }
+            }
+            for (y in 0 until resolution) {
+                for (x in 0 until resolution) {
+                    val a = vertex(x, y)
+                    val b = vertex(x + 1, y)
+                    val c = vertex(x, y + 1)
+                    val d = vertex(x + 1, y + 1)
+                    triangle(a, b, d)
+                    triangle(a, d, c)
+                }
+            }
+            return indices.copyOf(count)
+        }
+
+        fun selectTiles(maxLevel: Int, lodFactor: Float, cameraX: Float, cameraY: Float, cameraZ: Float, maxHeight: Float): List<Tile> {
+            val nodes = HashSet<Long>()
+            val splitNodes = HashSet<Long>()
+            fun refine(level: Int, x: Int, y: Int) {
+                nodes.add(key(level, x, y))
+                if (level < maxLevel && distance(level, x, y, cameraX, cameraY, cameraZ, maxHeight) < lodFactor * tileSize(level)) {
+                    splitNodes.add(key(level, x, y))
+                    for (i in 0..3) {
+                        refine(level + 1, x * 2 + (i and 1), y * 2 + (i shr 1))
+                    }
+                }
+            }
+            refine(0, 0, 0)
+            var changed = true
+            while (changed) {
+                changed = false
+                ArrayList(nodes).forEach { node ->
+                    val level = level(node)
+                    if (level < maxLevel - 1 && !splitNodes.contains(node) && hasDeepNeighbor(splitNodes, level, x(node), y(node))) {
+                        splitNodes.add(node)
+                        for (i in 0..3) {
+                            nodes.add(key(level + 1, x(node) * 2 + (i and 1), y(node) * 2 + (i shr 1)))
+                        }
+                        changed = true
+                    }
+                }
+            }
+            val tiles = ArrayList<Tile>()
+            nodes.forEach { node ->
+                if (!splitNodes.contains(node)) {
+                    val level = level(node)
+                    val x = x(node)
+                    val y = y(node)
+                    val tilesPerSide = 1 shl level
+                    var stitchMask = 0
+                    directions.forEach { (dx, dy, flag) ->
+                        val nx = x + dx
+                        val ny = y + dy
+                        if (nx in 0 until tilesPerSide && ny in 0 until tilesPerSide && !nodes.contains(key(level, nx, ny))) {
+                            stitchMask = stitchMask or flag
+                        }
+                    }
+                    tiles.add(Tile(level, x, y, stitchMask, distance(level, x, y, cameraX, cameraY, cameraZ, maxHeight)))
+                }
+            }
+            tiles.sortBy { it.distance }
+            return tiles
+        }
+
+        private fun hasDeepNeighbor(splitNodes: Set<Long>, level: Int, x: Int, y: Int): Boolean {
+            val tilesPerSide = 1 shl level
+            directions.forEach { (dx, dy) ->
+                val nx = x + dx
+                val ny = y + dy
+                if (nx in 0 until tilesPerSide && ny in 0 until tilesPerSide && splitNodes.contains(key(level, nx, ny))) {
+                    for (i in 0..1) {
+                        val cx = if (dx == 0) nx * 2 + i else nx * 2 + if (dx > 0) 0 else 1
+                        val cy = if (dy == 0) ny * 2 + i else ny * 2 + if (dy > 0) 0 else 1
+                        if (splitNodes.contains(key(level + 1, cx, cy))) {
+                            return true
+                        }
+                    }
+                }
+            }
+            return false
+        }
+
+        private fun tileSize(level: Int) = 1.0f / (1 shl level)
+
+        private fun distance(level: Int, x: Int, y: Int, cameraX: Float, cameraY: Float, cameraZ: Float, maxHeight: Float): Float {
+            val size = tileSize(level)
+            val minX = x * size - 0.5f
+            val minY = y * size - 0.5f
+            val dx = Math.max(0.0f, Math.max(minX - cameraX, cameraX - (minX + size)))
+            val dy = Math.max(0.0f, Math.max(minY - cameraY, cameraY - (minY + size)))
+            val dz = Math.max(0.0f, Math.max(-cameraZ, cameraZ - maxHeight))
+            return Math.sqrt((dx * dx + dy * dy + dz * dz).toDouble()).toFloat()
+        }
+
+        private fun key(level: Int, x: Int, y: Int) = (level.toLong() shl 48) or (x.toLong() shl 24) or y.toLong()
+
+        private fun level(key: Long) = (key ushr 48).toInt()
+
+        private fun x(key: Long) = ((key ushr 24) and 0xFFFFFF).toInt()
+
+        private fun y(key: Long) = (key and 0xFFFFFF).toInt()
+    }
+
+    class Tile(val level: Int, val x: Int, val y: Int, val stitchMask: Int, val distance: Float)
+
+    private val indexOffsets = IntArray(16)
+    private val indexCounts = IntArray(16)
+
+    private var vao = 0
+
+    init {
+        try {
+            val floatsPerVertex = 4
+            val rowWidth = tileResolution + 1
+            val vertexData = BufferUtils.createFloatBuffer(rowWidth * rowWidth * floatsPerVertex)
+            for (y in 0 until rowWidth) {
+                val v = y / tileResolution.toFloat()
+                for (x in 0 until rowWidth) {
+                    val u = x / tileResolution.toFloat()
+                    vertexData.put(u).put(v).put(u).put(v)
+                }
+            }
+            vertexData.flip()
+            val variants = (0 until 16).map { buildIndices(tileResolution, it) }
+            val indexData = BufferUtils.createIntBuffer(variants.sumBy { it.size })
+            variants.forEachIndexed { i, indices ->
+                indexOffsets[i] = indexData.position()
+                indexCounts[i] = indices.size
+                indexData.put(indices)
+            }
+            indexData.flip()
+
+            vao = GL30.glGenVertexArrays()
+
+            if (vao > 0) {
+
+                val stride = floatsPerVertex * 4
+                GL30.glBindVertexArray(vao)
+
+                val vbo = GL15.glGenBuffers()
+                val ibo = GL15.glGenBuffers()
+
+                if (vbo > 0 && ibo > 0) {
+                    GL15.glBindBuffer(GL15.GL_ARRAY_BUFFER, vbo)
+
+                    GL15.glBufferData(GL15.GL_ARRAY_BUFFER, vertexData, GL15.GL_STATIC_DRAW)
+
+                    if (positionAttribute.location >= 0) {
+                        GL20.glEnableVertexAttribArray(positionAttribute.location)
+                        GL20.glVertexAttribPointer(positionAttribute.location, 2, GL11.GL_FLOAT, false, stride, 0)
+                    }
+
+                    if (uvAttribute.location >= 0) {
+                        GL20.glEnableVertexAttribArray(uvAttribute.location)
+                        GL20.glVertexAttribPointer(uvAttribute.location, 2, GL11.GL_FLOAT, false, stride, 8)
+                    }
+
+                    GL15.glBindBuffer(GL15.GL_ELEMENT_ARRAY_BUFFER, ibo)
+
+                    GL15.glBufferData(GL15.GL_ELEMENT_ARRAY_BUFFER, indexData, GL15.GL_STATIC_DRAW)
+
+                } else {
+                    throw RuntimeException("error setting up buffers")
+                }
+
+                GL30.glBindVertexArray(0)
+
+                GL15.glDeleteBuffers(vbo)
+                GL15.glDeleteBuffers(ibo)
+            } else {
+                throw RuntimeException("error generating vao")
+            }
+        } catch (t: Throwable) {
+            LOG.error(t)
+            throw t
+        }
+    }
+
+    fun render(cameraX: Float, cameraY: Float, cameraZ: Float, maxHeight: Float, tilePosition: ShaderUniform, tileUv: ShaderUniform) {
+        if (vao > 0) {
+            val tiles = selectTiles(maxLevel, lodFactor, cameraX / width, cameraY / width, cameraZ / width, maxHeight / width)
+            GL30.glBindVertexArray(vao)
+            tiles.forEach {
+                val scale = 1.0f / (1 shl it.level)
+                GL20.glUniform4f(tilePosition.location, (it.x * scale - 0.5f) * width, (it.y * scale - 0.5f) * width, scale * width, scale * width)
+                GL20.glUniform4f(tileUv.location, it.x * scale, 1.0f - it.y * scale, scale, -scale)
+                GL11.glDrawElements(GL11.GL_TRIANGLES, indexCounts[it.stitchMask], GL11.GL_UNSIGNED_INT, indexOffsets[it.stitchMask] * 4L)
+            }
+            GL30.glBindVertexArray(0)
+        }
+    }
+
+    @Suppress("unused")
+    fun finalize() {
+        GL30.glDeleteVertexArrays(vao)
+    }
+}
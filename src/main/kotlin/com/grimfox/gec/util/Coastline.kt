@@ -1,5 +1,7 @@
 package com.grimfox.gec.util
 
+import com.grimfox.gec.executor
+import com.grimfox.gec.threadCount
 import com.grimfox.gec.util.BuildContinent.RegionIterationParameters
 import com.grimfox.gec.model.Graph
 import com.grimfox.gec.model.Graph.Cell
@@ -7,6 +9,7 @@ import com.grimfox.gec.model.Graph.Vertices
 import com.grimfox.gec.model.IntArrayMatrix
 import com.grimfox.gec.model.Matrix
 import com.grimfox.gec.model.ByteArrayMatrix
+import com.grimfox.gec.model.VertexSet
 import com.grimfox.gec.model.geometry.LineSegment2F
 import com.grimfox.gec.model.geometry.LineSegment2F.Companion.getConnectedEdgeSegments
 import com.grimfox.gec.model.geometry.Point2F
@@ -27,7 +30,7 @@ object Coastline {
         refineCoastline(graph, random, idMask, water, borderPoints, parameters)
     }
 
-    fun refineCoastline(graph: Graph, random: Random, idMask: Matrix<Byte>, water: LinkedHashSet<Int>, borderPoints: LinkedHashSet<Int>, parameters: RegionIterationParameters) {
+    fun refineCoastline(graph: Graph, random: Random, idMask: Matrix<Byte>, water: VertexSet, borderPoints: VertexSet, parameters: RegionIterationParameters) {
         val pointsPerRegion = Math.round(parameters.minRegionSize / (1.0f / graph.vertices.size))
         val offLimitPoints = getOffLimitPoints(graph, idMask, water, parameters.protectedInset, parameters.protectedRadius)
         erodeCoastline(graph, water, borderPoints, idMask, random, offLimitPoints, parameters.landPercent, parameters.smallIsland, parameters.largeIsland, parameters.minPerturbation, parameters.maxIterations, pointsPerRegion)
@@ -69,43 +72,43 @@ object Coastline {
         futures.forEach { it.get() }
     }
 
-    fun applyMask(graph: Graph, maskGraph: Graph, mask: Matrix<Byte>, executor: ExecutorService): Triple<ByteArrayMatrix, LinkedHashSet<Int>, LinkedHashSet<Int>> {
+    fun applyMask(graph: Graph, maskGraph: Graph, mask: Matrix<Byte>, executor: ExecutorService): Triple<ByteArrayMatrix, VertexSet, VertexSet> {
         val borderPointsFuture = executor.call { buildBorderPoints(maskGraph) }
         val landFuture = executor.call { extractLandFromIds(maskGraph, mask) }
         val land = landFuture.value
         val borderPoints = borderPointsFuture.value
         applyBorderConstraintsToLand(land, borderPoints, mask)
-        val bodies = maskGraph.getConnectedBodies(land).sortedByDescending { it.size }
+        val landComponents = maskGraph.labelConnectedComponents(land, executor, threadCount)
+        val bodyOrder = (0..landComponents.count - 1).sortedByDescending { landComponents.sizes[it] }
+        val bodyRanks = IntArray(landComponents.count)
+        bodyOrder.forEachIndexed { rank, component ->
+            bodyRanks[component] = rank + 1
+        }
+        val landBodies = maskGraph.getConnectedBodies(landComponents, land, executor, threadCount)
+        val bodies = bodyOrder.map { landBodies[it] }
         val bodyIds = IntArrayMatrix(maskGraph.stride!!) { vertexId ->
-            var bodyId = 0
-            for (i in 0..bodies.size - 1) {
-                val body = bodies[i]
-                if (body.contains(vertexId)) {
-                    bodyId = i + 1
-                    break
-                }
-            }
-            bodyId
+            val label = landComponents.labels[vertexId]
+            if (label < 0) 0 else bodyRanks[label]
         }
         val vertices = graph.vertices
         val newBodyIds = IntArrayMatrix(graph.stride!!)
         val newMask = ByteArrayMatrix(graph.stride)
         applyMaskRaw(executor, graph, maskGraph, mask, newMask, bodyIds, newBodyIds, 16)
-        val newBodies = ArrayList<LinkedHashSet<Int>>(bodies.size)
+        val newBodies = ArrayList<VertexSet>(bodies.size)
         for (i in 0..bodies.size - 1) {
-            newBodies.add(LinkedHashSet())
+            newBodies.add(VertexSet(vertices.size))
         }
         for (i in 0..vertices.size - 1) {
             val bodyId = newBodyIds[i] - 1
             if (bodyId > -1) {
-                newBodies[bodyId].add(i)
+                newBodies[bodyId].addId(i)
             }
         }
         val futures = ArrayList<Future<*>>(newBodies.size)
         newBodies.forEachIndexed { currentBodyIndex, body ->
             val currentBodyId = currentBodyIndex + 1
             futures.add(executor.call {
-                body.forEach { currentId ->
+                body.forEachId { currentId ->
                     val adjacents = vertices.getAdjacentVertices(currentId)
                     for (i in 0..adjacents.size - 1) {
                         val adjacentId = adjacents[i]
@@ -127,7 +130,7 @@ object Coastline {
         val water = waterFuture.value
         val newBorderPoints = newBorderPointsFuture.value
         applyBorderConstraintsToWater(water, newBorderPoints, newMask)
-        val waterBodies = graph.getConnectedBodies(water)
+        val waterBodies = graph.getConnectedBodies(water, executor, threadCount)
         if (waterBodies.size > 1) {
             val bodyBorders = ArrayList<LineSegment2F>()
             bodies.forEach {
@@ -139,7 +142,7 @@ object Coastline {
                 val lake = waterBodies[i]
                 var sumX = 0.0f
                 var sumY = 0.0f
-                lake.forEach {
+                lake.forEachId {
                     val lakePoint = vertices[it].point
                     sumX += lakePoint.x
                     sumY += lakePoint.y
@@ -148,22 +151,22 @@ object Coastline {
                 val sortedBorders = ArrayList(bodyBorders.sortedBy { Math.min(it.a.distance2(lakeCenter), it.b.distance2(lakeCenter)) })
                 while (sortedBorders.isNotEmpty()) {
                     val nearestBorder = sortedBorders.removeAt(0)
-                    val lakeShore = lake.flatMap { vertices.getAdjacentVertices(it) }.toSet().filter { !lake.contains(it) }.toHashSet()
+                    val lakeShore = lake.flatMap { vertices.getAdjacentVertices(it) }.toSet().filter { !lake.containsId(it) }.toHashSet()
                     var oceanConnected = false
                     lakeShore.forEach {
                         if (cellIntersectsEdge(nearestBorder, vertices[it].cell)) {
-                            lake.add(it)
+                            lake.addId(it)
                             if (isOceanConnected(vertices, ocean, it)) {
                                 oceanConnected = true
                             }
                         }
                     }
                     if (oceanConnected) {
-                        lake.forEach {
+                        lake.forEachId {
                             newMask[it] = 0
+                            ocean.addId(it)
+                            water.addId(it)
                         }
-                        ocean.addAll(lake)
-                        water.addAll(lake)
                         break
                     }
                 }
@@ -178,7 +181,7 @@ object Coastline {
         return ArrayList(bodies.flatMap { graph.findBorder(it, useTriangles = true) })
     }
 
-    fun getBorders(graph: Graph, idMask: Matrix<Byte>, body: LinkedHashSet<Int>): ArrayList<Polygon2F> {
+    fun getBorders(graph: Graph, idMask: Matrix<Byte>, body: Set<Int>): ArrayList<Polygon2F> {
         return getBorders(graph, idMask, body, false)
     }
 
@@ -188,9 +191,9 @@ object Coastline {
         return ArrayList(bodies.map { getBorders(graph, idMask, it) })
     }
 
-    private fun isOceanConnected(vertices: Vertices, ocean: LinkedHashSet<Int>, id: Int): Boolean {
+    private fun isOceanConnected(vertices: Vertices, ocean: VertexSet, id: Int): Boolean {
         vertices.getAdjacentVertices(id).forEach {
-            if (ocean.contains(it)) {
+            if (ocean.containsId(it)) {
                 return true
             }
         }
@@ -206,16 +209,16 @@ object Coastline {
         return false
     }
 
-    private fun getOffLimitPoints(graph: Graph, idMask: Matrix<Byte>, water: LinkedHashSet<Int>, inset: Float, radius: Float): LinkedHashSet<Int> {
+    private fun getOffLimitPoints(graph: Graph, idMask: Matrix<Byte>, water: VertexSet, inset: Float, radius: Float): VertexSet {
         val borderPoints = insetBorders(getBorders(graph, idMask, water, true), inset).flatMap { it.points }.toSet()
-        val offLimitPoints = LinkedHashSet<Int>()
+        val offLimitPoints = VertexSet(graph.vertices.size)
         borderPoints.forEach {
-            offLimitPoints.addAll(graph.getPointsWithinRadius(it, radius))
+            graph.getPointsWithinRadius(it, radius).forEach { offLimitPoints.addId(it) }
         }
         return offLimitPoints
     }
 
-    private fun getBorders(graph: Graph, idMask: Matrix<Byte>, mask: LinkedHashSet<Int>, negate: Boolean = false): ArrayList<Polygon2F> {
+    private fun getBorders(graph: Graph, idMask: Matrix<Byte>, mask: Set<Int>, negate: Boolean = false): ArrayList<Polygon2F> {
         val regions = extractRegionsFromIds(graph, idMask)
         val borders = ArrayList<Polygon2F>()
         regions.forEach {
@@ -259,87 +262,97 @@ object Coastline {
         return reducedBorders
     }
 
-    private fun extractWaterFromIds(graph: Graph, idMask: Matrix<Byte>): LinkedHashSet<Int> {
-        val water = LinkedHashSet<Int>()
+    private fun extractWaterFromIds(graph: Graph, idMask: Matrix<Byte>): VertexSet {
+        val water = VertexSet(graph.vertices.size)
         for (i in 0..graph.vertices.size - 1) {
             if (idMask[i] == BYTE_ZERO) {
-                water.add(i)
+                water.addId(i)
             }
         }
         return water
     }
 
-    private fun applyBorderConstraintsToWater(water: LinkedHashSet<Int>, borderPoints: LinkedHashSet<Int>, idMask: Matrix<Byte>) {
-        water.addAll(borderPoints)
-        borderPoints.forEach {
+    private fun applyBorderConstraintsToWater(water: VertexSet, borderPoints: VertexSet, idMask: Matrix<Byte>) {
+        borderPoints.forEachId {
+            water.addId(it)
             idMask[it] = 0
         }
     }
 
-    private fun applyBorderConstraintsToLand(land: LinkedHashSet<Int>, borderPoints: LinkedHashSet<Int>, idMask: Matrix<Byte>) {
-        land.removeAll(borderPoints)
-        borderPoints.forEach {
+    private fun applyBorderConstraintsToLand(land: VertexSet, borderPoints: VertexSet, idMask: Matrix<Byte>) {
+        borderPoints.forEachId {
+            land.removeId(it)
             idMask[it] = 0
         }
     }
 
-    private fun extractLandFromIds(graph: Graph, idMask: Matrix<Byte>): LinkedHashSet<Int> {
-        val land = LinkedHashSet<Int>()
+    private fun extractLandFromIds(graph: Graph, idMask: Matrix<Byte>): VertexSet {
+        val land = VertexSet(graph.vertices.size)
         for (i in 0..graph.vertices.size - 1) {
             if (idMask[i] != BYTE_ZERO) {
-                land.add(i)
+                land.addId(i)
             }
         }
         return land
     }
 
-    private fun removeIslands(graph: Graph, waterPoints: LinkedHashSet<Int>, idMask: Matrix<Byte>, smallIsland: Int, largeIsland: Int) {
+    private fun removeIslands(graph: Graph, waterPoints: VertexSet, idMask: Matrix<Byte>, smallIsland: Int, largeIsland: Int) {
         val pointCount = graph.vertices.size
         if (waterPoints.size == pointCount) {
             return
         }
-        val landPoints = LinkedHashSet<Int>(pointCount)
+        val landPoints = VertexSet(pointCount)
         for (i in 0..pointCount - 1) {
-            if (!waterPoints.contains(i)) {
-                landPoints.add(i)
-            }
-        }
-        val landBodies = graph.getConnectedBodies(landPoints)
-        landBodies.sortBy { it.size }
-        landBodies.removeAt(landBodies.size - 1)
-        landBodies.forEach {
-            if (it.size < smallIsland || it.size > largeIsland) {
-                waterPoints.addAll(it)
-                it.forEach { pointId ->
+            if (!waterPoints.containsId(i)) {
+                landPoints.addId(i)
+            }
+        }
+        val landBodies = graph.labelConnectedComponents(landPoints, executor, threadCount)
+        val bodyOrder = (0..landBodies.count - 1).sortedBy { landBodies.sizes[it] }
+        for (i in 0..bodyOrder.size - 2) {
+            val body = bodyOrder[i]
+            val bodySize = landBodies.sizes[body]
+            if (bodySize < smallIsland || bodySize > largeIsland) {
+                graph.getConnectedIds(landBodies.seeds[body], landPoints).forEachId { pointId ->
+                    waterPoints.addId(pointId)
                     idMask[pointId] = 0
                 }
             }
         }
     }
 
-    private fun removeLakes(graph: Graph, waterPoints: LinkedHashSet<Int>, borderPoints: LinkedHashSet<Int>, idMask: Matrix<Byte>) {
+    private fun removeLakes(graph: Graph, waterPoints: VertexSet, borderPoints: VertexSet, idMask: Matrix<Byte>) {
         val vertices = graph.vertices
-        val oceanPoints = LinkedHashSet<Int>()
-        var growSet = LinkedHashSet<Int>(borderPoints)
-        var iterateSet: LinkedHashSet<Int>
-        while (growSet.isNotEmpty()) {
-            oceanPoints.addAll(growSet)
-            iterateSet = growSet
-            growSet = LinkedHashSet<Int>()
-            iterateSet.forEach { index ->
-                addAllConnectedPoints(graph, waterPoints, oceanPoints, growSet, index)
+        val oceanPoints = BitSet(vertices.size)
+        var queue = borderPoints.toIntArray()
+        var head = 0
+        var tail = queue.size
+        queue.forEach { oceanPoints.set(it) }
+        while (head < tail) {
+            val adjacents = vertices.getAdjacentVertices(queue[head++])
+            for (i in 0..adjacents.size - 1) {
+                val adjacent = adjacents[i]
+                if (waterPoints.containsId(adjacent) && !oceanPoints.get(adjacent)) {
+                    oceanPoints.set(adjacent)
+                    if (tail == queue.size) {
+                        queue = queue.copyOf(Math.max(16, queue.size * 2))
+                    }
+                    queue[tail++] = adjacent
+                }
             }
         }
-        val lakeSet = LinkedHashSet<Int>()
-        waterPoints.forEach {
-            if (!oceanPoints.contains(it)) {
-                lakeSet.add(it)
+        val lakeSet = VertexSet(vertices.size)
+        waterPoints.forEachId {
+            if (!oceanPoints.get(it)) {
+                lakeSet.addId(it)
             }
         }
-        waterPoints.removeAll(lakeSet)
+        lakeSet.forEachId {
+            waterPoints.removeId(it)
+        }
         while (lakeSet.isNotEmpty()) {
             val lakeShore = ArrayList<Int>()
-            lakeSet.forEach { lakeId ->
+            lakeSet.forEachId { lakeId ->
                 vertices.getAdjacentVertices(lakeId).forEach { adjacent ->
                     val adjacentMask = idMask[adjacent]
                     if (adjacentMask > 0) {
@@ -348,19 +361,13 @@ object Coastline {
                     }
                 }
             }
-            lakeSet.removeAll(lakeShore)
-        }
-    }
-
-    private fun addAllConnectedPoints(graph: Graph, positiveFilter: Set<Int>, negativeFilter: Set<Int>, growSet: MutableSet<Int>, index: Int) {
-        graph.vertices.getAdjacentVertices(index).forEach { adjacentIndex ->
-            if (positiveFilter.contains(adjacentIndex) && !negativeFilter.contains(adjacentIndex)) {
-                growSet.add(adjacentIndex)
+            lakeShore.forEach {
+                lakeSet.removeId(it)
             }
         }
     }
 
-    private fun erodeCoastline(graph: Graph, waterPoints: LinkedHashSet<Int>, borderPoints: LinkedHashSet<Int>, idMask: Matrix<Byte>, random: Random, offLimitPoints: LinkedHashSet<Int>, landPercent: Float, smallIsland: Float, largeIsland: Float, minPerturbation: Float, maxIterations: Int, pointsPerRegion: Int) {
+    private fun erodeCoastline(graph: Graph, waterPoints: VertexSet, borderPoints: VertexSet, idMask: Matrix<Byte>, random: Random, offLimitPoints: VertexSet, landPercent: Float, smallIsland: Float, largeIsland: Float, minPerturbation: Float, maxIterations: Int, pointsPerRegion: Int) {
         val maxLandPointCount = graph.vertices.size - borderPoints.size
         val desiredLandPointCount = Math.min(maxLandPointCount, Math.round(graph.vertices.size * landPercent))
         val largeIslandCount = Math.max(0, Math.min(Int.MAX_VALUE.toLong(), Math.round(largeIsland.toDouble() * graph.vertices.size)).toInt())
@@ -401,10 +408,10 @@ object Coastline {
     }
 
     private fun ensureSufficientLandForPerturbation(graph: Graph,
-                                                    waterPoints: LinkedHashSet<Int>,
+                                                    waterPoints: VertexSet,
                                                     coastalPoints: HashMap<Int, Int>,
                                                     coastalPointDegrees: ArrayList<ArrayList<Int>>,
-                                                    borderPoints: LinkedHashSet<Int>,
+                                                    borderPoints: VertexSet,
                                                     idMask: Matrix<Byte>,
                                                     random: Random,
                                                     desiredLandPointCount: Int, minPerturbation: Float = 0.2f, maxIterations: Int = 10) {
@@ -422,7 +429,7 @@ object Coastline {
         }
     }
 
-    private fun modifyCoastline(graph: Graph, waterPoints: LinkedHashSet<Int>, coastalPoints: HashMap<Int, Int>, coastalPointDegrees: ArrayList<ArrayList<Int>>, borderPoints: LinkedHashSet<Int>, idMask: Matrix<Byte>, random: Random, offLimitPoints: LinkedHashSet<Int>, pointCountToRemove: Int, pointsPerRegion: Int) {
+    private fun modifyCoastline(graph: Graph, waterPoints: VertexSet, coastalPoints: HashMap<Int, Int>, coastalPointDegrees: ArrayList<ArrayList<Int>>, borderPoints: VertexSet, idMask: Matrix<Byte>, random: Random, offLimitPoints: VertexSet, pointCountToRemove: Int, pointsPerRegion: Int) {
         val adjustedCount = pointCountToRemove + pointCountToRemove / 4
         var skips = reduceCoastline(graph, waterPoints, coastalPoints, coastalPointDegrees, idMask, random, offLimitPoints, adjustedCount, pointsPerRegion)
         var pointCountToAdd = (adjustedCount - skips) / 2
@@ -434,16 +441,22 @@ object Coastline {
         }
     }
 
-    private fun buildBorderPoints(graph: Graph): LinkedHashSet<Int> {
-        return LinkedHashSet(graph.vertices.asSequence().filter { it.cell.isBorder }.map { it.id }.toList())
+    private fun buildBorderPoints(graph: Graph): VertexSet {
+        val borderPoints = VertexSet(graph.vertices.size)
+        graph.vertices.forEach {
+            if (it.cell.isBorder) {
+                borderPoints.addId(it.id)
+            }
+        }
+        return borderPoints
     }
 
-    private fun buildCoastalPoints(graph: Graph, waterPoints: LinkedHashSet<Int>): HashMap<Int, Int> {
+    private fun buildCoastalPoints(graph: Graph, waterPoints: VertexSet): HashMap<Int, Int> {
         val vertices = graph.vertices
         val coastalPoints = HashMap<Int, Int>()
-        waterPoints.forEach { waterId ->
+        waterPoints.forEachId { waterId ->
             vertices.getAdjacentVertices(waterId).forEach { vertexId ->
-                if (!waterPoints.contains(vertexId)) {
+                if (!waterPoints.containsId(vertexId)) {
                     coastalPoints[vertexId] = coastalPoints.getOrPut(vertexId, { 0 }) + 1
                 }
             }
@@ -452,25 +465,21 @@ object Coastline {
     }
 
     private fun buildCoastalPointDegreeSets(coastalPoints: HashMap<Int, Int>): ArrayList<ArrayList<Int>> {
-        val coastalPointDegreeSets = ArrayList<LinkedHashSet<Int>>(6)
+        val coastalPointDegrees = ArrayList<ArrayList<Int>>(6)
         for (i in 0..5) {
-            coastalPointDegreeSets.add(LinkedHashSet<Int>())
+            coastalPointDegrees.add(ArrayList<Int>())
         }
         coastalPoints.forEach { index, degree ->
             var effectiveDegree = degree - 1
             if (effectiveDegree > 5) {
                 effectiveDegree = 5
             }
-            coastalPointDegreeSets[effectiveDegree].add(index)
-        }
-        val coastalPointDegrees = ArrayList<ArrayList<Int>>(6)
-        for (i in 0..5) {
-            coastalPointDegrees.add(ArrayList(coastalPointDegreeSets[i]))
+            coastalPointDegrees[effectiveDegree].add(index)
         }
         return coastalPointDegrees
     }
 
-    private fun reduceCoastline(graph: Graph, waterPoints: LinkedHashSet<Int>, coastalPoints: HashMap<Int, Int>, coastalPointDegrees: ArrayList<ArrayList<Int>>, idMask: Matrix<Byte>, random: Random, offLimitPoints: LinkedHashSet<Int>, iterations: Int, pointsPerRegion: Int): Int {
+    private fun reduceCoastline(graph: Graph, waterPoints: VertexSet, coastalPoints: HashMap<Int, Int>, coastalPointDegrees: ArrayList<ArrayList<Int>>, idMask: Matrix<Byte>, random: Random, offLimitPoints: VertexSet, iterations: Int, pointsPerRegion: Int): Int {
         val regions = extractRegionsFromIds(graph, idMask)
         val vertices = graph.vertices
         var skips = 0
@@ -490,7 +499,7 @@ object Coastline {
                 val tempId = idChoices[index]
                 val tempPick = pickList[tempId]
                 val currentRegion = regions[idMask[tempPick] - 1]
-                if (!offLimitPoints.contains(tempPick) && currentRegion.size > pointsPerRegion) {
+                if (!offLimitPoints.containsId(tempPick) && currentRegion.size > pointsPerRegion) {
                     id = tempId
                     break
                 }
@@ -502,12 +511,12 @@ object Coastline {
                 continue
             }
             val pickPoint = pickList.removeAt(id)
-            waterPoints.add(pickPoint)
-            regions[idMask[pickPoint] - 1].remove(pickPoint)
+            waterPoints.addId(pickPoint)
+            regions[idMask[pickPoint] - 1].removeId(pickPoint)
             idMask[pickPoint] = 0
             coastalPoints.remove(pickPoint)
             vertices.getAdjacentVertices(pickPoint).forEach { adjacentPointIndex ->
-                if (!waterPoints.contains(adjacentPointIndex)) {
+                if (!waterPoints.containsId(adjacentPointIndex)) {
                     val degree = coastalPoints.getOrPut(adjacentPointIndex, { 0 }) + 1
                     coastalPoints[adjacentPointIndex] = degree
                     if (degree == 1) {
@@ -553,7 +562,7 @@ object Coastline {
         return pickList
     }
 
-    private fun buildUpCoastline(graph: Graph, waterPoints: LinkedHashSet<Int>, coastalPoints: HashMap<Int, Int>, coastalPointDegrees: ArrayList<ArrayList<Int>>, borderPoints: Set<Int>, idMask: Matrix<Byte>, random: Random, iterations: Int): Int {
+    private fun buildUpCoastline(graph: Graph, waterPoints: VertexSet, coastalPoints: HashMap<Int, Int>, coastalPointDegrees: ArrayList<ArrayList<Int>>, borderPoints: VertexSet, idMask: Matrix<Byte>, random: Random, iterations: Int): Int {
         val vertices = graph.vertices
         var skips = 0
         for (i in 1..iterations) {
@@ -570,7 +579,7 @@ object Coastline {
                 val coastId = pickList[randomizedPickList[j]]
                 val adjacentWater = ArrayList<Int>()
                 vertices.getAdjacentVertices(coastId).forEach { adjacentPointIndex ->
-                    if (waterPoints.contains(adjacentPointIndex)) {
+                    if (waterPoints.containsId(adjacentPointIndex)) {
                         adjacentWater.add(adjacentPointIndex)
                     }
                 }
@@ -578,7 +587,7 @@ object Coastline {
                     continue
                 }
                 val pickId = adjacentWater[random.nextInt(adjacentWater.size)]
-                if (borderPoints.contains(pickId)) {
+                if (borderPoints.containsId(pickId)) {
                     continue
                 }
                 val landAdjacentEdges = LinkedHashSet<LineSegment2F>()
@@ -602,17 +611,17 @@ object Coastline {
                 skips++
                 continue
             }
-            waterPoints.remove(pickPoint)
+            waterPoints.removeId(pickPoint)
             idMask[pickPoint] = idMask[coastPick]
             var degree = 0
             vertices.getAdjacentVertices(pickPoint).forEach { adjacentPointIndex ->
-                if (waterPoints.contains(adjacentPointIndex)) {
+                if (waterPoints.containsId(adjacentPointIndex)) {
                     degree++
                 }
             }
             coastalPoints.put(pickPoint, degree)
             vertices.getAdjacentVertices(pickPoint).forEach { adjacentPointIndex ->
-                if (!waterPoints.contains(adjacentPointIndex)) {
+                if (!waterPoints.containsId(adjacentPointIndex)) {
                     val adjacentDegree = coastalPoints[adjacentPointIndex]
                     if (adjacentDegree != null) {
                         if (adjacentDegree == 1) {
@@ -632,66 +641,65 @@ object Coastline {
         return skips
     }
 
-    private fun forceGiveUpDisconnectedLand(graph: Graph, idMask: Matrix<Byte>): LinkedHashSet<Int> {
-        val unclaimedLand = LinkedHashSet<Int>()
+    private fun forceGiveUpDisconnectedLand(graph: Graph, idMask: Matrix<Byte>): VertexSet {
+        val unclaimedLand = VertexSet(graph.vertices.size)
         extractRegionsFromIds(graph, idMask).forEach {
             giveUpDisconnectedLand(graph, unclaimedLand, it)
         }
-        unclaimedLand.forEach {
+        unclaimedLand.forEachId {
             idMask[it] = -1
         }
         return unclaimedLand
     }
 
-    private fun extractRegionsFromIds(graph: Graph, idMask: Matrix<Byte>): ArrayList<LinkedHashSet<Int>> {
-        val regions = ArrayList<LinkedHashSet<Int>>()
+    private fun extractRegionsFromIds(graph: Graph, idMask: Matrix<Byte>): ArrayList<VertexSet> {
+        val regions = ArrayList<VertexSet>()
         for (i in 0..graph.vertices.size - 1) {
             val regionId = idMask[i]
             if (regionId > 0) {
                 val regionIndex = regionId - 1
                 if (regions.size < regionId) {
                     for (j in regions.size..regionIndex) {
-                        regions.add(LinkedHashSet<Int>())
+                        regions.add(VertexSet(graph.vertices.size))
                     }
                 }
-                regions[regionIndex].add(i)
+                regions[regionIndex].addId(i)
             }
         }
         return regions
     }
 
-    private fun giveUpDisconnectedLand(graph: Graph, unclaimedLand: LinkedHashSet<Int>, region: LinkedHashSet<Int>) {
-        val regionBodies = graph.getConnectedBodies(region)
-        if (regionBodies.size > 1) {
-            regionBodies.sortBy { it.size }
-            regionBodies.removeAt(regionBodies.size - 1)
-            regionBodies.forEach { body ->
-                unclaimedLand.addAll(body)
+    private fun giveUpDisconnectedLand(graph: Graph, unclaimedLand: VertexSet, region: VertexSet) {
+        val regionBodies = graph.labelConnectedComponents(region, executor, threadCount)
+        if (regionBodies.count > 1) {
+            val bodyOrder = (0..regionBodies.count - 1).sortedBy { regionBodies.sizes[it] }
+            for (i in 0..bodyOrder.size - 2) {
+                graph.getConnectedIds(regionBodies.seeds[bodyOrder[i]], region).forEachId { unclaimedLand.addId(it) }
             }
         }
     }
 
-    private fun forceClaimUnwantedLand(graph: Graph, idMask: Matrix<Byte>, unclaimedLand: LinkedHashSet<Int>) {
+    private fun forceClaimUnwantedLand(graph: Graph, idMask: Matrix<Byte>, unclaimedLand: VertexSet) {
         val vertices = graph.vertices
         var lastSize = 0
         while (unclaimedLand.isNotEmpty() && unclaimedLand.size != lastSize) {
             lastSize = unclaimedLand.size
-            ArrayList(unclaimedLand).forEach {
+            unclaimedLand.toIntArray().forEach {
                 tryClaimLand(vertices, idMask, unclaimedLand, it)
             }
         }
         if (unclaimedLand.isNotEmpty()) {
-            unclaimedLand.forEach {
+            unclaimedLand.forEachId {
                 idMask[it] = 0
             }
         }
     }
 
-    private fun tryClaimLand(vertices: Vertices, idMask: Matrix<Byte>, unclaimedLand: LinkedHashSet<Int>, unclaimedId: Int) {
+    private fun tryClaimLand(vertices: Vertices, idMask: Matrix<Byte>, unclaimedLand: VertexSet, unclaimedId: Int) {
         vertices.getAdjacentVertices(unclaimedId).forEach { adjacentId ->
             val adjacentMask = idMask[adjacentId]
             if (adjacentMask > 0) {
-                unclaimedLand.remove(unclaimedId)
+                unclaimedLand.removeId(unclaimedId)
                 idMask[unclaimedId] = adjacentMask
                 return
             }
@@ -0,0 +1,146 @@
+package com.grimfox.gec.util
+
+import com.grimfox.gec.model.geometry.LineSegment2F
+import java.util.concurrent.ExecutorService
+
+object DistanceTransform {
+
+    private const val UNSEEDED = Int.MAX_VALUE
+
+    fun edgeFalloff(resolution: Int, executor: ExecutorService, edges: List<LineSegment2F>, threadCount: Int, scale: Float = 1.0f): FloatArray {
+        val size = resolution * resolution
+        val output = FloatArray(size)
+        if (edges.isEmpty()) {
+            return output
+        }
+        val seeds = rasterizeEdges(resolution, edges, scale)
+        val nearestRows = IntArray(size)
+        val columnDistances = IntArray(size)
+        (0 until threadCount).map { thread ->
+            executor.call {
+                for (x in thread until resolution step threadCount) {
+                    var last = -1
+                    for (y in 0 until resolution) {
+                        val i = y * resolution + x
+                        if (seeds[i] >= 0) {
+                            last = y
+                        }
+                        nearestRows[i] = last
+                    }
+                    last = -1
+                    for (y in resolution - 1 downTo 0) {
+                        val i = y * resolution + x
+                        if (seeds[i] >= 0) {
+                            last = y
+                        }
+                        val above = nearestRows[i]
+                        val row = if (above < 0 || (last >= 0 && last - y < y - above)) last else above
+                        nearestRows[i] = row
+                        columnDistances[i] = if (row < 0) UNSEEDED else (y - row) * (y - row)
+                    }
+                }
+            }
+        }.forEach { it.join() }
+        val pixelSize = 1.0f / (resolution * scale)
+        val maxPixel = resolution - 1
+        (0 until threadCount).map { thread ->
+            executor.call {
+                val parabolas = IntArray(resolution)
+                val bounds = DoubleArray(resolution + 1)
+                for (y in thread until resolution step threadCount) {
+                    val rowOffset = y * resolution
+                    var k = -1
+                    for (q in 0 until resolution) {
+                        val fq = columnDistances[rowOffset + q]
+                        if (fq == UNSEEDED) {
+                            continue
+                        }
+                        if (k < 0) {
+                            k = 0
+                            parabolas[0] = q
+                            bounds[0] = Double.NEGATIVE_INFINITY
+                            bounds[1] = Double.POSITIVE_INFINITY
+                            continue
+                        }
+                        var s = intersection(q, fq, parabolas[k], columnDistances[rowOffset + parabolas[k]])
+                        while (s <= bounds[k]) {
+                            k--
+                            s = intersection(q, fq, parabolas[k], columnDistances[rowOffset + parabolas[k]])
+                        }
+                        k++
+                        parabolas[k] = q
+                        bounds[k] = s
+                        bounds[k + 1] = Double.POSITIVE_INFINITY
+                    }
+                    if (k < 0) {
+                        continue
+                    }
+                    var j = 0
+                    val py = (y + 0.5f) * pixelSize
+                    for (x in 0 until resolution) {
+                        while (bounds[j + 1] < x) {
+                            j++
+                        }
+                        val seedX = parabolas[j]
+                        val seedY = nearestRows[rowOffset + seedX]
+                        val px = (x + 0.5f) * pixelSize
+                        // seed pixels keep only the last segment drawn through them, so also check the segments
+                        // around the nearest seed; still approximate to within about a pixel where edges meet
+                        var distance = Float.MAX_VALUE
+                        for (ny in Math.max(0, seedY - 1)..Math.min(maxPixel, seedY + 1)) {
+                            for (nx in Math.max(0, seedX - 1)..Math.min(maxPixel, seedX + 1)) {
+                                val edge = seeds[ny * resolution + nx]
+                                if (edge >= 0) {
+                                    distance = Math.min(distance, distanceToSegment(px, py, edges[edge]))
+                                }
+                            }
+                        }
+                        output[rowOffset + x] = Math.max(0.0f, 1.0f - distance)
+                    }
+                }
+            }
+        }.forEach { it.join() }
+        return output
+    }
+
+    fun toRedShort(falloff: FloatArray): ShortArray {
+        return ShortArray(falloff.size) { Math.round(Math.min(1.0f, Math.max(0.0f, falloff[it])) * 65535.0f).toShort() }
+    }
+
+    private fun rasterizeEdges(resolution: Int, edges: List<LineSegment2F>, scale: Float): IntArray {
+        val seeds = IntArray(resolution * resolution) { -1 }
+        val pixelScale = resolution * scale
+        val maxPixel = resolution - 1
+        edges.forEachIndexed { e, edge ->
+            val ax = edge.a.x * pixelScale - 0.5f
+            val ay = edge.a.y * pixelScale - 0.5f
+            val dx = edge.b.x * pixelScale - 0.5f - ax
+            val dy = edge.b.y * pixelScale - 0.5f - ay
+            val steps = Math.ceil(Math.max(Math.abs(dx), Math.abs(dy)) * 2.0).toInt() + 1
+            for (t in 0..steps) {
+                val fraction = t / steps.toFloat()
+                // points off the grid seed the nearest border pixel so their segment still competes there
+                val x = Math.round(ax + dx * fraction).coerceIn(0, maxPixel)
+                val y = Math.round(ay + dy * fraction).coerceIn(0, maxPixel)
+                seeds[y * resolution + x] = e
+            }
+        }
+        return seeds
+    }
+
+    private fun intersection(q: Int, fq: Int, p: Int, fp: Int): Double {
+        return ((fq.toDouble() + q.toDouble() * q) - (fp.toDouble() + p.toDouble() * p)) / (2.0 * (q - p))
+    }
+
+    private fun distanceToSegment(x: Float, y: Float, edge: LineSegment2F): Float {
+        val ax = edge.a.x
+        val ay = edge.a.y
+        val dx = edge.b.x - ax
+        val dy = edge.b.y - ay
+        val length2 = dx * dx + dy * dy
+        val t = if (length2 == 0.0f) 0.0f else (((x - ax) * dx + (y - ay) * dy) / length2).coerceIn(0.0f, 1.0f)
+        val ox = x - (ax + dx * t)
+        val oy = y - (ay + dy * t)
+        return Math.sqrt((ox * ox + oy * oy).toDouble()).toFloat()
+    }
+}
@@ -0,0 +1,329 @@
+package com.grimfox.gec.util
+
+import com.grimfox.gec.executor
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.ArrayDeque
+import java.util.concurrent.Future
+import java.util.zip.Adler32
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+
+object MapWriters {
+
+    private class CompressedBlock(val data: ByteArray, val adler: Long, val rawLength: Long)
+
+    private val PNG_SIGNATURE = byteArrayOf(137.toByte(), 80, 78, 71, 13, 10, 26, 10)
+    private const val PNG_BLOCK_BYTES = 1 shl 20
+    private const val RAW_BAND_BYTES = 1 shl 22
+    private const val ADLER_BASE = 65521L
+    private val threadCount = Runtime.getRuntime().availableProcessors()
+
+    fun writePng16BitGrey(file: File, outputSize: Int, data: ShortArray, dataWidth: Int) {
+        writePng(file, outputSize, 16, 0, 2, false) { y, row ->
+            val yOff = y * dataWidth
+            for (x in 0 until outputSize) {
+                val value = data[yOff + x].toInt()
+                row[x * 2] = (value ushr 8).toByte()
+                row[x * 2 + 1] = value.toByte()
+            }
+        }
+    }
+
+    fun writePng8BitGrey(file: File, outputSize: Int, data: ByteBuffer, dataWidth: Int, pixelStride: Int = 1, channel: Int = 0) {
+        writePng(file, outputSize, 8, 0, 1, false) { y, row ->
+            val yOff = y * dataWidth
+            for (x in 0 until outputSize) {
+                row[x] = data[(yOff + x) * pixelStride + channel]
+            }
+        }
+    }
+
+    fun writePng8BitLinearRgb(file: File, outputSize: Int, data: ByteBuffer, dataWidth: Int, pixelStride: Int = 3) {
+        writePng(file, outputSize, 8, 2, 3, true) { y, row ->
+            val yOff = y * dataWidth
+            for (x in 0 until outputSize) {
+                val index = (yOff + x) * pixelStride
+                val rowIndex = x * 3
+                row[rowIndex] = data[index]
+                row[rowIndex + 1] = data[index + 1]
+                row[rowIndex + 2] = data[index + 2]
+            }
+        }
+    }
+
+    fun writeRaw16(file: File, outputSize: Int, data: ShortArray, dataWidth: Int) {
+        writeRaw(file, outputSize, 2) { y, buffer ->
+            val yOff = y * dataWidth
+            for (x in 0 until outputSize) {
+                buffer.putShort(data[yOff + x])
+            }
+        }
+    }
+
+    fun writeRaw32(file: File, outputSize: Int, data: ShortArray, dataWidth: Int) {
+        writeRaw(file, outputSize, 4) { y, buffer ->
+            val yOff = y * dataWidth
+            for (x in 0 until outputSize) {
+                buffer.putFloat((data[yOff + x].toInt() and 0xFFFF) / 65535.0f)
+            }
+        }
+    }
+
+    fun writeExr(file: File, outputSize: Int, data: ShortArray, dataWidth: Int) {
+        val header = encode(512) {
+            putInt(20000630)
+            putInt(2)
+            putAttribute("channels", "chlist") {
+                putString("Y")
+                putInt(2)
+                put(0.toByte())
+                put(0.toByte())
+                put(0.toByte())
+                put(0.toByte())
+                putInt(1)
+                putInt(1)
+                put(0.toByte())
+            }
+            putAttribute("compression", "compression") {
+                put(0.toByte())
+            }
+            putAttribute("dataWindow", "box2i") {
+                putInt(0)
+                putInt(0)
+                putInt(outputSize - 1)
+                putInt(outputSize - 1)
+            }
+            putAttribute("displayWindow", "box2i") {
+                putInt(0)
+                putInt(0)
+                putInt(outputSize - 1)
+                putInt(outputSize - 1)
+            }
+            putAttribute("lineOrder", "lineOrder") {
+                put(0.toByte())
+            }
+            putAttribute("pixelAspectRatio", "float") {
+                putFloat(1.0f)
+            }
+            putAttribute("screenWindowCenter", "v2f") {
+                putFloat(0.0f)
+                putFloat(0.0f)
+            }
+            putAttribute("screenWindowWidth", "float") {
+                putFloat(1.0f)
+            }
+            put(0.toByte())
+        }
+        val lineBytes = 8 + outputSize * 4
+        val firstLineOffset = header.size.toLong() + outputSize * 8L
+        val offsets = encode(outputSize * 8) {
+            for (y in 0 until outputSize) {
+                putLong(firstLineOffset + y.toLong() * lineBytes)
+            }
+        }
+        writeRaw(file, outputSize, 4, 8, header + offsets) { y, buffer ->
+            val yOff = y * dataWidth
+            buffer.putInt(y)
+            buffer.putInt(outputSize * 4)
+            for (x in 0 until outputSize) {
+                buffer.putFloat((data[yOff + x].toInt() and 0xFFFF) / 65535.0f)
+            }
+        }
+    }
+
+    private fun writeRaw(file: File, outputSize: Int, bytesPerPixel: Int, rowPrefixBytes: Int = 0, preamble: ByteArray? = null, fillRow: (Int, ByteBuffer) -> Unit) {
+        val rowBytes = outputSize * bytesPerPixel + rowPrefixBytes
+        val rowsPerBand = max(1, RAW_BAND_BYTES / rowBytes)
+        val buffer = ByteBuffer.allocateDirect(rowsPerBand * rowBytes).order(ByteOrder.LITTLE_ENDIAN)
+        RandomAccessFile(file, "rw").use { output ->
+            output.setLength(0)
+            val channel = output.channel
+            if (preamble != null) {
+                channel.write(ByteBuffer.wrap(preamble))
+            }
+            for (bandStart in 0 until outputSize step rowsPerBand) {
+                buffer.clear()
+                for (y in bandStart until min(outputSize, bandStart + rowsPerBand)) {
+                    fillRow(y, buffer)
+                }
+                buffer.flip()
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer)
+                }
+            }
+        }
+    }
+
+    private fun writePng(file: File, outputSize: Int, bitDepth: Int, colorType: Int, channels: Int, isLinear: Boolean, fillRow: (Int, ByteArray) -> Unit) {
+        val filterUnit = channels * (bitDepth / 8)
+        val rowBytes = outputSize * filterUnit
+        val rowsPerBlock = max(1, PNG_BLOCK_BYTES / (rowBytes + 1))
+        val blockCount = (outputSize + rowsPerBlock - 1) / rowsPerBlock
+        val maxInFlight = threadCount * 2
+        DataOutputStream(file.outputStream().buffered(PNG_BLOCK_BYTES)).use { output ->
+            output.write(PNG_SIGNATURE)
+            output.writeChunk("IHDR", encode(13, ByteOrder.BIG_ENDIAN) {
+                putInt(outputSize)
+                putInt(outputSize)
+                put(bitDepth.toByte())
+                put(colorType.toByte())
+                put(0.toByte())
+                put(0.toByte())
+                put(0.toByte())
+            })
+            if (isLinear) {
+                output.writeChunk("gAMA", encode(4, ByteOrder.BIG_ENDIAN) { putInt(100000) })
+            }
+            val pending = ArrayDeque<Future<CompressedBlock>>()
+            var nextBlock = 0
+            var adler = 1L
+            for (block in 0 until blockCount) {
+                while (nextBlock < blockCount && nextBlock - block < maxInFlight) {
+                    val startRow = nextBlock * rowsPerBlock
+                    val endRow = min(outputSize, startRow + rowsPerBlock)
+                    val isFirst = nextBlock == 0
+                    val isLast = nextBlock == blockCount - 1
+                    pending.add(executor.call { compressPngBlock(startRow, endRow, rowBytes, filterUnit, isFirst, isLast, fillRow) })
+                    nextBlock++
+                }
+                val compressed = pending.removeFirst().value
+                adler = combineAdler32(adler, compressed.adler, compressed.rawLength)
+                output.writeChunk("IDAT", compressed.data)
+            }
+            output.writeChunk("IDAT", encode(4, ByteOrder.BIG_ENDIAN) { putInt(adler.toInt()) })
+            output.writeChunk("IEND", ByteArray(0))
+        }
+    }
+
+    private fun compressPngBlock(startRow: Int, endRow: Int, rowBytes: Int, filterUnit: Int, isFirst: Boolean, isLast: Boolean, fillRow: (Int, ByteArray) -> Unit): CompressedBlock {
+        val raw = ByteArray((endRow - startRow) * (rowBytes + 1))
+        var previous = ByteArray(rowBytes)
+        var current = ByteArray(rowBytes)
+        if (startRow > 0) {
+            fillRow(startRow - 1, previous)
+        }
+        var offset = 0
+        for (y in startRow until endRow) {
+            fillRow(y, current)
+            filterRow(current, previous, filterUnit, raw, offset)
+            offset += rowBytes + 1
+            val temp = previous
+            previous = current
+            current = temp
+        }
+        val checksum = Adler32()
+        checksum.update(raw)
+        val output = ByteArrayOutputStream(raw.size / 2 + 64)
+        if (isFirst) {
+            output.write(0x78)
+            output.write(0x9C)
+        }
+        val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+        try {
+            deflater.setInput(raw)
+            val buffer = ByteArray(65536)
+            if (isLast) {
+                deflater.finish()
+                while (!deflater.finished()) {
+                    output.write(buffer, 0, deflater.deflate(buffer))
+                }
+            } else {
+                do {
+                    val count = deflater.deflate(buffer, 0, buffer.size, Deflater.SYNC_FLUSH)
+                    output.write(buffer, 0, count)
+                } while (count == buffer.size)
+            }
+        } finally {
+            deflater.end()
+        }
+        return CompressedBlock(output.toByteArray(), checksum.value, raw.size.toLong())
+    }
+
+    private fun filterRow(row: ByteArray, previous: ByteArray, filterUnit: Int, output: ByteArray, offset: Int) {
+        var subSum = 0
+        var upSum = 0
+        var paethSum = 0
+        for (i in row.indices) {
+            val x = row[i].toInt() and 0xFF
+            val a = if (i >= filterUnit) row[i - filterUnit].toInt() and 0xFF else 0
+            val b = previous[i].toInt() and 0xFF
+            val c = if (i >= filterUnit) previous[i - filterUnit].toInt() and 0xFF else 0
+            subSum += abs((x - a).toByte().toInt())
+            upSum += abs((x - b).toByte().toInt())
+            paethSum += abs((x - paeth(a, b, c)).toByte().toInt())
+        }
+        val filter = if (upSum <= subSum && upSum <= paethSum) 2 else if (subSum <= paethSum) 1 else 4
+        output[offset] = filter.toByte()
+        for (i in row.indices) {
+            val x = row[i].toInt() and 0xFF
+            val a = if (i >= filterUnit) row[i - filterUnit].toInt() and 0xFF else 0
+            val b = previous[i].toInt() and 0xFF
+            val predictor = when (filter) {
+                1 -> a
+                2 -> b
+                else -> paeth(a, b, if (i >= filterUnit) previous[i - filterUnit].toInt() and 0xFF else 0)
+            }
+            output[offset + i + 1] = (x - predictor).toByte()
+        }
+    }
+
+    private fun paeth(a: Int, b: Int, c: Int): Int {
+        val p = a + b - c
+        val pa = abs(p - a)
+        val pb = abs(p - b)
+        val pc = abs(p - c)
+        return if (pa <= pb && pa <= pc) a else if (pb <= pc) b else c
+    }
+
+    private fun combineAdler32(adler1: Long, adler2: Long, length2: Long): Long {
+        val remainder = length2 % ADLER_BASE
+        var sum1 = adler1 and 0xFFFF
+        var sum2 = (remainder * sum1) % ADLER_BASE
+        sum1 += (adler2 and 0xFFFF) + ADLER_BASE - 1
+        sum2 += ((adler1 ushr 16) and 0xFFFF) + ((adler2 ushr 16) and 0xFFFF) + ADLER_BASE - remainder
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE
+        if (sum1 >= ADLER_BASE) sum1 -= ADLER_BASE
+        if (sum2 >= ADLER_BASE shl 1) sum2 -= ADLER_BASE shl 1
+        if (sum2 >= ADLER_BASE) sum2 -= ADLER_BASE
+        return sum1 or (sum2 shl 16)
+    }
+
+    private fun DataOutputStream.writeChunk(type: String, data: ByteArray) {
+        val typeBytes = type.toByteArray(Charsets.US_ASCII)
+        val crc = CRC32()
+        crc.update(typeBytes)
+        crc.update(data)
+        writeInt(data.size)
+        write(typeBytes)
+        write(data)
+        writeInt(crc.value.toInt())
+    }
+
+    private inline fun encode(capacity: Int, order: ByteOrder = ByteOrder.LITTLE_ENDIAN, writer: ByteBuffer.() -> Unit): ByteArray {
+        val buffer = ByteBuffer.allocate(capacity).order(order)
+        buffer.writer()
+        return buffer.array().copyOf(buffer.position())
+    }
+
+    private fun ByteBuffer.putString(value: String) {
+        put(value.toByteArray(Charsets.US_ASCII))
+        put(0.toByte())
+    }
+
+    private inline fun ByteBuffer.putAttribute(name: String, type: String, writer: ByteBuffer.() -> Unit) {
+        putString(name)
+        putString(type)
+        val sizePosition = position()
+        putInt(0)
+        writer()
+        putInt(sizePosition, position() - sizePosition - 4)
+    }
+}
@@ -0,0 +1,251 @@
+package com.grimfox.gec.util
+
+import com.grimfox.gec.WORLD_KIT_APP_DIR
+import com.grimfox.logging.LOG
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicLong
+
+object Metrics {
+
+    private val REPORT_FORMAT = System.getProperty("wk.metrics.report", "none").toLowerCase()
+
+    private val REPORT_DIR = File(System.getProperty("wk.metrics.dir", File(WORLD_KIT_APP_DIR, "Metrics").path))
+
+    private val threadBean = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+
+    private val isAllocationTrackingEnabled = try {
+        val bean = threadBean
+        if (bean != null && bean.isThreadAllocatedMemorySupported) {
+            bean.isThreadAllocatedMemoryEnabled = true
+            true
+        } else {
+            false
+        }
+    } catch (e: Exception) {
+        LOG.debug("Thread allocation tracking unavailable.", e)
+        false
+    }
+
+    class Timer(val name: String) {
+
+        private val count = AtomicLong(0)
+        private val totalNanos = AtomicLong(0)
+        private val maxNanos = AtomicLong(0)
+        private val allocatedBytes = AtomicLong(0)
+
+        inline fun <T> time(block: () -> T): T {
+            val startBytes = threadAllocatedBytes()
+            val start = System.nanoTime()
+            try {
+                return block()
+            } finally {
+                val endBytes = threadAllocatedBytes()
+                record(System.nanoTime() - start, if (startBytes < 0 || endBytes < 0) 0 else endBytes - startBytes)
+            }
+        }
+
+        fun record(nanos: Long, bytes: Long = 0) {
+            count.incrementAndGet()
+            totalNanos.addAndGet(nanos)
+            allocatedBytes.addAndGet(bytes)
+            while (true) {
+                val max = maxNanos.get()
+                if (nanos <= max || maxNanos.compareAndSet(max, nanos)) {
+                    break
+                }
+            }
+        }
+
+        fun value() = TimerValue(name, count.get(), totalNanos.get(), maxNanos.get(), allocatedBytes.get())
+
+        fun drain() = TimerValue(name, count.getAndSet(0), totalNanos.getAndSet(0), maxNanos.getAndSet(0), allocatedBytes.getAndSet(0))
+
+        fun add(value: TimerValue) {
+            count.addAndGet(value.count)
+            totalNanos.addAndGet(value.totalNanos)
+            allocatedBytes.addAndGet(value.allocatedBytes)
+            while (true) {
+                val max = maxNanos.get()
+                if (value.maxNanos <= max || maxNanos.compareAndSet(max, value.maxNanos)) {
+                    break
+                }
+            }
+        }
+    }
+
+    class Counter(val name: String) {
+
+        private val count = AtomicLong(0)
+
+        fun increment() = count.incrementAndGet()
+
+        fun add(delta: Long) = count.addAndGet(delta)
+
+        fun drain() = count.getAndSet(0)
+
+        val value: Long get() = count.get()
+    }
+
+    class Gauge(val name: String) {
+
+        @Volatile var value: Double = 0.0
+    }
+
+    class TimerValue(val name: String, val count: Long, val totalNanos: Long, val maxNanos: Long, val allocatedBytes: Long)
+
+    class Report(val label: String, val startTime: Long, val endTime: Long, val timers: List<TimerValue>, val counters: SortedMap<String, Long>, val gauges: SortedMap<String, Double>) {
+
+        fun toJson(): String {
+            val builder = StringBuilder()
+            builder.append("{\n  \"label\": \"").append(escape(label)).append("\",\n")
+            builder.append("  \"startTime\": ").append(startTime).append(",\n")
+            builder.append("  \"durationMillis\": ").append(endTime - startTime).append(",\n")
+            builder.append("  \"timers\": [")
+            timers.forEachIndexed { i, it ->
+                builder.append(if (i == 0) "\n" else ",\n")
+                builder.append("    {\"name\": \"").append(escape(it.name))
+                        .append("\", \"count\": ").append(it.count)
+                        .append(", \"totalMillis\": ").append(it.totalNanos / 1000000.0)
+                        .append(", \"maxMillis\": ").append(it.maxNanos / 1000000.0)
+                        .append(", \"allocatedBytes\": ").append(it.allocatedBytes).append("}")
+            }
+            builder.append("\n  ],\n  \"counters\": {")
+            counters.entries.forEachIndexed { i, (name, value) ->
+                builder.append(if (i == 0) "\n" else ",\n").append("    \"").append(escape(name)).append("\": ").append(value)
+            }
+            builder.append("\n  },\n  \"gauges\": {")
+            gauges.entries.forEachIndexed { i, (name, value) ->
+                builder.append(if (i == 0) "\n" else ",\n").append("    \"").append(escape(name)).append("\": ").append(value)
+            }
+            builder.append("\n  }\n}\n")
+            return builder.toString()
+        }
+
+        fun toCsv(): String {
+            val builder = StringBuilder("type,name,count,totalMillis,maxMillis,allocatedBytes,value\n")
+            timers.forEach {
+                builder.append("timer,").append(it.name).append(',').append(it.count).append(',').append(it.totalNanos / 1000000.0).append(',').append(it.maxNanos / 1000000.0).append(',').append(it.allocatedBytes).append(",\n")
+            }
+            counters.forEach { (name, value) ->
+                builder.append("counter,").append(name).append(",,,,,").append(value).append('\n')
+            }
+            gauges.forEach { (name, value) ->
+                builder.append("gauge,").append(name).append(",,,,,").append(value).append('\n')
+            }
+            return builder.toString()
+        }
+
+        fun summary(): String {
+            val builder = StringBuilder("$label: ${(endTime - startTime) / 1000.0f}s")
+            timers.forEach {
+                builder.append('\n').append(it.name).append(": ").append((it.totalNanos / 1000000) / 1000.0f).append("s")
+                if (it.count > 1) {
+                    builder.append(" x").append(it.count)
+                }
+                if (it.allocatedBytes > 0) {
+                    builder.append(", ").append(it.allocatedBytes / (1024 * 1024)).append("MB")
+                }
+            }
+            counters.forEach { (name, value) -> builder.append('\n').append(name).append(": ").append(value) }
+            gauges.forEach { (name, value) -> builder.append('\n').append(name).append(": ").append(value) }
+            return builder.toString()
+        }
+
+        private fun escape(value: String) = value.replace("\\", "\\\\").replace("\"", "\\\"")
+    }
+
+    class Registry(val label: String) {
+
+        val startTime = System.currentTimeMillis()
+
+        private val timers = ConcurrentHashMap<String, Timer>()
+        private val counters = ConcurrentHashMap<String, Counter>()
+        private val gauges = ConcurrentHashMap<String, Gauge>()
+
+        fun timer(name: String): Timer = timers.getOrPut(name) { Timer(name) }
+
+        fun counter(name: String): Counter = counters.getOrPut(name) { Counter(name) }
+
+        fun gauge(name: String): Gauge = gauges.getOrPut(name) { Gauge(name) }
+
+        inline fun <T> time(name: String, block: () -> T): T = timer(name).time(block)
+
+        fun drainInto(target: Registry) {
+            timers.values.forEach {
+                val value = it.drain()
+                if (value.count > 0) {
+                    target.timer(it.name).add(value)
+                }
+            }
+            counters.values.forEach {
+                val value = it.drain()
+                if (value != 0L) {
+                    target.counter(it.name).add(value)
+                }
+            }
+            gauges.values.forEach { target.gauge(it.name).value = it.value }
+        }
+
+        fun report() = Report(
+                label,
+                startTime,
+                System.currentTimeMillis(),
+                timers.values.map { it.value() }.sortedBy { it.name },
+                counters.values.associateTo(TreeMap()) { it.name to it.value },
+                gauges.values.associateTo(TreeMap()) { it.name to it.value })
+    }
+
+    val global = Registry("global")
+
+    private val reportListeners = CopyOnWriteArrayList<(Report) -> Unit>()
+
+    @Volatile var lastReport: Report? = null
+        private set
+
+    fun threadAllocatedBytes(): Long {
+        val bean = threadBean
+        return if (isAllocationTrackingEnabled && bean != null) bean.getThreadAllocatedBytes(Thread.currentThread().id) else -1
+    }
+
+    fun timer(name: String): Timer = global.timer(name)
+
+    fun counter(name: String): Counter = global.counter(name)
+
+    fun gauge(name: String): Gauge = global.gauge(name)
+
+    inline fun <T> time(name: String, block: () -> T): T = global.time(name, block)
+
+    fun addReportListener(listener: (Report) -> Unit) {
+        reportListeners.add(listener)
+    }
+
+    fun beginGeneration(label: String) = Registry(label)
+
+    fun endGeneration(registry: Registry): Report {
+        global.drainInto(registry)
+        val report = registry.report()
+        lastReport = report
+        LOG.debug { report.summary() }
+        writeReport(report)
+        reportListeners.forEach { it(report) }
+        return report
+    }
+
+    private fun writeReport(report: Report) {
+        val extension = when (REPORT_FORMAT) {
+            "json", "csv" -> REPORT_FORMAT
+            else -> return
+        }
+        try {
+            REPORT_DIR.mkdirs()
+            val file = File(REPORT_DIR, "${report.label.replace(Regex("[^A-Za-z0-9_-]"), "_")}-${report.startTime}.$extension")
+            file.writeText(if (extension == "json") report.toJson() else report.toCsv())
+        } catch (e: Exception) {
+            LOG.warn("Unable to write metrics report.", e)
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package com.grimfox.gec.util
 
+import com.grimfox.gec.executor
+import com.grimfox.gec.threadCount
 import com.grimfox.gec.util.BuildContinent.RegionParameters
 import com.grimfox.gec.model.Graph
 import com.grimfox.gec.model.Graph.Cell
 import com.grimfox.gec.model.Graph.Vertex
 import com.grimfox.gec.model.ByteArrayMatrix
+import com.grimfox.gec.model.VertexSet
 import com.grimfox.gec.model.geometry.LineSegment2F.Companion.getConnectedEdgeSegments
 import com.grimfox.gec.model.geometry.Point2F
 import com.grimfox.gec.util.Graphs.generateGraph
@@ -147,17 +150,17 @@ object Regions {
             val localRandom = Random(seed)
             val vertices = ArrayList(graph.vertices.toList())
             val interiorVertices = hashMapOf(*vertices.filter { !it.cell.isBorder }.map { Pair(it.id, it) }.toTypedArray())
-            val interiorVertexIds = LinkedHashSet(interiorVertices.keys)
+            val interiorVertexIds = VertexSet.of(graph.vertices.size, interiorVertices.keys)
             for (i in 1..parameters.initialReduction) {
-                val borderPoints = ArrayList(graph.findBorderIds(interiorVertexIds))
+                val borderPoints = graph.findBorderIds(interiorVertexIds).toIntArray()
                 val idToRemove = borderPoints[localRandom.nextInt(borderPoints.size)]
-                interiorVertexIds.remove(idToRemove)
+                interiorVertexIds.removeId(idToRemove)
                 interiorVertices.remove(idToRemove)
             }
-            val bodies = graph.getConnectedBodies(interiorVertexIds)
-            val isViable = bodies.size <= maxBodies && bodies.map { it.size }.min()!! >= parameters.regionPoints
-            if (isViable && bodies.size > maxBodyCount) {
-                maxBodyCount = bodies.size
+            val bodies = graph.labelConnectedComponents(interiorVertexIds, executor, threadCount)
+            val isViable = bodies.count <= maxBodies && bodies.sizes.min()!! >= parameters.regionPoints
+            if (isViable && bodies.count > maxBodyCount) {
+                maxBodyCount = bodies.count
                 maxBodySeed = seed
             }
             if (desires.isNotEmpty()) {
@@ -165,14 +168,14 @@ object Regions {
                 if (tries >= desire.second) {
                     desires.removeAt(0)
                 }
-                if (tries <= desire.second && bodies.size < desire.first + 1) {
+                if (tries <= desire.second && bodies.count < desire.first + 1) {
                     seed = random.nextLong()
                     tries++
                     continue
                 }
             }
             if (isViable) {
-                return Pair(interiorVertices, bodies.size - 1)
+                return Pair(interiorVertices, bodies.count - 1)
             }
             seed = random.nextLong()
             tries++
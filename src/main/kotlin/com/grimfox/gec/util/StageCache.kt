@@ -0,0 +1,685 @@
+package com.grimfox.gec.util
+
+import com.grimfox.gec.CACHE_DIR
+import com.grimfox.gec.model.*
+import com.grimfox.gec.model.geometry.LineSegment2F
+import com.grimfox.gec.model.geometry.Point2F
+import com.grimfox.gec.model.geometry.Point3F
+import com.grimfox.gec.ui.widgets.TextureBuilder.TextureId
+import com.grimfox.gec.util.Biomes.Biome
+import com.grimfox.gec.util.Biomes.ErosionSettings
+import com.grimfox.gec.util.BuildContinent.RegionSplines
+import com.grimfox.gec.util.WaterFlows.ErosionResult
+import com.grimfox.gec.util.WaterFlows.Masks
+import com.grimfox.logging.LOG
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.*
+import java.util.concurrent.Executors
+
+object StageCache {
+
+    private const val FORMAT_VERSION = 1
+    private const val MAGIC = 0x57534331
+    private const val CHUNK_SIZE = 1 shl 20
+
+    private val isEnabled = System.getProperty("wk.stage.cache", "true").toBoolean()
+    private val maxMemoryBytes = (System.getProperty("wk.stage.cache.memory.mb")?.toLongOrNull()?.times(1024 * 1024)) ?: (Runtime.getRuntime().maxMemory() / 8)
+    private val maxDiskBytes = (System.getProperty("wk.stage.cache.disk.mb")?.toLongOrNull() ?: 4096L) * 1024 * 1024
+    private val STAGE_CACHE_DIR = File(CACHE_DIR, "stages")
+    private val SESSION_ID = UUID.randomUUID().toString()
+
+    private val memory = LinkedHashMap<StageKey, Any>(16, 0.75f, true)
+    private val memorySizes = HashMap<StageKey, Long>()
+    private var memoryBytes = 0L
+
+    private val graphDigests = WeakHashMap<Graph, ByteArray>()
+
+    private val diskWriter = Executors.newSingleThreadExecutor { runnable ->
+        val thread = Thread(runnable, "stage-cache-writer")
+        thread.isDaemon = true
+        thread
+    }
+
+    class StageKey private constructor(private val hash: String) {
+
+        override fun equals(other: Any?) = other is StageKey && other.hash == hash
+
+        override fun hashCode() = hash.hashCode()
+
+        override fun toString() = hash
+
+        class Builder(stage: String) {
+
+            private val digest = MessageDigest.getInstance("SHA-256")
+            private val scratch = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+
+            init {
+                add(FORMAT_VERSION)
+                add(stage)
+            }
+
+            fun add(value: Int) = update { putInt(value) }
+
+            fun add(value: Long) = update { putLong(value) }
+
+            fun add(value: Float) = update { putFloat(value) }
+
+            fun add(value: Boolean) = add(if (value) 1 else 0)
+
+            fun add(value: String) = apply {
+                val bytes = value.toByteArray(Charsets.UTF_8)
+                add(bytes.size)
+                digest.update(bytes)
+            }
+
+            fun add(key: StageKey) = add(key.hash)
+
+            fun add(values: FloatArray?) = apply {
+                if (values == null) {
+                    add(-1)
+                } else {
+                    add(values.size)
+                    var offset = 0
+                    while (offset < values.size) {
+                        val length = min(values.size - offset, CHUNK_SIZE / 4)
+                        scratch.clear()
+                        scratch.asFloatBuffer().put(values, offset, length)
+                        scratch.limit(length * 4)
+                        digest.update(scratch)
+                        offset += length
+                    }
+                }
+            }
+
+            fun add(values: IntArray) = apply {
+                add(values.size)
+                var offset = 0
+                while (offset < values.size) {
+                    val length = min(values.size - offset, CHUNK_SIZE / 4)
+                    scratch.clear()
+                    scratch.asIntBuffer().put(values, offset, length)
+                    scratch.limit(length * 4)
+                    digest.update(scratch)
+                    offset += length
+                }
+            }
+
+            fun add(matrix: Matrix<Byte>) = apply {
+                add(matrix.width)
+                val size = matrix.size.toInt()
+                var offset = 0
+                while (offset < size) {
+                    val length = min(size - offset, CHUNK_SIZE)
+                    scratch.clear()
+                    for (i in offset until offset + length) {
+                        scratch.put(matrix[i])
+                    }
+                    scratch.flip()
+                    digest.update(scratch)
+                    offset += length
+                }
+            }
+
+            fun add(graph: Graph) = apply {
+                digest.update(graphDigest(graph))
+            }
+
+            fun add(texture: TextureId) = apply {
+                if (texture === BLANK_TEXTURE) {
+                    add("blank")
+                } else {
+                    add(SESSION_ID)
+                    add(texture.generation)
+                }
+            }
+
+            fun add(settings: ErosionSettings) = apply {
+                add(settings.previousTierBlendWeight)
+                add(settings.elevationPowerMultiplier)
+                add(settings.soilMobilityMultiplier)
+                add(settings.talusOverride ?: Float.NaN)
+                add(settings.terraceJitter)
+                add(settings.terraceJitterFrequency)
+                add(settings.terraceFunction != null)
+            }
+
+            fun add(biome: Biome) = apply {
+                add(biome.name)
+                add(biome.heightMultiplier)
+                add(biome.talusAngles.first)
+                add(biome.talusAngles.second)
+                add(biome.talusAngles.third)
+                add(biome.lowPassSettings)
+                add(biome.midPassSettings)
+                add(biome.highPassSettings)
+                add(biome.soilMobilityShader != null)
+            }
+
+            fun add(biomes: List<Biome>) = apply {
+                add(biomes.size)
+                biomes.forEach { add(it) }
+            }
+
+            fun add(splines: RegionSplines) = apply {
+                addPointLists(splines.coastPoints.map { it.first })
+                splines.coastPoints.forEach { addPointLists(it.second) }
+                splines.coastEdges.forEach {
+                    addEdges(it.first)
+                    it.second.forEach { addEdges(it) }
+                }
+                addEdgeLists(splines.riverEdges)
+                addEdgeLists(splines.customRiverEdges)
+                addEdgeLists(splines.mountainEdges)
+                addEdgeLists(splines.customMountainEdges)
+            }
+
+            private fun addPointLists(lists: List<List<Point2F>>) {
+                add(lists.size)
+                lists.forEach { points ->
+                    add(points.size)
+                    points.forEach {
+                        add(it.x)
+                        add(it.y)
+                    }
+                }
+            }
+
+            private fun addEdges(edges: List<LineSegment2F>) {
+                add(edges.size)
+                edges.forEach {
+                    add(it.a.x)
+                    add(it.a.y)
+                    add(it.b.x)
+                    add(it.b.y)
+                }
+            }
+
+            private fun addEdgeLists(lists: List<List<LineSegment2F>>) {
+                add(lists.size)
+                lists.forEach { addEdges(it) }
+            }
+
+            private inline fun update(writer: ByteBuffer.() -> Unit) = apply {
+                scratch.clear()
+                scratch.writer()
+                scratch.flip()
+                digest.update(scratch)
+            }
+
+            fun build(): StageKey {
+                val bytes = digest.digest()
+                val builder = StringBuilder(bytes.size * 2)
+                bytes.forEach { builder.append(String.format("%02x", it)) }
+                return StageKey(builder.toString())
+            }
+
+            private fun min(a: Int, b: Int) = if (a < b) a else b
+        }
+    }
+
+    private fun graphDigest(graph: Graph): ByteArray {
+        synchronized(graphDigests) {
+            graphDigests[graph]?.let { return it }
+        }
+        val digest = StageKey.Builder("graph")
+                .add(graph.seed)
+                .add(graph.stride ?: -1)
+                .add(graph.vertexIdsToPoints)
+                .add(graph.triangleToVertices)
+                .build().toString().toByteArray(Charsets.UTF_8)
+        synchronized(graphDigests) {
+            graphDigests[graph] = digest
+        }
+        return digest
+    }
+
+    fun key(stage: String, builder: StageKey.Builder.() -> Unit): StageKey? {
+        if (!isEnabled) {
+            return null
+        }
+        val keyBuilder = StageKey.Builder(stage)
+        keyBuilder.builder()
+        return keyBuilder.build()
+    }
+
+    fun childKey(stage: String, parent: StageKey?, builder: StageKey.Builder.() -> Unit): StageKey? {
+        if (parent == null) {
+            return null
+        }
+        return key(stage) {
+            add(parent)
+            builder()
+        }
+    }
+
+    fun contains(key: StageKey?): Boolean {
+        if (key == null) {
+            return false
+        }
+        synchronized(memory) {
+            if (memory.containsKey(key)) {
+                return true
+            }
+        }
+        return cacheFile(key).isFile
+    }
+
+    fun getMasks(key: StageKey?, metrics: Metrics.Registry = Metrics.global): Masks? = get(key, metrics) { readMasks(it) }?.let { copyMasks(it) }
+
+    fun putMasks(key: StageKey?, masks: Masks) {
+        if (key != null) {
+            val cached = copyMasks(masks)
+            put(key, cached, masksSize(cached)) { output -> writeMasks(output, cached) }
+        }
+    }
+
+    internal fun getErosion(key: StageKey?, metrics: Metrics.Registry = Metrics.global): ErosionResult? = get(key, metrics) { readErosion(it) }?.let { copyErosion(it) }
+
+    internal fun putErosion(key: StageKey?, result: ErosionResult) {
+        if (key != null) {
+            val cached = copyErosion(result)
+            put(key, cached, erosionSize(cached)) { output -> writeErosion(output, cached) }
+        }
+    }
+
+    private fun copyMasks(masks: Masks): Masks {
+        return Masks(
+                copyByteMatrix(masks.biomeMask),
+                copyByteMatrix(masks.landMask),
+                copyFloatMatrix(masks.underWaterMask),
+                copyShortMatrix(masks.elevationPowerMask),
+                copyShortMatrix(masks.startingHeightsMask),
+                copyShortMatrix(masks.soilMobilityMask),
+                copyShortMatrix(masks.coastalDistanceMask))
+    }
+
+    private fun copyErosion(result: ErosionResult): ErosionResult {
+        return ErosionResult(
+                copyFloatMatrix(result.heightMap),
+                result.flowMap?.let { copyFloatMatrix(it) },
+                result.soilDensityMap?.let { copyFloatMatrix(it) },
+                result.peakLines?.let { copyShortMatrix(it) },
+                result.riverLines?.let { copyShortMatrix(it) },
+                result.riverSplines?.map { spline -> spline.map { Point3F(it.x, it.y, it.z) } })
+    }
+
+    private fun copyByteMatrix(matrix: Matrix<Byte>): ByteBufferMatrix {
+        val size = matrix.size.toInt()
+        val output = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder())
+        if (matrix is ByteBufferMatrix) {
+            val source = matrix.buffer.duplicate()
+            source.clear()
+            source.limit(size)
+            output.put(source)
+        } else {
+            for (i in 0 until size) {
+                output.put(matrix[i])
+            }
+        }
+        output.flip()
+        return ByteBufferMatrix(matrix.width, output)
+    }
+
+    private fun copyFloatMatrix(matrix: Matrix<Float>): FloatArrayMatrix {
+        return if (matrix is FloatArrayMatrix) {
+            FloatArrayMatrix(matrix.width, matrix.array.copyOf())
+        } else {
+            FloatArrayMatrix(matrix.width) { matrix[it] }
+        }
+    }
+
+    private fun copyShortMatrix(matrix: ShortArrayMatrix) = ShortArrayMatrix(matrix.width, matrix.array.copyOf())
+
+    private inline fun <reified T : Any> get(key: StageKey?, metrics: Metrics.Registry, reader: (CacheInput) -> T): T? {
+        if (key == null) {
+            return null
+        }
+        synchronized(memory) {
+            val cached = memory[key]
+            if (cached is T) {
+                metrics.counter("stageCache.memoryHits").increment()
+                return cached
+            }
+        }
+        val file = cacheFile(key)
+        if (!file.isFile) {
+            metrics.counter("stageCache.misses").increment()
+            return null
+        }
+        return try {
+            val value = metrics.time("stageCache.diskRead") {
+                FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                    val input = CacheInput(channel)
+                    if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                        throw IOException("Unrecognized stage cache file: ${file.name}")
+                    }
+                    reader(input)
+                }
+            }
+            file.setLastModified(System.currentTimeMillis())
+            metrics.counter("stageCache.diskHits").increment()
+            putInMemory(key, value, sizeOf(value))
+            value
+        } catch (e: Exception) {
+            LOG.warn("Discarding unreadable stage cache file: ${file.name}", e)
+            file.delete()
+            null
+        }
+    }
+
+    private fun sizeOf(value: Any) = when (value) {
+        is Masks -> masksSize(value)
+        is ErosionResult -> erosionSize(value)
+        else -> 0L
+    }
+
+    private fun put(key: StageKey?, value: Any, size: Long, writer: (CacheOutput) -> Unit) {
+        if (key == null) {
+            return
+        }
+        putInMemory(key, value, size)
+        diskWriter.execute {
+            val file = cacheFile(key)
+            if (file.isFile) {
+                return@execute
+            }
+            val tempFile = File(STAGE_CACHE_DIR, "$key.tmp")
+            try {
+                STAGE_CACHE_DIR.mkdirs()
+                Metrics.time("stageCache.diskWrite") {
+                    FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).use { channel ->
+                        val output = CacheOutput(channel)
+                        output.writeInt(MAGIC)
+                        output.writeInt(FORMAT_VERSION)
+                        writer(output)
+                        output.flush()
+                    }
+                }
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+                trimDisk()
+            } catch (e: Exception) {
+                LOG.warn("Unable to write stage cache file: ${file.name}", e)
+                tempFile.delete()
+            }
+        }
+    }
+
+    private fun putInMemory(key: StageKey, value: Any, size: Long) {
+        if (size > maxMemoryBytes) {
+            return
+        }
+        synchronized(memory) {
+            if (memory.put(key, value) == null) {
+                memorySizes[key] = size
+                memoryBytes += size
+            }
+            val iterator = memory.entries.iterator()
+            while (memoryBytes > maxMemoryBytes && iterator.hasNext()) {
+                val eldest = iterator.next()
+                if (eldest.key != key) {
+                    memoryBytes -= memorySizes.remove(eldest.key) ?: 0L
+                    iterator.remove()
+                }
+            }
+        }
+    }
+
+    private fun trimDisk() {
+        val files = STAGE_CACHE_DIR.listFiles { file -> file.name.endsWith(".stage") } ?: return
+        var totalBytes = files.map { it.length() }.sum()
+        if (totalBytes <= maxDiskBytes) {
+            return
+        }
+        files.sortBy { it.lastModified() }
+        for (file in files) {
+            if (totalBytes <= maxDiskBytes) {
+                break
+            }
+            val length = file.length()
+            if (file.delete()) {
+                totalBytes -= length
+            }
+        }
+    }
+
+    private fun cacheFile(key: StageKey) = File(STAGE_CACHE_DIR, "$key.stage")
+
+    private fun masksSize(masks: Masks): Long {
+        val pixels = masks.biomeMask.size
+        return pixels * 2 + masks.underWaterMask.size * 4 + pixels * 8
+    }
+
+    private fun erosionSize(result: ErosionResult): Long {
+        return result.heightMap.size * 4 +
+                (result.flowMap?.size ?: 0L) * 4 +
+                (result.soilDensityMap?.size ?: 0L) * 4 +
+                (result.peakLines?.size ?: 0L) * 2 +
+                (result.riverLines?.size ?: 0L) * 2 +
+                (result.riverSplines?.sumBy { it.size * 12 }?.toLong() ?: 0L)
+    }
+
+    private fun writeMasks(output: CacheOutput, masks: Masks) {
+        output.writeByteMatrix(masks.biomeMask)
+        output.writeByteMatrix(masks.landMask)
+        output.writeFloatMatrix(masks.underWaterMask)
+        output.writeShortMatrix(masks.elevationPowerMask)
+        output.writeShortMatrix(masks.startingHeightsMask)
+        output.writeShortMatrix(masks.soilMobilityMask)
+        output.writeShortMatrix(masks.coastalDistanceMask)
+    }
+
+    private fun readMasks(input: CacheInput): Masks {
+        return Masks(
+                input.readByteMatrix(),
+                input.readByteMatrix(),
+                input.readFloatMatrix(),
+                input.readShortMatrix()!!,
+                input.readShortMatrix()!!,
+                input.readShortMatrix()!!,
+                input.readShortMatrix()!!)
+    }
+
+    private fun writeErosion(output: CacheOutput, result: ErosionResult) {
+        output.writeFloatMatrix(result.heightMap)
+        output.writeFloatMatrix(result.flowMap)
+        output.writeFloatMatrix(result.soilDensityMap)
+        output.writeShortMatrix(result.peakLines)
+        output.writeShortMatrix(result.riverLines)
+        val splines = result.riverSplines
+        if (splines == null) {
+            output.writeInt(-1)
+        } else {
+            output.writeInt(splines.size)
+            splines.forEach { spline ->
+                output.writeInt(spline.size)
+                spline.forEach {
+                    output.writeFloat(it.x)
+                    output.writeFloat(it.y)
+                    output.writeFloat(it.z)
+                }
+            }
+        }
+    }
+
+    private fun readErosion(input: CacheInput): ErosionResult {
+        val heightMap = input.readFloatMatrix()!!
+        val flowMap = input.readFloatMatrix()
+        val soilDensityMap = input.readFloatMatrix()
+        val peakLines = input.readShortMatrix()
+        val riverLines = input.readShortMatrix()
+        val splineCount = input.readInt()
+        val riverSplines = if (splineCount < 0) {
+            null
+        } else {
+            (0 until splineCount).map {
+                (0 until input.readInt()).map { Point3F(input.readFloat(), input.readFloat(), input.readFloat()) }
+            }
+        }
+        return ErosionResult(heightMap, flowMap, soilDensityMap, peakLines, riverLines, riverSplines)
+    }
+
+    private class CacheOutput(private val channel: FileChannel) {
+
+        private val buffer = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+
+        private fun ensure(bytes: Int) {
+            if (buffer.remaining() < bytes) {
+                flush()
+            }
+        }
+
+        fun flush() {
+            buffer.flip()
+            while (buffer.hasRemaining()) {
+                channel.write(buffer)
+            }
+            buffer.clear()
+        }
+
+        fun writeInt(value: Int) {
+            ensure(4)
+            buffer.putInt(value)
+        }
+
+        fun writeFloat(value: Float) {
+            ensure(4)
+            buffer.putFloat(value)
+        }
+
+        fun writeByteMatrix(matrix: Matrix<Byte>) {
+            writeInt(matrix.width)
+            val size = matrix.size.toInt()
+            for (i in 0 until size) {
+                ensure(1)
+                buffer.put(matrix[i])
+            }
+        }
+
+        fun writeShortMatrix(matrix: ShortArrayMatrix?) {
+            if (matrix == null) {
+                writeInt(-1)
+                return
+            }
+            writeInt(matrix.width)
+            val array = matrix.array
+            var offset = 0
+            while (offset < array.size) {
+                ensure(2)
+                val length = Math.min(array.size - offset, buffer.remaining() / 2)
+                buffer.asShortBuffer().put(array, offset, length)
+                buffer.position(buffer.position() + length * 2)
+                offset += length
+            }
+        }
+
+        fun writeFloatMatrix(matrix: Matrix<Float>?) {
+            if (matrix == null) {
+                writeInt(-1)
+                return
+            }
+            writeInt(matrix.width)
+            if (matrix is FloatArrayMatrix) {
+                val array = matrix.array
+                var offset = 0
+                while (offset < array.size) {
+                    ensure(4)
+                    val length = Math.min(array.size - offset, buffer.remaining() / 4)
+                    buffer.asFloatBuffer().put(array, offset, length)
+                    buffer.position(buffer.position() + length * 4)
+                    offset += length
+                }
+            } else {
+                for (i in 0 until matrix.size.toInt()) {
+                    writeFloat(matrix[i])
+                }
+            }
+        }
+    }
+
+    private class CacheInput(private val channel: FileChannel) {
+
+        private val buffer = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+
+        init {
+            buffer.limit(0)
+        }
+
+        private fun ensure(bytes: Int) {
+            if (buffer.remaining() < bytes) {
+                buffer.compact()
+                while (buffer.position() < bytes) {
+                    if (channel.read(buffer) < 0) {
+                        throw EOFException()
+                    }
+                }
+                buffer.flip()
+            }
+        }
+
+        fun readInt(): Int {
+            ensure(4)
+            return buffer.int
+        }
+
+        fun readFloat(): Float {
+            ensure(4)
+            return buffer.float
+        }
+
+        fun readByteMatrix(): ByteBufferMatrix {
+            val width = readInt()
+            val output = ByteBuffer.allocateDirect(width * width).order(ByteOrder.nativeOrder())
+            while (output.hasRemaining()) {
+                ensure(1)
+                val slice = buffer.duplicate()
+                val length = Math.min(slice.remaining(), output.remaining())
+                slice.limit(slice.position() + length)
+                output.put(slice)
+                buffer.position(buffer.position() + length)
+            }
+            output.flip()
+            return ByteBufferMatrix(width, output)
+        }
+
+        fun readShortMatrix(): ShortArrayMatrix? {
+            val width = readInt()
+            if (width < 0) {
+                return null
+            }
+            val array = ShortArray(width * width)
+            var offset = 0
+            while (offset < array.size) {
+                ensure(2)
+                val length = Math.min(array.size - offset, buffer.remaining() / 2)
+                buffer.asShortBuffer().get(array, offset, length)
+                buffer.position(buffer.position() + length * 2)
+                offset += length
+            }
+            return ShortArrayMatrix(width, array)
+        }
+
+        fun readFloatMatrix(): FloatArrayMatrix? {
+            val width = readInt()
+            if (width < 0) {
+                return null
+            }
+            val array = FloatArray(width * width)
+            var offset = 0
+            while (offset < array.size) {
+                ensure(4)
+                val length = Math.min(array.size - offset, buffer.remaining() / 4)
+                buffer.asFloatBuffer().get(array, offset, length)
+                buffer.position(buffer.position() + length * 4)
+                offset += length
+            }
+            return FloatArrayMatrix(width, array)
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.grimfox.gec.util
 
+import com.grimfox.gec.CACHE_DIR
 import com.grimfox.gec.model.*
 import com.grimfox.gec.ui.nvgproxy.*
 import com.grimfox.gec.ui.widgets.TextureBuilder.TextureId
 import com.grimfox.joml.SimplexNoise.noise
+import com.grimfox.logging.LOG
 import org.lwjgl.opengl.EXTTextureFilterAnisotropic.*
 import org.lwjgl.opengl.GL11
 import org.lwjgl.opengl.GL11.*
@@ -14,8 +16,15 @@ import org.lwjgl.opengl.GL32.GL_TEXTURE_CUBE_MAP_SEAMLESS
 import java.awt.Transparency
 import java.awt.color.ColorSpace
 import java.awt.image.*
-import java.io.DataInputStream
+import java.io.*
 import java.nio.*
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.concurrent.Executors
+import java.util.stream.IntStream
 import java.util.zip.GZIPInputStream
 import javax.imageio.ImageIO
 
@@ -273,11 +282,21 @@ fun loadCubeMap3DF32(cubeMap: String): Pair<TextureId, Int> {
 }
 
 fun loadTexture2D(minFilter: Int, magFilter: Int, baseImage: String, generateMipMaps: Boolean, clampToEdge: Boolean, noiseAmount: Int = 0, noiseScale: Float = 0.0f, vararg mipMaps: String): Triple<Int, Int, Int> {
-    val bufferedImage = getResourceStream(baseImage).use { ImageIO.read(it) }
+    val resources = (listOf(baseImage) + mipMaps).map { resource -> getResourceStream(resource).use { it.readBytes() } }
+    val cacheFile = TextureCache.cacheFile(resources, noiseAmount, noiseScale)
+    val cached = if (cacheFile != null) TextureCache.read(cacheFile, minFilter, magFilter, generateMipMaps, clampToEdge) else null
+    if (cached != null) {
+        return cached.loadImageDataIntoOpengl()
+    }
+    val bufferedImage = ImageIO.read(ByteArrayInputStream(resources.first()))
     val mipMapImages = Array<BufferedImage>(mipMaps.size) {
-        getResourceStream(mipMaps[it]).use { ImageIO.read(it) }
+        ImageIO.read(ByteArrayInputStream(resources[it + 1]))
+    }
+    val imageData = prepareImageDataForLoading(minFilter, magFilter, bufferedImage, generateMipMaps, clampToEdge, noiseAmount, noiseScale, *mipMapImages)
+    if (cacheFile != null) {
+        TextureCache.write(cacheFile, imageData)
     }
-    return loadTexture2D(minFilter, magFilter, bufferedImage, generateMipMaps, clampToEdge, noiseAmount, noiseScale, *mipMapImages)
+    return imageData.loadImageDataIntoOpengl()
 }
 
 fun loadTexture2D(minFilter: Int, magFilter: Int, bufferedImage: BufferedImage, generateMipMaps: Boolean, clampToEdge: Boolean, noiseAmount: Int = 0, noiseScale: Float = 0.0f, vararg mipMaps: BufferedImage): Triple<Int, Int, Int> {
@@ -321,7 +340,7 @@ fun prepareImageDataForLoading(minFilter: Int, magFilter: Int, bufferedImage: Bu
             type = GL_FLOAT
         }
     }
-    val data: ByteBuffer = if (noiseAmount == 0) readImageData(usableImage, components, bufferType) else readImageDataWithNoise(usableImage, components, bufferType, noiseAmount, noiseScale)
+    val data = readImageData(usableImage, components, bufferType, noiseAmount, noiseScale)
     val unpackAlignment: Int
     val internalFormat: Int
     val format = when (components) {
@@ -410,37 +429,36 @@ fun prepareImageDataForLoading(minFilter: Int, magFilter: Int, bufferedImage: Bu
         }
     }
     val mipMapData = mipMaps.map {
-        (if (noiseAmount == 0) readImageData(it, components, bufferType) else readImageDataWithNoise(it, components, bufferType, noiseAmount, noiseScale)) to it
+        Triple(readImageData(it, components, bufferType, noiseAmount, noiseScale), it.width, it.height)
     }
-    return LoadableImageData(unpackAlignment, internalFormat, usableImage, format, type, data, generateMipMaps, mipMapData, minFilter, magFilter, clampToEdge, width, height)
+    return LoadableImageData(unpackAlignment, internalFormat, format, type, data, generateMipMaps, mipMapData, minFilter, magFilter, clampToEdge, width, height)
 }
 
 class LoadableImageData(
-        private val unpackAlignment: Int,
-        private val internalFormat: Int,
-        private val usableImage: BufferedImage,
-        private val format: Int,
-        private val type: Int,
-        private val data: ByteBuffer,
+        internal val unpackAlignment: Int,
+        internal val internalFormat: Int,
+        internal val format: Int,
+        internal val type: Int,
+        internal val data: ByteBuffer,
         private val generateMipMaps: Boolean,
-        private val mipMapData: List<Pair<ByteBuffer, BufferedImage>>,
+        internal val mipMapData: List<Triple<ByteBuffer, Int, Int>>,
         private val minFilter: Int,
         private val magFilter: Int,
         private val clampToEdge: Boolean,
-        private val width: Int,
-        private val height: Int) {
+        internal val width: Int,
+        internal val height: Int) {
 
     fun loadImageDataIntoOpengl(): Triple<Int, Int, Int> {
         val textureId = glGenTextures()
         glBindTexture(GL_TEXTURE_2D, textureId)
         glPixelStorei(GL_UNPACK_ALIGNMENT, unpackAlignment)
-        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, usableImage.width, usableImage.height, 0, format, type, data)
+        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, data)
         if (generateMipMaps) {
             glGenerateMipmap(GL_TEXTURE_2D)
         }
-        mipMapData.forEachIndexed { i, (levelData, levelImage) ->
+        mipMapData.forEachIndexed { i, (levelData, levelWidth, levelHeight) ->
             try {
-                glTexImage2D(GL_TEXTURE_2D, i + 1, internalFormat, levelImage.width, levelImage.height, 0, format, type, levelData)
+                glTexImage2D(GL_TEXTURE_2D, i + 1, internalFormat, levelWidth, levelHeight, 0, format, type, levelData)
             } catch (e: Exception) {
                 throw IllegalStateException("unable to load mip map data with format not matching base image", e)
             }
@@ -456,114 +474,180 @@ class LoadableImageData(
     }
 }
 
-private fun readImageData(image: BufferedImage, components: Int, bufferType: Int): ByteBuffer {
-    val sampleModel = image.sampleModel
-    val dataBuffer = image.raster.dataBuffer
+
+private const val IMAGE_BAND_ROWS = 32
+
+private fun readImageData(image: BufferedImage, components: Int, bufferType: Int, noiseAmount: Int, noiseScale: Float): ByteBuffer {
+    val raster = image.raster
     val width = image.width
     val height = image.height
-    val bands = intArrayOf(0, 1, 2, 3)
-    return when (bufferType) {
-        DataBuffer.TYPE_BYTE -> {
-            val textureData = ByteBuffer.allocateDirect(width * height * components)
-            var offset = 0
-            for (y in 0 until height) {
-                for (x in 0 until width) {
-                    for (band in 0 until components) {
-                        textureData.put(offset++, sampleModel.getSample(x, y, bands[band], dataBuffer).toByte())
+    val bands = raster.numBands
+    if (bands < components) {
+        throw IllegalStateException("unable to load image data with fewer bands than base image")
+    }
+    val componentBytes = when (bufferType) {
+        DataBuffer.TYPE_BYTE -> 1
+        DataBuffer.TYPE_USHORT -> 2
+        DataBuffer.TYPE_FLOAT -> 4
+        else -> throw IllegalStateException("unable to load texture with invalid data type")
+    }
+    val noiseLinearScale = (Math.pow(2.0, noiseScale.toDouble()) * (1.0 / 4096.0)).toFloat() * (4096.0f / width)
+    val noise = noiseAmount.coerceIn(0..127)
+    val bytes = ByteBuffer.allocateDirect(width * height * components * componentBytes).order(ByteOrder.nativeOrder())
+    IntStream.range(0, (height + IMAGE_BAND_ROWS - 1) / IMAGE_BAND_ROWS).parallel().forEach { band ->
+        val y0 = band * IMAGE_BAND_ROWS
+        val rows = Math.min(IMAGE_BAND_ROWS, height - y0)
+        val output = bytes.duplicate().order(ByteOrder.nativeOrder())
+        var offset = y0 * width * components
+        when (bufferType) {
+            DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT -> {
+                val samples = raster.getPixels(0, y0, width, rows, null as IntArray?)
+                val isByte = bufferType == DataBuffer.TYPE_BYTE
+                val maxSample = if (isByte) 255 else 65535
+                val scaledNoise = if (isByte) noise else noise * 256
+                val textureData = if (isByte) null else output.asShortBuffer()
+                var sampleOffset = 0
+                for (y in y0 until y0 + rows) {
+                    for (x in 0 until width) {
+                        val adjustment = if (noise == 0) 0 else Math.round(noise(x * noiseLinearScale, y * noiseLinearScale) * scaledNoise)
+                        for (component in 0 until components) {
+                            val sample = if (noise == 0) samples[sampleOffset + component] else (samples[sampleOffset + component] + adjustment).coerceIn(0, maxSample)
+                            if (textureData == null) {
+                                output.put(offset++, sample.toByte())
+                            } else {
+                                textureData.put(offset++, sample.toShort())
+                            }
+                        }
+                        sampleOffset += bands
                     }
                 }
             }
-            textureData
-        }
-        DataBuffer.TYPE_USHORT -> {
-            val bytes = ByteBuffer.allocateDirect(width * height * components * 2).order(ByteOrder.nativeOrder())
-            val textureData = bytes.asShortBuffer()
-            var offset = 0
-            for (y in 0 until height) {
-                for (x in 0 until width) {
-                    for (band in 0 until components) {
-                        textureData.put(offset++, sampleModel.getSample(x, y, bands[band], dataBuffer).toShort())
+            else -> {
+                val samples = raster.getPixels(0, y0, width, rows, null as FloatArray?)
+                val noiseF = noise / 256.0f
+                val textureData = output.asFloatBuffer()
+                var sampleOffset = 0
+                for (y in y0 until y0 + rows) {
+                    for (x in 0 until width) {
+                        val adjustment = if (noise == 0) 0.0f else noise(x * noiseLinearScale, y * noiseLinearScale) * noiseF
+                        for (component in 0 until components) {
+                            val sample = if (noise == 0) samples[sampleOffset + component] else (samples[sampleOffset + component] + adjustment).coerceIn(0.0f, 1.0f)
+                            textureData.put(offset++, sample)
+                        }
+                        sampleOffset += bands
                     }
                 }
             }
-            bytes
         }
-        DataBuffer.TYPE_FLOAT -> {
-            val bytes = ByteBuffer.allocateDirect(width * height * components * 4).order(ByteOrder.nativeOrder())
-            val textureData = bytes.asFloatBuffer()
-            var offset = 0
-            for (y in 0 until height) {
-                for (x in 0 until width) {
-                    for (band in 0 until components) {
-                        textureData.put(offset++, sampleModel.getSampleFloat(x, y, bands[band], dataBuffer))
-                    }
-                }
-            }
-            bytes
+    }
+    return bytes
+}
+
+private object TextureCache {
+
+    private const val FORMAT_VERSION = 1
+    private const val MAGIC = 0x57545831
+    private const val HEADER_INTS = 7
+
+    private val isEnabled = System.getProperty("wk.texture.cache", "true").toBoolean()
+    private val TEXTURE_CACHE_DIR = File(CACHE_DIR, "textures")
+
+    private val diskWriter = Executors.newSingleThreadExecutor { runnable ->
+        val thread = Thread(runnable, "texture-cache-writer")
+        thread.isDaemon = true
+        thread
+    }
+
+    fun cacheFile(resources: List<ByteArray>, noiseAmount: Int, noiseScale: Float): File? {
+        if (!isEnabled) {
+            return null
         }
-        else -> {
-            throw IllegalStateException("unable to load texture with invalid data type")
+        val digest = MessageDigest.getInstance("SHA-256")
+        val header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN)
+        header.putInt(FORMAT_VERSION)
+        header.putInt(if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) 0 else 1)
+        header.putInt(noiseAmount)
+        header.putFloat(noiseScale)
+        header.putInt(resources.size)
+        digest.update(header.array())
+        resources.forEach {
+            digest.update(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(it.size).array())
+            digest.update(it)
         }
+        val hash = digest.digest().joinToString("") { String.format("%02x", it) }
+        return File(TEXTURE_CACHE_DIR, "$hash.tex")
     }
-}
 
-private fun readImageDataWithNoise(image: BufferedImage, components: Int, bufferType: Int, noiseAmount: Int, noiseScale: Float): ByteBuffer {
-    val noiseLinearScale = (Math.pow(2.0, noiseScale.toDouble()) * (1.0 / 4096.0)).toFloat() * (4096.0f / image.width)
-    var noise = noiseAmount.coerceIn(0..127)
-    val sampleModel = image.sampleModel
-    val dataBuffer = image.raster.dataBuffer
-    val width = image.width
-    val height = image.height
-    val bands = intArrayOf(0, 1, 2, 3)
-    return when (bufferType) {
-        DataBuffer.TYPE_BYTE -> {
-            val textureData = ByteBuffer.allocateDirect(width * height * components)
-            var offset = 0
-            for (y in 0 until height) {
-                for (x in 0 until width) {
-                    for (band in 0 until components) {
-                        val adjustment = Math.round(noise(x * noiseLinearScale, y * noiseLinearScale) * noise)
-                        val sample = (sampleModel.getSample(x, y, bands[band], dataBuffer) + adjustment).coerceIn(0, 255)
-                        textureData.put(offset++, sample.toByte())
-                    }
+    fun read(file: File, minFilter: Int, magFilter: Int, generateMipMaps: Boolean, clampToEdge: Boolean): LoadableImageData? {
+        if (!file.isFile) {
+            return null
+        }
+        try {
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                val header = readFully(channel, ByteBuffer.allocate(HEADER_INTS * 4).order(ByteOrder.LITTLE_ENDIAN))
+                if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+                    return null
+                }
+                val unpackAlignment = header.getInt(8)
+                val internalFormat = header.getInt(12)
+                val format = header.getInt(16)
+                val type = header.getInt(20)
+                val levels = (0 until header.getInt(24)).map {
+                    val levelHeader = readFully(channel, ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN))
+                    val levelData = readFully(channel, ByteBuffer.allocateDirect(levelHeader.getInt(8)).order(ByteOrder.nativeOrder()))
+                    Triple(levelData, levelHeader.getInt(0), levelHeader.getInt(4))
                 }
+                val (data, width, height) = levels.first()
+                return LoadableImageData(unpackAlignment, internalFormat, format, type, data, generateMipMaps, levels.drop(1), minFilter, magFilter, clampToEdge, width, height)
             }
-            textureData
+        } catch (e: Exception) {
+            LOG.warn("Unable to read cached texture: ${file.name}", e)
+            file.delete()
+            return null
         }
-        DataBuffer.TYPE_USHORT -> {
-            noise *= 256
-            val bytes = ByteBuffer.allocateDirect(width * height * components * 2).order(ByteOrder.nativeOrder())
-            val textureData = bytes.asShortBuffer()
-            var offset = 0
-            for (y in 0 until height) {
-                for (x in 0 until width) {
-                    for (band in 0 until components) {
-                        val adjustment = Math.round(noise(x * noiseLinearScale, y * noiseLinearScale) * noise)
-                        val sample = (sampleModel.getSample(x, y, bands[band], dataBuffer) + adjustment).coerceIn(0, 65535)
-                        textureData.put(offset++, sample.toShort())
+    }
+
+    fun write(file: File, imageData: LoadableImageData) {
+        diskWriter.execute {
+            val tempFile = File(TEXTURE_CACHE_DIR, "${file.name}.tmp")
+            try {
+                TEXTURE_CACHE_DIR.mkdirs()
+                val levels = listOf(Triple(imageData.data, imageData.width, imageData.height)) + imageData.mipMapData
+                FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE).use { channel ->
+                    val header = ByteBuffer.allocate(HEADER_INTS * 4).order(ByteOrder.LITTLE_ENDIAN)
+                    header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(imageData.unpackAlignment).putInt(imageData.internalFormat).putInt(imageData.format).putInt(imageData.type).putInt(levels.size)
+                    header.flip()
+                    writeFully(channel, header)
+                    levels.forEach { (levelData, width, height) ->
+                        val levelBytes = levelData.duplicate()
+                        levelBytes.clear()
+                        val levelHeader = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN).putInt(width).putInt(height).putInt(levelBytes.remaining())
+                        levelHeader.flip()
+                        writeFully(channel, levelHeader)
+                        writeFully(channel, levelBytes)
                     }
                 }
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } catch (e: Exception) {
+                LOG.warn("Unable to write cached texture: ${file.name}", e)
+                tempFile.delete()
             }
-            bytes
         }
-        DataBuffer.TYPE_FLOAT -> {
-            val noiseF = noise / 256.0f
-            val bytes = ByteBuffer.allocateDirect(width * height * components * 4).order(ByteOrder.nativeOrder())
-            val textureData = bytes.asFloatBuffer()
-            var offset = 0
-            for (y in 0 until height) {
-                for (x in 0 until width) {
-                    for (band in 0 until components) {
-                        val adjustment = noise(x * noiseLinearScale, y * noiseLinearScale) * noiseF
-                        val sample = (sampleModel.getSampleFloat(x, y, bands[band], dataBuffer) + adjustment).coerceIn(0.0f, 1.0f)
-                        textureData.put(offset++, sample)
-                    }
-                }
+    }
+
+    private fun readFully(channel: FileChannel, buffer: ByteBuffer): ByteBuffer {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw EOFException()
             }
-            bytes
         }
-        else -> {
-            throw IllegalStateException("unable to load texture with invalid data type")
+        buffer.flip()
+        return buffer
+    }
+
+    private fun writeFully(channel: FileChannel, buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer)
         }
     }
-}
\ No newline at end of file
+}
@@ -211,7 +211,8 @@ inline fun <reified T> timeIt(message: String?, accumulator: AtomicLong?, callba
         val ret = callback()
         val totalNano = System.nanoTime() - time
         if (message != null) {
-            println("$message: ${(totalNano / 1000000) / 1000.0f}s")
+            Metrics.timer(message).record(totalNano)
+            LOG.debug { "$message: ${(totalNano / 1000000) / 1000.0f}s" }
         }
         accumulator?.addAndGet(totalNano)
         return ret
@@ -242,8 +243,10 @@ class StopWatch(var message: String? = null, var accumulator: AtomicLong? = null
 
     fun stop(): Long {
         val totalNano = System.nanoTime() - time
+        val message = message
         if (message != null) {
-            println("$message: ${(totalNano / 1000000) / 1000.0f}s")
+            Metrics.timer(message).record(totalNano)
+            LOG.debug { "$message: ${(totalNano / 1000000) / 1000.0f}s" }
         }
         accumulator?.addAndGet(totalNano)
         return totalNano
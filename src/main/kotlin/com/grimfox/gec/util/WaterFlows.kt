@@ -6,12 +6,12 @@ import com.grimfox.gec.model.Graph.Vertices
 import com.grimfox.gec.model.geometry.*
 import com.grimfox.gec.ui.widgets.TextureBuilder
 import com.grimfox.gec.ui.widgets.TextureBuilder.TextureId
+import com.grimfox.gec.ui.widgets.TextureBuilder.buildTextureRedFloat
 import com.grimfox.gec.ui.widgets.TextureBuilder.buildTextureRedShort
 import com.grimfox.gec.ui.widgets.TextureBuilder.buildTextureRgbFloat
 import com.grimfox.gec.ui.widgets.TextureBuilder.buildTextureRgbaByte
 import com.grimfox.gec.ui.widgets.TextureBuilder.extractTextureRedByte
 import com.grimfox.gec.ui.widgets.TextureBuilder.extractTextureRedFloat
-import com.grimfox.gec.ui.widgets.TextureBuilder.extractTextureRedShort
 import com.grimfox.gec.ui.widgets.TextureBuilder.render
 import com.grimfox.gec.ui.widgets.TextureBuilder.renderLandImage
 import com.grimfox.gec.ui.widgets.TextureBuilder.renderNormalAndAoRgbaByte
@@ -19,20 +19,19 @@ import com.grimfox.gec.ui.widgets.TextureBuilder.renderTrianglesRedFloat
 import com.grimfox.gec.util.Biomes.*
 import com.grimfox.gec.util.BuildContinent.RegionSplines
 import com.grimfox.gec.util.Rendering.renderEdges
+import com.grimfox.gec.util.Rendering.renderEdgesRedShort
 import com.grimfox.gec.util.Rendering.renderRegionBorders
+import com.grimfox.gec.util.Rendering.renderRegionBordersRedShort
 import com.grimfox.gec.util.Rendering.renderRegions
+import com.grimfox.gec.util.StageCache.StageKey
 import com.grimfox.gec.util.geometry.renderTriangle
 import com.grimfox.joml.Matrix4f
 import com.grimfox.joml.SimplexNoise.noise
+import com.grimfox.logging.LOG
 import kotlinx.coroutines.*
 import org.lwjgl.BufferUtils
 import org.lwjgl.opengl.*
 import org.lwjgl.opengl.GL11.*
-import java.awt.Transparency
-import java.awt.color.ColorSpace
-import java.awt.image.BufferedImage
-import java.awt.image.ComponentColorModel
-import java.awt.image.DataBuffer
 import java.io.File
 import java.nio.ByteBuffer
 import java.text.DecimalFormat
@@ -40,8 +39,6 @@ import java.util.*
 import java.util.concurrent.*
 import java.util.concurrent.CancellationException
 import java.util.concurrent.atomic.AtomicInteger
-import java.util.concurrent.atomic.AtomicLong
-import javax.imageio.ImageIO
 import kotlin.collections.ArrayList
 import kotlin.math.*
 
@@ -93,6 +90,7 @@ object WaterFlows {
     }
 
     private const val SIMPLEX_SCALE = 96.0f
+    private const val PREVIEW_RIVER_MAP_WIDTH = 1024
     private val threadCount = Runtime.getRuntime().availableProcessors()
     private val lowDictionariesTriplet = preferences.lowDictionaries4!!.value
     private val lowMaskSize = lowDictionariesTriplet.first
@@ -126,9 +124,86 @@ object WaterFlows {
         val children: MutableCollection<WaterNode> = LinkedList()
     }
 
-    data class PassKey(val lake1: Int, val lake2: Int)
+    private class PassTable {
+
+        private var keys = LongArray(1024)
+        private var slots = IntArray(1024) { -1 }
+        var lake1s = IntArray(256)
+        var lake2s = IntArray(256)
+        var id1s = IntArray(256)
+        var id2s = IntArray(256)
+        var heights = FloatArray(256)
+        var size = 0
+
+        fun clear() {
+            slots.fill(-1)
+            size = 0
+        }
+
+        fun offer(lake1: Int, lake2: Int, id1: Int, id2: Int, height: Float) {
+            val key = (lake1.toLong() shl 32) or (lake2.toLong() and 0xFFFFFFFFL)
+            val mask = keys.size - 1
+            var i = hash(key) and mask
+            while (true) {
+                val slot = slots[i]
+                if (slot < 0) {
+                    break
+                }
+                if (keys[i] == key) {
+                    if (heights[slot] > height) {
+                        id1s[slot] = id1
+                        id2s[slot] = id2
+                        heights[slot] = height
+                    }
+                    return
+                }
+                i = (i + 1) and mask
+            }
+            if (size == lake1s.size) {
+                val newSize = size * 2
+                lake1s = lake1s.copyOf(newSize)
+                lake2s = lake2s.copyOf(newSize)
+                id1s = id1s.copyOf(newSize)
+                id2s = id2s.copyOf(newSize)
+                heights = heights.copyOf(newSize)
+            }
+            keys[i] = key
+            slots[i] = size
+            lake1s[size] = lake1
+            lake2s[size] = lake2
+            id1s[size] = id1
+            id2s[size] = id2
+            heights[size] = height
+            size++
+            if (size * 2 > keys.size) {
+                rehash(keys.size * 2)
+            }
+        }
+
+        private fun rehash(capacity: Int) {
+            val oldKeys = keys
+            val oldSlots = slots
+            keys = LongArray(capacity)
+            slots = IntArray(capacity) { -1 }
+            val mask = capacity - 1
+            for (j in 0 until oldSlots.size) {
+                val slot = oldSlots[j]
+                if (slot >= 0) {
+                    var i = hash(oldKeys[j]) and mask
+                    while (slots[i] >= 0) {
+                        i = (i + 1) and mask
+                    }
+                    keys[i] = oldKeys[j]
+                    slots[i] = slot
+                }
+            }
+        }
 
-    class Pass(val passKey: PassKey, val id1: Int, val id2: Int, val height: Float)
+        private fun hash(key: Long): Int {
+            val mixed = key * -7046029254386353131L
+            return (mixed xor (mixed ushr 32)).toInt()
+        }
+    }
 
     class Masks(
             val biomeMask: Matrix<Byte>,
@@ -167,6 +242,48 @@ object WaterFlows {
         }
     }
 
+    private val exportDispatcher = Executors.newFixedThreadPool(2) { runnable ->
+        val thread = Thread(runnable, "export-writer")
+        thread.isDaemon = true
+        thread
+    }.asCoroutineDispatcher()
+
+    private class ExportWriter(private val canceled: Reference<Boolean>, private val metrics: Metrics.Registry) {
+
+        private val writes = ArrayList<Deferred<Unit>>()
+        private val timings = ConcurrentLinkedQueue<Pair<String, Long>>()
+
+        fun <T> writeWhenReady(file: File, input: Deferred<T>, writer: (File, T) -> Unit) {
+            writes.add(GlobalScope.async(exportDispatcher) {
+                val value = input.await()
+                timed(file) { writer(file, value) }
+            })
+        }
+
+        fun write(file: File, writer: (File) -> Unit) {
+            writes.add(GlobalScope.async(exportDispatcher) {
+                timed(file) { writer(file) }
+            })
+        }
+
+        suspend fun await() {
+            writes.forEach { it.await() }
+            if (timings.isNotEmpty()) {
+                LOG.info { timings.joinToString("\n", "Export timings:\n") { (name, nanos) -> "  $name: ${(nanos / 1000000) / 1000.0f}s" } }
+            }
+        }
+
+        private inline fun timed(file: File, write: () -> Unit) {
+            doOrCancel(canceled) {
+                val time = System.nanoTime()
+                write()
+                val nanos = System.nanoTime() - time
+                timings.add(file.name to nanos)
+                metrics.timer("export.${file.name}").record(nanos)
+            }
+        }
+    }
+
     fun generateWaterFlows(
             random: Random,
             regionSplines: RegionSplines,
@@ -186,7 +303,8 @@ object WaterFlows {
             biomeTemplates: Biomes,
             renderLevel: Int,
             colorHeightScaleFactor: MutableReference<Float>? = null,
-            exportFiles: ExportFiles? = null): Triple<TextureId?, TextureId?, TextureId?> {
+            exportFiles: ExportFiles? = null,
+            onLevelReady: ((Triple<TextureId?, TextureId?, TextureId?>) -> Unit)? = null): Triple<TextureId?, TextureId?, TextureId?> {
 
         val textureWidth = if (exportFiles == null) {
             VIEWPORT_HEIGHTMAP_SIZE
@@ -211,127 +329,79 @@ object WaterFlows {
         val heightScale = if (shaderTextureScale < 0.25) shaderTextureScale * 4.3f - 0.0441739f else ((ln(shaderTextureScale - 0.21) * 0.4) + 1.59).toFloat()
 
         val randomSeeds = Array(2) { random.nextLong() }
-
-        val biomeMasksFuture = executor.call {
+        val progressive = onLevelReady != null && exportFiles == null
+
+        val metrics = Metrics.beginGeneration(if (exportFiles == null) "preview-$renderLevel" else "export-$renderLevel")
+
+        // masks are rendered at textureWidth and every erosion level samples them, so cached stages are only shared
+        // between runs of the same width: previews with previews, and exports whose size picks the same render width
+        val masksKey = StageCache.key("masks") {
+            add(textureWidth)
+            add(mapScale)
+            add(biomeGraph)
+            add(biomeMask)
+            add(regionSplines)
+            add(biomes)
+            add(biomeTemplates.UNDER_WATER_BIOME)
+            add(customElevationPowerMap)
+            add(customStartingHeightsMap)
+            add(customSoilMobilityMap)
+        }
+        val mapsKey1 = if (renderLevel > 0) StageCache.childKey("erosion", masksKey) { add(flowGraph1); add(randomSeeds[1]); add(8192); add(returnsRivers(0, renderLevel, exportFiles)) } else null
+        val mapsKey2 = if (renderLevel > 1) StageCache.childKey("erosion", mapsKey1) { add(flowGraph2); add(8192); add(returnsRivers(1, renderLevel, exportFiles)) } else null
+        val mapsKey3 = if (renderLevel > 2) StageCache.childKey("erosion", mapsKey2) { add(flowGraph3); add(8192); add(returnsRivers(2, renderLevel, exportFiles)) } else null
+
+        fun buildMasks(): Masks {
             val biomeTextureId = doOrCancel(canceled) { renderRegions(textureWidth, biomeGraph, biomeMask) }
             val biomeMap = doOrCancel(canceled) { ByteBufferMatrix(textureWidth, extractTextureRedByte(biomeTextureId, textureWidth)) }
             val biomeBorderTextureId = doOrCancel(canceled) { renderRegionBorders(textureWidth, executor, biomeGraph, biomeMask, threadCount) }
             val landMapTextureId = doOrCancel(canceled) { renderLandImage(textureWidth, regionSplines.coastPoints) }
             val riverBorderTextureId = doOrCancel(canceled) { renderEdges(textureWidth, executor, regionSplines.riverEdges.flatMap { it } + regionSplines.customRiverEdges.flatMap { it }, threadCount) }
             val mountainBorderTextureId = doOrCancel(canceled) { renderEdges(textureWidth, executor, regionSplines.mountainEdges.flatMap { it } + regionSplines.customMountainEdges.flatMap { it }, threadCount) }
-            val coastalBorderTextureId = doOrCancel(canceled) { renderEdges(textureWidth, executor, regionSplines.coastEdges.flatMap { it.first + it.second.flatMap { it } }, threadCount) }
+            val coastalFalloff = doOrCancel(canceled) { DistanceTransform.edgeFalloff(textureWidth, executor, regionSplines.coastEdges.flatMap { it.first + it.second.flatMap { it } }, threadCount) }
+            val coastalBorderTextureId = doOrCancel(canceled) { buildTextureRedFloat(coastalFalloff, textureWidth, GL_NEAREST, GL_NEAREST) }
             val biomeRegions = doOrCancel(canceled) { buildTriangles(biomeGraph, biomeMask) }
-            val elevationPowerTextureId = doOrCancel(canceled) {
+            val (biomeChannels, underWaterData) = doOrCancel(canceled) {
                 render(textureWidth) { _, dynamicGeometry2D, textureRenderer ->
                     glDisable(GL11.GL_BLEND)
                     glDisable(GL11.GL_CULL_FACE)
                     glDisable(GL13.GL_MULTISAMPLE)
                     glEnable(GL_DEPTH_TEST)
                     glDisable(GL11.GL_SCISSOR_TEST)
-                    glDisable(GL13.GL_MULTISAMPLE)
                     textureRenderer.bind()
-                    glClearColor(0.0f, 0.0f, 0.0f, 1.0f)
+                    glClearColor(0.0f, 0.0f, 0.5f, 1.0f)
                     glClear(GL_COLOR_BUFFER_BIT or GL_DEPTH_BUFFER_BIT)
-                    biomeRegions.forEachIndexed { i, (vertexData, indexData) ->
-                        val biome = biomes[i]
-                        biome.elevationPowerShader.bind(
-                                textureScale = shaderTextureScale,
-                                borderDistanceScale = shaderBorderDistanceScale,
-                                heightScale = heightScale,
-                                landMask = landMapTextureId,
-                                coastBorderMask = coastalBorderTextureId,
-                                biomeMask = biomeTextureId,
-                                biomeBorderMask = biomeBorderTextureId,
-                                riverBorderMask = riverBorderTextureId,
-                                mountainBorderMask = mountainBorderTextureId,
-                                customElevationPowerMap = customElevationPowerMap,
-                                customStartingHeightsMap = customStartingHeightsMap,
-                                customSoilMobilityMap = customSoilMobilityMap)
-                        dynamicGeometry2D.render(vertexData, indexData, biome.elevationPowerShader.positionAttribute)
-                    }
-                    val retVal = textureRenderer.newRedTextureShort(GL_LINEAR, GL_LINEAR)
-                    textureRenderer.unbind()
-                    retVal
-                }
-            }
-            val startingHeightsTextureId = doOrCancel(canceled) {
-                render(textureWidth) { _, dynamicGeometry2D, textureRenderer ->
-                    glDisable(GL11.GL_BLEND)
-                    glDisable(GL11.GL_CULL_FACE)
-                    glDisable(GL13.GL_MULTISAMPLE)
-                    glEnable(GL_DEPTH_TEST)
-                    glDisable(GL11.GL_SCISSOR_TEST)
-                    glDisable(GL13.GL_MULTISAMPLE)
-                    textureRenderer.bind()
-                    glClearColor(0.0f, 0.0f, 0.0f, 1.0f)
-                    glClear(GL_COLOR_BUFFER_BIT or GL_DEPTH_BUFFER_BIT)
-                    biomeRegions.forEachIndexed { i, (vertexData, indexData) ->
-                        val biome = biomes[i]
-                        biome.startingHeightShader.bind(
-                                textureScale = shaderTextureScale,
-                                borderDistanceScale = shaderBorderDistanceScale,
-                                heightScale = heightScale,
-                                landMask = landMapTextureId,
-                                coastBorderMask = coastalBorderTextureId,
-                                biomeMask = biomeTextureId,
-                                biomeBorderMask = biomeBorderTextureId,
-                                riverBorderMask = riverBorderTextureId,
-                                mountainBorderMask = mountainBorderTextureId,
-                                customElevationPowerMap = customElevationPowerMap,
-                                customStartingHeightsMap = customStartingHeightsMap,
-                                customSoilMobilityMap = customSoilMobilityMap)
-                        dynamicGeometry2D.render(vertexData, indexData, biome.startingHeightShader.positionAttribute)
-                    }
-                    val retVal = textureRenderer.newRedTextureShort(GL_LINEAR, GL_LINEAR)
-                    textureRenderer.unbind()
-                    retVal
-                }
-            }
-            val soilMobilityTextureId = doOrCancel(canceled) {
-                render(textureWidth) { _, dynamicGeometry2D, textureRenderer ->
-                    glDisable(GL11.GL_BLEND)
-                    glDisable(GL11.GL_CULL_FACE)
-                    glDisable(GL13.GL_MULTISAMPLE)
-                    glEnable(GL_DEPTH_TEST)
-                    glDisable(GL11.GL_SCISSOR_TEST)
-                    glDisable(GL13.GL_MULTISAMPLE)
-                    textureRenderer.bind()
-                    glClearColor(0.5f, 0.5f, 0.5f, 1.0f)
-                    glClear(GL_COLOR_BUFFER_BIT or GL_DEPTH_BUFFER_BIT)
-                    biomeRegions.forEachIndexed { i, (vertexData, indexData) ->
-                        val biome = biomes[i]
-                        val shader = biome.soilMobilityShader
-                        if (shader != null) {
-                            shader.bind(
-                                    textureScale = shaderTextureScale,
-                                    borderDistanceScale = shaderBorderDistanceScale,
-                                    heightScale = heightScale,
-                                    landMask = landMapTextureId,
-                                    coastBorderMask = coastalBorderTextureId,
-                                    biomeMask = biomeTextureId,
-                                    biomeBorderMask = biomeBorderTextureId,
-                                    riverBorderMask = riverBorderTextureId,
-                                    mountainBorderMask = mountainBorderTextureId,
-                                    customElevationPowerMap = customStartingHeightsMap,
-                                    customStartingHeightsMap = customElevationPowerMap,
-                                    customSoilMobilityMap = customSoilMobilityMap)
-                            dynamicGeometry2D.render(vertexData, indexData, shader.positionAttribute)
+                    val passes = listOf<(Biome) -> Shader?>({ it.elevationPowerShader }, { it.startingHeightShader }, { it.soilMobilityShader })
+                    passes.forEachIndexed { channel, shaderSelector ->
+                        glColorMask(channel == 0, channel == 1, channel == 2, false)
+                        if (channel > 0) {
+                            glClear(GL_DEPTH_BUFFER_BIT)
+                        }
+                        biomeRegions.forEachIndexed { i, (vertexData, indexData) ->
+                            val shader = shaderSelector(biomes[i])
+                            if (shader != null) {
+                                val isSoilMobility = channel == 2
+                                shader.bind(
+                                        textureScale = shaderTextureScale,
+                                        borderDistanceScale = shaderBorderDistanceScale,
+                                        heightScale = heightScale,
+                                        landMask = landMapTextureId,
+                                        coastBorderMask = coastalBorderTextureId,
+                                        biomeMask = biomeTextureId,
+                                        biomeBorderMask = biomeBorderTextureId,
+                                        riverBorderMask = riverBorderTextureId,
+                                        mountainBorderMask = mountainBorderTextureId,
+                                        customElevationPowerMap = if (isSoilMobility) customStartingHeightsMap else customElevationPowerMap,
+                                        customStartingHeightsMap = if (isSoilMobility) customElevationPowerMap else customStartingHeightsMap,
+                                        customSoilMobilityMap = customSoilMobilityMap)
+                                dynamicGeometry2D.render(vertexData, indexData, shader.positionAttribute)
+                            }
                         }
                     }
-                    val retVal = textureRenderer.newRedTextureShort(GL_LINEAR, GL_LINEAR)
-                    textureRenderer.unbind()
-                    retVal
-                }
-            }
-            val underWaterTextureId = doOrCancel(canceled) {
-                render(textureWidth) { _, dynamicGeometry2D, textureRenderer ->
-                    glDisable(GL11.GL_BLEND)
-                    glDisable(GL11.GL_CULL_FACE)
-                    glDisable(GL13.GL_MULTISAMPLE)
-                    glEnable(GL_DEPTH_TEST)
-                    glDisable(GL11.GL_SCISSOR_TEST)
-                    glDisable(GL13.GL_MULTISAMPLE)
-                    textureRenderer.bind()
+                    glColorMask(true, true, true, true)
+                    val biomeChannels = ShortArray(textureWidth * textureWidth * 3)
+                    glReadBuffer(GL30.GL_COLOR_ATTACHMENT0)
+                    glReadPixels(0, 0, textureWidth, textureWidth, GL_RGB, GL_UNSIGNED_SHORT, biomeChannels)
                     glClearColor(0.0f, 0.0f, 0.0f, 1.0f)
                     glClear(GL_COLOR_BUFFER_BIT or GL_DEPTH_BUFFER_BIT)
                     val vertexData = floatArrayOf(
@@ -354,50 +424,89 @@ object WaterFlows {
                             customStartingHeightsMap = customStartingHeightsMap,
                             customSoilMobilityMap = customSoilMobilityMap)
                     dynamicGeometry2D.render(vertexData, indexData, biomeTemplates.UNDER_WATER_BIOME.elevationPowerShader.positionAttribute)
-                    val retVal = textureRenderer.newRedTextureByte(GL_LINEAR, GL_LINEAR)
+                    val underWaterData = BufferUtils.createByteBuffer(textureWidth * textureWidth)
+                    glReadPixels(0, 0, textureWidth, textureWidth, GL_RED, GL_UNSIGNED_BYTE, underWaterData)
                     textureRenderer.unbind()
-                    retVal
+                    biomeChannels to underWaterData
+                }
+            }
+            val size = textureWidth * textureWidth
+            val elevationData = ShortArray(size)
+            val startingHeightsData = ShortArray(size)
+            val soilMobilityData = ShortArray(size)
+            val underWaterValues = FloatArray(size)
+            (0 until threadCount).map { thread ->
+                executor.call {
+                    for (i in thread until size step threadCount) {
+                        elevationData[i] = biomeChannels[i * 3]
+                        startingHeightsData[i] = biomeChannels[i * 3 + 1]
+                        soilMobilityData[i] = biomeChannels[i * 3 + 2]
+                        underWaterValues[i] = (underWaterData[i].toInt() and 0xFF) / 255.0f
+                    }
                 }
-            }
-            val elevationMask = doOrCancel(canceled) { ShortArrayMatrix(textureWidth, extractTextureRedShort(elevationPowerTextureId, textureWidth)) }
-            val startingHeights = doOrCancel(canceled) { ShortArrayMatrix(textureWidth, extractTextureRedShort(startingHeightsTextureId, textureWidth)) }
-            val underWaterMask = doOrCancel(canceled) { FloatArrayMatrix(textureWidth, extractTextureRedFloat(underWaterTextureId, textureWidth)) }
+            }.forEach { it.join() }
+            val elevationMask = ShortArrayMatrix(textureWidth, elevationData)
+            val startingHeights = ShortArrayMatrix(textureWidth, startingHeightsData)
+            val underWaterMask = FloatArrayMatrix(textureWidth, underWaterValues)
             val landMask = doOrCancel(canceled) { ByteBufferMatrix(textureWidth, extractTextureRedByte(landMapTextureId, textureWidth)) }
-            val soilMobilityMask = doOrCancel(canceled) { ShortArrayMatrix(textureWidth, extractTextureRedShort(soilMobilityTextureId, textureWidth)) }
-            val coastalDistanceMask = doOrCancel(canceled) { ShortArrayMatrix(textureWidth, extractTextureRedShort(coastalBorderTextureId, textureWidth)) }
+            val soilMobilityMask = ShortArrayMatrix(textureWidth, soilMobilityData)
+            val coastalDistanceMask = ShortArrayMatrix(textureWidth, DistanceTransform.toRedShort(coastalFalloff))
 
             riverBorderTextureId.free()
             mountainBorderTextureId.free()
             coastalBorderTextureId.free()
             biomeTextureId.free()
             biomeBorderTextureId.free()
-            elevationPowerTextureId.free()
-            startingHeightsTextureId.free()
-            Masks(biomeMap, landMask, underWaterMask, elevationMask, startingHeights, soilMobilityMask, coastalDistanceMask)
+            return Masks(biomeMap, landMask, underWaterMask, elevationMask, startingHeights, soilMobilityMask, coastalDistanceMask)
         }
-        val regionDataFuture = executor.call {
-            doOrCancel(canceled) { buildRegionData(flowGraph1, biomeMasksFuture.value.landMask) }
+        val biomeMasksFuture = executor.call { metrics.time("stage.biomeMasks") {
+            StageCache.getMasks(masksKey, metrics) ?: buildMasks().also { StageCache.putMasks(masksKey, it) }
+        } }
+        val regionDataFuture = lazy {
+            executor.call {
+                val landMask = biomeMasksFuture.value.landMask
+                metrics.time("stage.regionData") { doOrCancel(canceled) { buildRegionData(flowGraph1, landMask) } }
+            }
         }
-        val bootstrapWaterMapsFuture = executor.call {
-            val (nodeIndex, nodes, rivers) = doOrCancel(canceled) { bootstrapUnderWaterErosion(executor, flowGraph1, regionDataFuture.value, biomeMasksFuture.value.underWaterMask, biomeMasksFuture.value.soilMobilityMask, mapSizeMeters, waterDepthMeters, Random(randomSeeds[1]), biomeTemplates) }
-            doOrCancel(canceled) { performErosion(canceled, executor, flowGraph1, null, nodeIndex, nodes, rivers, 40, listOf(biomeTemplates.UNDER_WATER_BIOME), listOf(biomeTemplates.UNDER_WATER_BIOME.lowPassSettings), 1024, mapSizeMeters, waterDepthMeters, textureWidth, null, 0.0f, biomeTemplates) }
+        val bootstrapWaterMapsFuture = lazy {
+            executor.call {
+                val regionData = regionDataFuture.value.value
+                val masks = biomeMasksFuture.value
+                metrics.time("stage.underWaterErosion") {
+                    val (nodeIndex, nodes, rivers) = doOrCancel(canceled) { bootstrapUnderWaterErosion(canceled, executor, flowGraph1, regionData, masks.underWaterMask, masks.soilMobilityMask, mapSizeMeters, waterDepthMeters, Random(randomSeeds[1]), biomeTemplates) }
+                    doOrCancel(canceled) { performErosion(canceled, metrics, executor, flowGraph1, null, nodeIndex, nodes, rivers, 40, listOf(biomeTemplates.UNDER_WATER_BIOME), listOf(biomeTemplates.UNDER_WATER_BIOME.lowPassSettings), 1024, mapSizeMeters, waterDepthMeters, textureWidth, null, 0.0f, biomeTemplates) }
+                }
+            }
         }
-        val mapsFuture1 = executor.call {
-            val preAmplifiedWidth = if (renderLevel == 0) {
-                textureWidth
-            } else {
-                8192
+        val mapsFuture1 = lazy {
+            if (!StageCache.contains(mapsKey1)) {
+                regionDataFuture.value
+                bootstrapWaterMapsFuture.value
+            }
+            executor.call {
+                StageCache.getErosion(mapsKey1, metrics) ?: run {
+                    val preAmplifiedWidth = if (renderLevel == 0) {
+                        textureWidth
+                    } else {
+                        8192
+                    }
+                    val regionData = regionDataFuture.value.value
+                    val masks = biomeMasksFuture.value
+                    val underWaterMask = bootstrapWaterMapsFuture.value.value.heightMap
+                    metrics.time("stage.erosionLevel0") {
+                        val (nodeIndex, nodes, rivers) = doOrCancel(canceled) { bootstrapErosion(canceled, executor, flowGraph1, regionData, biomes, masks.biomeMask, masks.elevationPowerMask, masks.startingHeightsMask, masks.soilMobilityMask, mapSizeMeters, Random(randomSeeds[1]), biomeTemplates) }
+                        val returnRivers = returnsRivers(0, renderLevel, exportFiles)
+                        val previewRiverMapWidth = if (progressive && renderLevel > 0) PREVIEW_RIVER_MAP_WIDTH else 0
+                        val result = doOrCancel(canceled) { performErosion(canceled, metrics, executor, flowGraph1, masks.biomeMask, nodeIndex, nodes, rivers, 150, biomes, biomes.map { it.lowPassSettings }, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, textureWidth, underWaterMask, -waterDepthMeters, biomeTemplates, returnRivers, previewRiverMapWidth = previewRiverMapWidth, gaussRender = true, gaussMultiplier = if (renderLevel == 0) 0.7f else 2.0f) }
+                        StageCache.putErosion(mapsKey1, result)
+                        result
+                    }
+                }
             }
-
-            val (nodeIndex, nodes, rivers) = doOrCancel(canceled) { bootstrapErosion(canceled, executor, flowGraph1, regionDataFuture.value, biomes, biomeMasksFuture.value.biomeMask, biomeMasksFuture.value.elevationPowerMask, biomeMasksFuture.value.startingHeightsMask, biomeMasksFuture.value.soilMobilityMask, mapSizeMeters, Random(randomSeeds[1]), biomeTemplates) }
-            val underWaterMask = bootstrapWaterMapsFuture.value.heightMap
-            val exportRivers = exportFiles?.waterFlowFile != null
-            val returnRivers = renderLevel == 0 && (exportRivers || exportFiles == null)
-            doOrCancel(canceled) { performErosion(canceled, executor, flowGraph1, biomeMasksFuture.value.biomeMask, nodeIndex, nodes, rivers, 150, biomes, biomes.map { it.lowPassSettings }, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, textureWidth, underWaterMask, -waterDepthMeters, biomeTemplates, returnRivers, gaussRender = true, gaussMultiplier = if (renderLevel == 0) 0.7f else 2.0f) }
         }
-        val mapsFuture2 = buildMapsFuture(1, canceled, executor, renderLevel, textureWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, biomes, biomeMasksFuture, flowGraph2, exportFiles, mapsFuture1)
-        val mapsFuture3 = buildMapsFuture(2, canceled, executor, renderLevel, textureWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, biomes, biomeMasksFuture, flowGraph3, exportFiles, mapsFuture2)
-        val mapsFuture4 = buildMapsFuture(3, canceled, executor, renderLevel, textureWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, biomes, biomeMasksFuture, flowGraph3, exportFiles, mapsFuture2)
+        val mapsFuture2 = lazy { buildMapsFuture(1, canceled, metrics, executor, renderLevel, progressive, textureWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, biomes, biomeMasksFuture, flowGraph2, exportFiles, mapsKey2) { mapsFuture1.value } }
+        val mapsFuture3 = lazy { buildMapsFuture(2, canceled, metrics, executor, renderLevel, progressive, textureWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, biomes, biomeMasksFuture, flowGraph3, exportFiles, mapsKey3) { mapsFuture2.value } }
+        val mapsFuture4 = lazy { buildMapsFuture(3, canceled, metrics, executor, renderLevel, progressive, textureWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, biomes, biomeMasksFuture, flowGraph3, exportFiles, null) { mapsFuture2.value } }
         val mapsFuture5 = if (renderLevel > 3) {
             val factor = when (renderLevel) {
                 5 -> 4
@@ -427,42 +536,45 @@ object WaterFlows {
             val highNodesFuture = executor.call {
                 doOrCancel(canceled) { prepareGraphNodes(canceled, executor, flowGraph4, biomeMasksFuture.value.landMask, biomeMasksFuture.value.soilMobilityMask, mapSizeMeters) }
             }
-            val highWaterMapsFuture = buildWaterMapsFuture(canceled, executor, textureWidth, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, flowGraph4, biomeTemplates.UNDER_WATER_BIOME.highPassSettings, highWaterNodesFuture, mapsFuture3!!)
+            val highWaterMapsFuture = buildWaterMapsFuture(canceled, metrics, executor, textureWidth, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, flowGraph4, biomeTemplates.UNDER_WATER_BIOME.highPassSettings, highWaterNodesFuture, mapsFuture3.value!!)
             val highMapsFuture = executor.call {
-                val smallHeightMap = mapsFuture3.value.heightMap
+                val smallHeightMap = mapsFuture3.value!!.value.heightMap
                 val (nodeIndex, nodes, rivers) = highNodesFuture.value
-                val erosionSettings = doOrCancel(canceled) { biomes.map { it.highPassSettings } }
-                doOrCancel(canceled) { applyMapsToNodes(executor, flowGraph4.vertices, smallHeightMap, biomeMasksFuture.value.elevationPowerMask, biomeMasksFuture.value.startingHeightsMask, erosionSettings, biomeMasksFuture.value.biomeMask, nodes) }
                 val underWaterMask = highWaterMapsFuture.value.heightMap
-                val exportRivers = exportFiles?.waterFlowFile != null
-                val returnRivers = exportRivers || exportFiles == null
-                val returnSoilDensity = exportFiles?.soilDensityFile != null
-                val returnPeaks = exportFiles?.peakFile != null
-                val returnRiverLines = exportFiles?.riverFile != null
-                val returnRiverSplines = exportFiles?.riverSplinesFile != null
-
-                val erosionResult = doOrCancel(canceled) {
-                    performErosion(canceled, executor, flowGraph4, biomeMasksFuture.value.biomeMask, nodeIndex, nodes, rivers, 30, biomes, erosionSettings, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, textureWidth, underWaterMask, -waterDepthMeters, biomeTemplates, returnRivers, returnSoilDensity, returnPeaks, returnRiverLines, returnRiverSplines, exportRivers, exportFiles?.objFile, preAmplifiedWidth, min(8192, exportFiles?.outputSize ?: textureWidth), min(8192, exportFiles?.outputSize ?: 4096), true)
-                }
-
-                if (renderLevel > 4) {
-                    val (input, minWaterValue, maxLandValue) = combineHeightMapsToRcMatrix(erosionResult.heightMap, biomeMasksFuture.value.coastalDistanceMask, preAmplifiedWidth,  waterDepthMeters, renderScale,20, 10, 2.0f, -2.0f)
-                    val dictionaryWidth = (input.rows + highMaskSize) / highOffset
-                    val inputIndexMask = buildBiomeIndexMask(erosionResult.heightMap, biomeMasksFuture.value.landMask, biomeMasksFuture.value.biomeMask, biomes, biomeTemplates, dictionaryWidth)
-                    val (amplified, min, outputScale) = TerrainAmplification.amplify(factor, input, inputIndexMask, highMaskSize, highOffset, if (factor == 4) highDictionaries4 else highDictionaries8)
-                    val offset = highMaskSize * factor
-                    val columns = input.columns * factor
-                    val amplifiedHeightMap = FloatArrayMatrix(columns)
-                    val colRange = offset until offset + columns
-                    (offset until offset + columns).toList().parallelStream().forEach { row ->
-                        val rowOff = (row - offset) * columns
-                        for (column in colRange) {
-                            amplifiedHeightMap[rowOff + column - offset] = amplified[row, column] * heightRangeMeters - waterDepthMeters
+                val masks = biomeMasksFuture.value
+                metrics.time("stage.erosionHigh") {
+                    val erosionSettings = doOrCancel(canceled) { biomes.map { it.highPassSettings } }
+                    doOrCancel(canceled) { applyMapsToNodes(executor, flowGraph4.vertices, smallHeightMap, masks.elevationPowerMask, masks.startingHeightsMask, erosionSettings, masks.biomeMask, nodes) }
+                    val exportRivers = exportFiles?.waterFlowFile != null
+                    val returnRivers = exportRivers || exportFiles == null
+                    val returnSoilDensity = exportFiles?.soilDensityFile != null
+                    val returnPeaks = exportFiles?.peakFile != null
+                    val returnRiverLines = exportFiles?.riverFile != null
+                    val returnRiverSplines = exportFiles?.riverSplinesFile != null
+
+                    val erosionResult = doOrCancel(canceled) {
+                        performErosion(canceled, metrics, executor, flowGraph4, masks.biomeMask, nodeIndex, nodes, rivers, 30, biomes, erosionSettings, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, textureWidth, underWaterMask, -waterDepthMeters, biomeTemplates, returnRivers, returnSoilDensity, returnPeaks, returnRiverLines, returnRiverSplines, exportRivers, exportFiles?.objFile, preAmplifiedWidth, min(8192, exportFiles?.outputSize ?: textureWidth), min(8192, exportFiles?.outputSize ?: 4096), true)
+                    }
+
+                    if (renderLevel > 4) {
+                        val (input, minWaterValue, maxLandValue) = combineHeightMapsToRcMatrix(erosionResult.heightMap, masks.coastalDistanceMask, preAmplifiedWidth,  waterDepthMeters, renderScale,20, 10, 2.0f, -2.0f)
+                        val dictionaryWidth = (input.rows + highMaskSize) / highOffset
+                        val inputIndexMask = buildBiomeIndexMask(erosionResult.heightMap, masks.landMask, masks.biomeMask, biomes, biomeTemplates, dictionaryWidth)
+                        val (amplified, min, outputScale) = metrics.time("stage.amplification") { TerrainAmplification.amplify(factor, input, inputIndexMask, highMaskSize, highOffset, if (factor == 4) highDictionaries4 else highDictionaries8, canceled, metrics) }
+                        val offset = highMaskSize * factor
+                        val columns = input.columns * factor
+                        val amplifiedHeightMap = FloatArrayMatrix(columns)
+                        val colRange = offset until offset + columns
+                        (offset until offset + columns).toList().parallelStream().forEach { row ->
+                            val rowOff = (row - offset) * columns
+                            for (column in colRange) {
+                                amplifiedHeightMap[rowOff + column - offset] = amplified[row, column] * heightRangeMeters - waterDepthMeters
+                            }
                         }
+                        ErosionResult(amplifiedHeightMap, erosionResult.flowMap, erosionResult.soilDensityMap, erosionResult.peakLines, erosionResult.riverLines, erosionResult.riverSplines)
+                    } else {
+                        erosionResult
                     }
-                    ErosionResult(amplifiedHeightMap, erosionResult.flowMap, erosionResult.soilDensityMap, erosionResult.peakLines, erosionResult.riverLines, erosionResult.riverSplines)
-                } else {
-                    erosionResult
                 }
             }
             highMapsFuture
@@ -470,12 +582,77 @@ object WaterFlows {
             null
         }
         val mapsFuture = when (renderLevel) {
-            0 -> mapsFuture1
-            1 -> mapsFuture2!!
-            2 -> mapsFuture3!!
-            3 -> mapsFuture4!!
+            0 -> mapsFuture1.value
+            1 -> mapsFuture2.value!!
+            2 -> mapsFuture3.value!!
+            3 -> mapsFuture4.value!!
             else -> mapsFuture5!!
         }
+        val previewFuture = if (progressive && renderLevel > 0) {
+            val levelFutures = listOfNotNull(
+                    mapsFuture1.value,
+                    if (renderLevel > 1) mapsFuture2.value else null,
+                    if (renderLevel > 3) mapsFuture3.value else null)
+            executor.call {
+                levelFutures.forEach { levelFuture ->
+                    val maps = levelFuture.value
+                    val flowMap = maps.previewFlowMap
+                    if (flowMap != null && !mapsFuture.isDone && !canceled.value) {
+                        val heightMapAsShortArray = writeHeightMapAsShortArray(maps.heightMap, normalize = false, min = -waterDepthMeters, scale = renderScale, heightScaleFactor = colorHeightScaleFactor)
+                        val heightMapTextureId = heightMapToTextureId(heightMapAsShortArray, maps.heightMap.width)
+                        val riverMapTextureId = heightMapToTextureId(writeHeightMapAsShortArray(flowMap, null, 0.0f), flowMap.width)
+                        val normalAndAoAsBytes = renderNormalAndAoRgbaByte(textureWidth, heightMapTextureId, heightRangeMeters, mapSizeMeters / VIEWPORT_HEIGHTMAP_SIZE, QuadFloat(0.5f, 0.5f, 1.0f, 1.0f))
+                        val normalAoTextureId = normalAndAoToTextureId(normalAndAoAsBytes, VIEWPORT_HEIGHTMAP_SIZE)
+                        if (!mapsFuture.isDone && !canceled.value) {
+                            onLevelReady!!(Triple(heightMapTextureId, riverMapTextureId, normalAoTextureId))
+                        }
+                    }
+                }
+            }
+        } else {
+            null
+        }
+        val exportWriter = ExportWriter(canceled, metrics)
+        if (exportFiles != null) {
+            val outputSize = min(8192, exportFiles.outputSize)
+            val scale = outputSize / textureWidth.toFloat()
+            exportFiles.biomeBorderFile?.let {
+                exportWriter.writeWhenReady(it, doOrCancel(canceled) {
+                    task {
+                        doOrCancel(canceled) { ShortArrayMatrix(textureWidth, renderRegionBordersRedShort(textureWidth, executor, biomeGraph, biomeMask, threadCount, scale)) }
+                    }
+                }) { file, biomeBorderMap -> file.exportMap16Bit(outputSize, biomeBorderMap.array, textureWidth) }
+            }
+            exportFiles.landMaskFile?.let {
+                exportWriter.writeWhenReady(it, doOrCancel(canceled) {
+                    task {
+                        val landMapTextureId = doOrCancel(canceled) { renderLandImage(textureWidth, regionSplines.coastPoints, scale) }
+                        doOrCancel(canceled) { ByteBufferMatrix(textureWidth, extractTextureRedByte(landMapTextureId, textureWidth)) }
+                    }
+                }) { file, landMap -> file.exportMap8BitGrey(outputSize, landMap.buffer, textureWidth) }
+            }
+            exportFiles.riverBorderFile?.let {
+                exportWriter.writeWhenReady(it, doOrCancel(canceled) {
+                    task {
+                        doOrCancel(canceled) { ShortArrayMatrix(textureWidth, renderEdgesRedShort(textureWidth, executor, regionSplines.riverEdges.flatMap { it } + regionSplines.customRiverEdges.flatMap { it }, threadCount, scale)) }
+                    }
+                }) { file, riverBorderMap -> file.exportMap16Bit(outputSize, riverBorderMap.array, textureWidth) }
+            }
+            exportFiles.mountainBorderFile?.let {
+                exportWriter.writeWhenReady(it, doOrCancel(canceled) {
+                    task {
+                        doOrCancel(canceled) { ShortArrayMatrix(textureWidth, renderEdgesRedShort(textureWidth, executor, regionSplines.mountainEdges.flatMap { it } + regionSplines.customMountainEdges.flatMap { it }, threadCount, scale)) }
+                    }
+                }) { file, mountainBorderMap -> file.exportMap16Bit(outputSize, mountainBorderMap.array, textureWidth) }
+            }
+            exportFiles.coastalBorderFile?.let {
+                exportWriter.writeWhenReady(it, doOrCancel(canceled) {
+                    task {
+                        doOrCancel(canceled) { ShortArrayMatrix(textureWidth, renderEdgesRedShort(textureWidth, executor, regionSplines.coastEdges.flatMap { it.first + it.second.flatMap { it } }, threadCount, scale)) }
+                    }
+                }) { file, coastalBorderMap -> file.exportMap16Bit(outputSize, coastalBorderMap.array, textureWidth) }
+            }
+        }
         val firstDeferred = doOrCancel(canceled) {
             task {
                 val heightMapAsShortArray = if (exportFiles == null || exportFiles.elevationFile != null || exportFiles.slopeFile != null || exportFiles.normalFile != null || exportFiles.aoFile != null) {
@@ -591,138 +768,51 @@ object WaterFlows {
         } else {
             null
         }
-        return runBlocking {
-            val first = firstDeferred.await()
-            val second = secondDeferred.await()
-            val third = thirdDeferred?.await()
-            val fourth = fourthDeferred?.await()
-            val fifth = fifthDeferred?.await()
-            val sixth = sixthDeferred?.await()
-            val task1 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.elevationFile?.exportMap16Bit(exportFiles.outputSize, first.second, first.third)
-                }
+        if (exportFiles != null) {
+            val outputSize = min(8192, exportFiles.outputSize)
+            exportFiles.elevationFile?.let { exportWriter.writeWhenReady(it, firstDeferred) { file, first -> file.exportMap16Bit(exportFiles.outputSize, first.second, first.third) } }
+            exportFiles.waterFlowFile?.let { exportWriter.writeWhenReady(it, secondDeferred) { file, second -> file.exportMap16Bit(outputSize, second.second, textureWidth) } }
+            if (thirdDeferred != null) {
+                exportFiles.soilDensityFile?.let { exportWriter.writeWhenReady(it, thirdDeferred) { file, third -> file.exportMap16Bit(outputSize, third, textureWidth) } }
             }
-            val task2 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.waterFlowFile?.exportMap16Bit(min(8192, exportFiles.outputSize), second?.second, textureWidth)
-                }
+            if (fourthDeferred != null) {
+                exportFiles.normalFile?.let { exportWriter.writeWhenReady(it, fourthDeferred) { file, fourth -> file.exportMap8BitRGB(outputSize, fourth?.second, textureWidth) } }
+                exportFiles.aoFile?.let { exportWriter.writeWhenReady(it, fourthDeferred) { file, fourth -> file.exportMap8BitA(outputSize, fourth?.second, textureWidth) } }
             }
-            val task3 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.soilDensityFile?.exportMap16Bit(min(8192, exportFiles.outputSize), third, textureWidth)
-                }
-            }
-            val task4 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.normalFile?.exportMap8BitRGB(min(8192, exportFiles.outputSize), fourth?.second, textureWidth)
-                }
-            }
-            val task5 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.aoFile?.exportMap8BitA(min(8192, exportFiles.outputSize), fourth?.second, textureWidth)
-                }
-            }
-            val task6 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.biomeFile?.exportMap8BitGrey(min(8192, exportFiles.outputSize), fifth, textureWidth)
-                }
-            }
-            val task7 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.peakFile?.exportMap16Bit(min(8192, exportFiles.outputSize), mapsFuture.value.peakLines?.array, textureWidth)
-                }
+            if (fifthDeferred != null) {
+                exportFiles.biomeFile?.let { exportWriter.writeWhenReady(it, fifthDeferred) { file, fifth -> file.exportMap8BitGrey(outputSize, fifth, textureWidth) } }
             }
-            val task8 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.riverFile?.exportMap16Bit(min(8192, exportFiles.outputSize), mapsFuture.value.riverLines?.array, textureWidth)
-                }
+            if (sixthDeferred != null) {
+                exportFiles.detailIndexFile?.let { exportWriter.writeWhenReady(it, sixthDeferred) { file, sixth -> file.exportMap8BitGrey(outputSize, sixth, textureWidth) } }
             }
-            val task9 = doOrCancel(canceled) {
-                task {
-                    if (exportFiles?.biomeBorderFile != null) {
-                        val scale = min(8192, exportFiles.outputSize) / textureWidth.toFloat()
-                        val biomeBorderTextureId = doOrCancel(canceled) { renderRegionBorders(textureWidth, executor, biomeGraph, biomeMask, threadCount, scale) }
-                        val biomeBorderMap = doOrCancel(canceled) { ShortArrayMatrix(textureWidth, extractTextureRedShort(biomeBorderTextureId, textureWidth)) }
-                        exportFiles.biomeBorderFile.exportMap16Bit(min(8192, exportFiles.outputSize), biomeBorderMap.array, textureWidth)
-                    }
-                }
-            }
-            val task10 = doOrCancel(canceled) {
-                task {
-                    if (exportFiles?.landMaskFile != null) {
-                        val scale = min(8192, exportFiles.outputSize) / textureWidth.toFloat()
-                        val landMapTextureId = doOrCancel(canceled) { renderLandImage(textureWidth, regionSplines.coastPoints, scale) }
-                        val landMap = doOrCancel(canceled) { ByteBufferMatrix(textureWidth, extractTextureRedByte(landMapTextureId, textureWidth)) }
-                        exportFiles.landMaskFile.exportMap8BitGrey(min(8192, exportFiles.outputSize), landMap.buffer, textureWidth)
-                    }
-                }
-            }
-            val task11 = doOrCancel(canceled) {
-                task {
-                    if (exportFiles?.riverBorderFile != null) {
-                        val scale = min(8192, exportFiles.outputSize) / textureWidth.toFloat()
-                        val riverBorderTextureId = doOrCancel(canceled) { renderEdges(textureWidth, executor, regionSplines.riverEdges.flatMap { it } + regionSplines.customRiverEdges.flatMap { it }, threadCount, scale) }
-                        val riverBorderMap = doOrCancel(canceled) { ShortArrayMatrix(textureWidth, extractTextureRedShort(riverBorderTextureId, textureWidth)) }
-                        exportFiles.riverBorderFile.exportMap16Bit(min(8192, exportFiles.outputSize), riverBorderMap.array, textureWidth)
-                    }
-                }
-            }
-            val task12 = doOrCancel(canceled) {
-                task {
-                    if (exportFiles?.mountainBorderFile != null) {
-                        val scale = min(8192, exportFiles.outputSize) / textureWidth.toFloat()
-                        val mountainBorderTextureId = doOrCancel(canceled) { renderEdges(textureWidth, executor, regionSplines.mountainEdges.flatMap { it } + regionSplines.customMountainEdges.flatMap { it }, threadCount, scale) }
-                        val mountainBorderMap = doOrCancel(canceled) { ShortArrayMatrix(textureWidth, extractTextureRedShort(mountainBorderTextureId, textureWidth)) }
-                        exportFiles.mountainBorderFile.exportMap16Bit(min(8192, exportFiles.outputSize), mountainBorderMap.array, textureWidth)
-                    }
-                }
-            }
-            val task13 = doOrCancel(canceled) {
-                task {
-                    if (exportFiles?.coastalBorderFile != null) {
-                        val scale = min(8192, exportFiles.outputSize) / textureWidth.toFloat()
-                        val coastalBorderTextureId = doOrCancel(canceled) { renderEdges(textureWidth, executor, regionSplines.coastEdges.flatMap { it.first + it.second.flatMap { it } }, threadCount, scale) }
-                        val coastalBorderMap = doOrCancel(canceled) { ShortArrayMatrix(textureWidth, extractTextureRedShort(coastalBorderTextureId, textureWidth)) }
-                        exportFiles.coastalBorderFile.exportMap16Bit(min(8192, exportFiles.outputSize), coastalBorderMap.array, textureWidth)
-                    }
-                }
-            }
-            val task14 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.detailIndexFile?.exportMap8BitGrey(min(8192, exportFiles.outputSize), sixth, textureWidth)
-                }
-            }
-            val task15 = doOrCancel(canceled) {
-                task {
-                    exportFiles?.riverSplinesFile?.exportPolyLines(mapsFuture.value.riverSplines, exportFiles.outputSize)
-                }
-            }
-
-            task1.await()
-            task2.await()
-            task3.await()
-            task4.await()
-            task5.await()
-            task6.await()
-            task7.await()
-            task8.await()
-            task9.await()
-            task10.await()
-            task11.await()
-            task12.await()
-            task13.await()
-            task14.await()
-            task15.await()
+            val maps = mapsFuture.value
+            exportFiles.peakFile?.let { exportWriter.write(it) { file -> file.exportMap16Bit(outputSize, maps.peakLines?.array, textureWidth) } }
+            exportFiles.riverFile?.let { exportWriter.write(it) { file -> file.exportMap16Bit(outputSize, maps.riverLines?.array, textureWidth) } }
+            exportFiles.riverSplinesFile?.let { exportWriter.write(it) { file -> file.exportPolyLines(maps.riverSplines, exportFiles.outputSize) } }
+        }
+        previewFuture?.join()
+        return runBlocking {
+            val first = firstDeferred.await()
+            val second = secondDeferred.await()
+            thirdDeferred?.await()
+            val fourth = fourthDeferred?.await()
+            fifthDeferred?.await()
+            sixthDeferred?.await()
+            exportWriter.await()
+            Metrics.endGeneration(metrics)
             Triple(first.first, second.first, fourth?.first)
         }
     }
 
+    private fun returnsRivers(level: Int, renderLevel: Int, exportFiles: ExportFiles?) = renderLevel == level && (exportFiles == null || exportFiles.waterFlowFile != null)
+
     private fun buildMapsFuture(
             level: Int,
             canceled: Reference<Boolean>,
+            metrics: Metrics.Registry,
             executor: ExecutorService,
             renderLevel: Int,
+            progressive: Boolean,
             textureWidth: Int,
             mapSizeMeters: Float,
             waterDepthMeters: Float,
@@ -731,8 +821,9 @@ object WaterFlows {
             biomeMasksFuture: Future<Masks>,
             flowGraph: Graph,
             exportFiles: ExportFiles?,
-            previousMapsFuture: Future<ErosionResult>?): Future<ErosionResult>? {
-        if (renderLevel < level || previousMapsFuture == null) {
+            key: StageKey?,
+            previousMapsFuture: () -> Future<ErosionResult>?): Future<ErosionResult>? {
+        if (renderLevel < level) {
             return null
         }
         val preAmplifiedWidth = if (renderLevel == level) {
@@ -740,27 +831,44 @@ object WaterFlows {
         } else {
             8192
         }
-        val waterNodesFuture = executor.call {
-            doOrCancel(canceled) { prepareGraphNodesUnderWater(canceled, executor, flowGraph, biomeMasksFuture.value.landMask, biomeMasksFuture.value.soilMobilityMask, mapSizeMeters) }
+        val previous = lazy { previousMapsFuture()!! }
+        val landNodesFuture = lazy {
+            executor.call {
+                doOrCancel(canceled) { prepareGraphNodes(canceled, executor, flowGraph, biomeMasksFuture.value.landMask, biomeMasksFuture.value.soilMobilityMask, mapSizeMeters) }
+            }
+        }
+        val waterMapsFuture = lazy {
+            val waterNodesFuture = executor.call {
+                doOrCancel(canceled) { prepareGraphNodesUnderWater(canceled, executor, flowGraph, biomeMasksFuture.value.landMask, biomeMasksFuture.value.soilMobilityMask, mapSizeMeters) }
+            }
+            buildWaterMapsFuture(canceled, metrics, executor, textureWidth, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, flowGraph, biomeTemplates.UNDER_WATER_BIOME.midPassSettings, waterNodesFuture, previous.value)
         }
-        val landNodesFuture = executor.call {
-            doOrCancel(canceled) { prepareGraphNodes(canceled, executor, flowGraph, biomeMasksFuture.value.landMask, biomeMasksFuture.value.soilMobilityMask, mapSizeMeters) }
+        if (!StageCache.contains(key)) {
+            landNodesFuture.value
+            waterMapsFuture.value
         }
-        val waterMapsFuture = buildWaterMapsFuture(canceled, executor, textureWidth, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, biomeTemplates, flowGraph, biomeTemplates.UNDER_WATER_BIOME.midPassSettings, waterNodesFuture, previousMapsFuture)
         return executor.call {
-            val smallHeightMap = previousMapsFuture.value.heightMap
-            val (nodeIndex, nodes, rivers) = landNodesFuture.value
-            val erosionSettings = doOrCancel(canceled) { biomes.map { it.midPassSettings } }
-            doOrCancel(canceled) { applyMapsToNodes(executor, flowGraph.vertices, smallHeightMap, biomeMasksFuture.value.elevationPowerMask, biomeMasksFuture.value.startingHeightsMask, erosionSettings, biomeMasksFuture.value.biomeMask, nodes) }
-            val underWaterMask = waterMapsFuture.value.heightMap
-            val exportRivers = exportFiles?.waterFlowFile != null
-            val returnRivers = renderLevel == level && (exportRivers || exportFiles == null)
-            doOrCancel(canceled) { performErosion(canceled, executor, flowGraph, biomeMasksFuture.value.biomeMask, nodeIndex, nodes, rivers, 30, biomes, erosionSettings, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, textureWidth, underWaterMask, -waterDepthMeters, biomeTemplates, returnRivers, gaussRender = true) }
+            StageCache.getErosion(key, metrics) ?: run {
+                val smallHeightMap = previous.value.value.heightMap
+                val (nodeIndex, nodes, rivers) = landNodesFuture.value.value
+                val underWaterMask = waterMapsFuture.value.value.heightMap
+                val masks = biomeMasksFuture.value
+                metrics.time("stage.erosionLevel$level") {
+                    val erosionSettings = doOrCancel(canceled) { biomes.map { it.midPassSettings } }
+                    doOrCancel(canceled) { applyMapsToNodes(executor, flowGraph.vertices, smallHeightMap, masks.elevationPowerMask, masks.startingHeightsMask, erosionSettings, masks.biomeMask, nodes) }
+                    val returnRivers = returnsRivers(level, renderLevel, exportFiles)
+                    val previewRiverMapWidth = if (progressive && renderLevel > level) PREVIEW_RIVER_MAP_WIDTH else 0
+                    val result = doOrCancel(canceled) { performErosion(canceled, metrics, executor, flowGraph, masks.biomeMask, nodeIndex, nodes, rivers, 30, biomes, erosionSettings, preAmplifiedWidth, mapSizeMeters, waterDepthMeters, textureWidth, underWaterMask, -waterDepthMeters, biomeTemplates, returnRivers, previewRiverMapWidth = previewRiverMapWidth, gaussRender = true) }
+                    StageCache.putErosion(key, result)
+                    result
+                }
+            }
         }
     }
 
     private fun buildWaterMapsFuture(
             canceled: Reference<Boolean>,
+            metrics: Metrics.Registry,
             executor: ExecutorService,
             textureWidth: Int,
             preAmplifiedWidth: Int,
@@ -805,7 +913,7 @@ object WaterFlows {
                     lastUnusedCount = unused.size
                 }
             }
-            doOrCancel(canceled) { performErosion(canceled, executor, flowGraph, null, nodeIndex, nodes, rivers, 12, listOf(biomeTemplates.UNDER_WATER_BIOME), listOf(erosionSettings), preAmplifiedWidth, mapSizeMeters, waterDepthMeters, textureWidth, null, 0.0f, biomeTemplates) }
+            doOrCancel(canceled) { performErosion(canceled, metrics, executor, flowGraph, null, nodeIndex, nodes, rivers, 12, listOf(biomeTemplates.UNDER_WATER_BIOME), listOf(erosionSettings), preAmplifiedWidth, mapSizeMeters, waterDepthMeters, textureWidth, null, 0.0f, biomeTemplates) }
         }
     }
 
@@ -843,7 +951,7 @@ object WaterFlows {
         return RegionData(land, water.toList(), beach)
     }
 
-    private fun bootstrapUnderWaterErosion(executor: ExecutorService, graph: Graph, regionData: RegionData, heightMap: Matrix<Float>, soilMobilityMap: Matrix<Short>, distanceScale: Float, waterDepthMeters: Float, random: Random, biomeTemplates: Biomes): Triple<Array<WaterNode?>, ArrayList<WaterNode>, ArrayList<WaterNode>> {
+    private fun bootstrapUnderWaterErosion(canceled: Reference<Boolean>, executor: ExecutorService, graph: Graph, regionData: RegionData, heightMap: Matrix<Float>, soilMobilityMap: Matrix<Short>, distanceScale: Float, waterDepthMeters: Float, random: Random, biomeTemplates: Biomes): Triple<Array<WaterNode?>, ArrayList<WaterNode>, ArrayList<WaterNode>> {
         val vertices = graph.vertices
         val land = LinkedHashSet(regionData.land)
         val water = ArrayList(regionData.water)
@@ -893,8 +1001,8 @@ object WaterFlows {
             }
             lastUnusedCount = unused.size
         }
-        computeAreas(executor, rivers)
-        computeHeights(executor, rivers, listOf(biomeTemplates.UNDER_WATER_BIOME), listOf(ErosionSettings(1.0f, 1.0f, 0.001f)), biomeTemplates)
+        computeAreas(canceled, executor, rivers)
+        computeHeights(canceled, executor, rivers, listOf(biomeTemplates.UNDER_WATER_BIOME), listOf(ErosionSettings(1.0f, 1.0f, 0.001f)), biomeTemplates)
         return Triple(nodeIndex, nodes, rivers)
     }
 
@@ -940,22 +1048,24 @@ object WaterFlows {
                 }
             }
         }
-        doOrCancel { computeAreas(executor, rivers) }
+        doOrCancel { computeAreas(canceled, executor, rivers) }
         val bootstrapErosion = ErosionSettings(1.0f, 1.0f, 1.0f)
-        doOrCancel { computeHeights(executor, rivers, biomes, biomes.map { bootstrapErosion }, biomeTemplates) }
+        doOrCancel { computeHeights(canceled, executor, rivers, biomes, biomes.map { bootstrapErosion }, biomeTemplates) }
         return Triple(nodeIndex, nodes, rivers)
     }
 
-    private data class ErosionResult(
+    internal data class ErosionResult(
             val heightMap: FloatArrayMatrix,
             val flowMap: FloatArrayMatrix? = null,
             val soilDensityMap: FloatArrayMatrix? = null,
             val peakLines: ShortArrayMatrix? = null,
             val riverLines: ShortArrayMatrix? = null,
-            val riverSplines: List<List<Point3F>>? = null)
+            val riverSplines: List<List<Point3F>>? = null,
+            val previewFlowMap: FloatArrayMatrix? = null)
 
     private fun performErosion(
             canceled: Reference<Boolean>,
+            metrics: Metrics.Registry,
             executor: ExecutorService,
             graph: Graph,
             biomeMask: Matrix<Byte>?,
@@ -982,6 +1092,7 @@ object WaterFlows {
             outputWidth: Int = heightMapWidth,
             outputSupplementalWidth: Int = heightMapWidth,
             riverMapWidth: Int = outputSupplementalWidth,
+            previewRiverMapWidth: Int = 0,
             gaussRender: Boolean = false,
             gaussMultiplier: Float = 0.7f): ErosionResult {
         fun <T> doOrCancel(work: () -> T): T {
@@ -993,27 +1104,27 @@ object WaterFlows {
         }
 
         val lakes = ArrayList<WaterNode>()
-        val passes = LinkedHashMap<PassKey, Pass>()
-        val prepareNodesAndLakesTimer = AtomicLong(0)
-        val computeLakeConnectionsTimer = AtomicLong(0)
-        val computeAreasTimer = AtomicLong(0)
-        val computeHeightsTimer = AtomicLong(0)
-        timeIt("performErosion") {
+        val passes = PassTable()
+        val prepareNodesAndLakesTimer = metrics.timer("erosion.prepareNodesAndLakes")
+        val computeLakeConnectionsTimer = metrics.timer("erosion.computeLakeConnections")
+        val computeAreasTimer = metrics.timer("erosion.computeAreas")
+        val computeHeightsTimer = metrics.timer("erosion.computeHeights")
+        val lakesCounter = metrics.counter("erosion.lakes")
+        metrics.counter("erosion.iterations").add(iterations.toLong())
+        metrics.counter("erosion.nodes").add(nodes.size.toLong())
+        metrics.time("erosion.performErosion") {
             for (i in 0 until iterations) {
                 lakes.clear()
                 passes.clear()
-                doOrCancel { timeIt(prepareNodesAndLakesTimer) { prepareNodesAndLakes(executor, lakes, nodes, rivers) } }
-                doOrCancel { timeIt(computeLakeConnectionsTimer) { computeLakeConnections(canceled, graph.vertices, lakes, nodeIndex, passes, rivers) } }
-                doOrCancel { timeIt(computeAreasTimer) { computeAreas(executor, rivers) } }
-                doOrCancel { timeIt(computeHeightsTimer) { computeHeights(executor, rivers, biomes, erosionSettings, biomeTemplates) } }
+                doOrCancel { prepareNodesAndLakesTimer.time { prepareNodesAndLakes(executor, lakes, nodes, rivers) } }
+                lakesCounter.add(lakes.size.toLong())
+                doOrCancel { computeLakeConnectionsTimer.time { computeLakeConnections(canceled, graph.vertices, lakes, nodeIndex, passes, rivers) } }
+                doOrCancel { computeAreasTimer.time { computeAreas(canceled, executor, rivers) } }
+                doOrCancel { computeHeightsTimer.time { computeHeights(canceled, executor, rivers, biomes, erosionSettings, biomeTemplates) } }
             }
         }
-        println("""performErosion:
-  prepareNodesAndLakes: ${(prepareNodesAndLakesTimer.get() / 1000000) / 1000.0f}s
-  computeLakeConnections: ${(computeLakeConnectionsTimer.get() / 1000000) / 1000.0f}s
-  computeAreas: ${(computeAreasTimer.get() / 1000000) / 1000.0f}s
-  computeHeights: ${(computeHeightsTimer.get() / 1000000) / 1000.0f}s""")
         var riverMapDeferred: Deferred<FloatArrayMatrix>? = null
+        var previewRiverMapDeferred: Deferred<FloatArrayMatrix>? = null
         var densityMapDeferred: Deferred<FloatArrayMatrix>? = null
         var riverLinesDeferred: Deferred<Pair<ShortArrayMatrix, List<List<Point3F>>>>? = null
         var peakMapDeferred: Deferred<ShortArrayMatrix>? = null
@@ -1021,6 +1132,9 @@ object WaterFlows {
         if (returnRivers) {
             riverMapDeferred = doOrCancel { task { renderHeightMap(executor, graph, nodeIndex, null, 0.0f, riverMapWidth, riverMapWidth, threadCount, waterDepthMeters, if (forExport) 1.0f else 0.5f) { drainageArea } } }
         }
+        if (previewRiverMapWidth > 0) {
+            previewRiverMapDeferred = doOrCancel { task { renderHeightMap(executor, graph, nodeIndex, null, 0.0f, previewRiverMapWidth, previewRiverMapWidth, threadCount, waterDepthMeters, 0.5f) { drainageArea } } }
+        }
         if (returnRiverLines || returnRiverSplines) {
             riverLinesDeferred = doOrCancel {
                 task {
@@ -1051,7 +1165,6 @@ object WaterFlows {
                             if (it.maxUpstreamLength > 0.0f) {
                                 numRiversWithLength++
                                 sumRiverLengths += it.maxUpstreamLength
-                                println("maxUpstream: ${it.maxUpstreamLength}")
                                 rootsToConsider.add(it)
                             }
                         }
@@ -1077,9 +1190,9 @@ object WaterFlows {
                             }
                         }
                     }
-                    println("riverLengthThreshold: $riverLengthThreshold")
-                    val textureId = renderEdges(outputSupplementalWidth, executor, riverLines, threadCount)
-                    ShortArrayMatrix(outputSupplementalWidth, extractTextureRedShort(textureId, outputSupplementalWidth)) to riverPolyLines
+                    metrics.counter("rivers.roots").add(rootsToConsider.size.toLong())
+                    metrics.gauge("rivers.lengthThreshold").value = riverLengthThreshold.toDouble()
+                    ShortArrayMatrix(outputSupplementalWidth, renderEdgesRedShort(outputSupplementalWidth, executor, riverLines, threadCount)) to riverPolyLines
                 }
             }
         }
@@ -1089,26 +1202,7 @@ object WaterFlows {
         if (returnPeaks) {
             peakMapDeferred = doOrCancel {
                 task {
-                    nodes.forEach {
-                        val nodeHeight = it.height
-                        if (nodeHeight > 205.0f) {
-                            val closePoints = graph.getClosePoints(it.id, 0.007f, false)
-                            var isPeak = true
-                            for (closePoint in closePoints) {
-                                if (closePoint == it.id) {
-                                    continue
-                                }
-                                val node = nodeIndex[closePoint]
-                                if (node != null && node.height > nodeHeight) {
-                                    isPeak = false
-                                    break
-                                }
-                            }
-                            if (isPeak) {
-                                it.isPeak = true
-                            }
-                        }
-                    }
+                    findPeaks(executor, graph, nodeIndex, nodes, 205.0f, 0.007f)
                     renderPeakMap(executor, graph, nodeIndex, heightMapWidth, outputSupplementalWidth, textureWidth, threadCount) { if (isPeak) height else 0.0f }
                 }
             }
@@ -1143,7 +1237,8 @@ object WaterFlows {
                     soilDensityMap = if (returnSoilDensity) densityMapDeferred?.await() else null,
                     peakLines = if (returnPeaks) peakMapDeferred?.await() else null,
                     riverLines = if (returnRiverLines) riverLinesDeferred?.await()?.first else null,
-                    riverSplines = if (returnRiverSplines) riverLinesDeferred?.await()?.second else null)
+                    riverSplines = if (returnRiverSplines) riverLinesDeferred?.await()?.second else null,
+                    previewFlowMap = previewRiverMapDeferred?.await())
         }
     }
 
@@ -1278,7 +1373,7 @@ object WaterFlows {
         return Triple(nodeIndex, nodes, rivers)
     }
 
-    private fun computeLakeConnections(canceled: Reference<Boolean>, vertices: Vertices, lakes: ArrayList<WaterNode>, nodeIndex: Array<WaterNode?>, passes: LinkedHashMap<PassKey, Pass>, rivers: ArrayList<WaterNode>) {
+    private fun computeLakeConnections(canceled: Reference<Boolean>, vertices: Vertices, lakes: ArrayList<WaterNode>, nodeIndex: Array<WaterNode?>, passes: PassTable, rivers: ArrayList<WaterNode>) {
         fun <T> doOrCancel(work: () -> T): T {
             if (!canceled.value) {
                 return work()
@@ -1289,66 +1384,141 @@ object WaterFlows {
         lakes.forEach { waterNode ->
             doOrCancel { recurseFindPasses(nodeIndex, waterNode, passes) }
         }
-        val expandedPasses = ArrayList<Pass>(passes.size * 2)
-        passes.values.forEach {
-            doOrCancel {
-                expandedPasses.add(it)
-                expandedPasses.add(Pass(PassKey(it.passKey.lake2, it.passKey.lake1), it.id2, it.id1, it.height))
+        val lakeCount = rivers.size + lakes.size
+        val expandedCount = passes.size * 2
+        fun lake1(pass: Int) = if ((pass and 1) == 0) passes.lake1s[pass shr 1] else passes.lake2s[pass shr 1]
+        fun lake2(pass: Int) = if ((pass and 1) == 0) passes.lake2s[pass shr 1] else passes.lake1s[pass shr 1]
+        val drainOffsets = IntArray(lakeCount + 1)
+        for (pass in 0 until expandedCount) {
+            drainOffsets[lake2(pass) + 1]++
+        }
+        for (i in 0 until lakeCount) {
+            drainOffsets[i + 1] += drainOffsets[i]
+        }
+        val drainFill = drainOffsets.copyOf(lakeCount)
+        val passesByDrain = IntArray(expandedCount)
+        for (pass in 0 until expandedCount) {
+            passesByDrain[drainFill[lake2(pass)]++] = pass
+        }
+        val outflowing = BitSet(lakeCount)
+        val frontier = PassQueue(passes.heights, expandedCount)
+        fun drain(lake: Int) {
+            outflowing.set(lake)
+            for (i in drainOffsets[lake] until drainOffsets[lake + 1]) {
+                val pass = passesByDrain[i]
+                if (!outflowing.get(lake1(pass))) {
+                    frontier.add(pass)
+                }
             }
         }
-        expandedPasses.sortByDescending { it.height }
-        val outflowing = LinkedHashSet<Int>()
         rivers.forEach {
-            outflowing.add(it.lake)
+            outflowing.set(it.lake)
         }
-        while (expandedPasses.isNotEmpty()) {
-            for (j in (expandedPasses.size - 1) downTo 0) {
-                val currentPass = expandedPasses[j]
-                if (outflowing.contains(currentPass.passKey.lake1)) {
-                    doOrCancel { expandedPasses.removeAt(j) }
-                    continue
-                } else if (outflowing.contains(currentPass.passKey.lake2)) {
-                    doOrCancel {
-                        outflowing.add(currentPass.passKey.lake1)
-                        expandedPasses.removeAt(j)
-                        val childNode = recurseFindRoot(nodeIndex[currentPass.id1]!!)
-                        val parentNode = nodeIndex[currentPass.id2]!!
-                        parentNode.children.add(childNode)
-                        childNode.parent = parentNode
-                        childNode.distanceToParent = vertices.getPoint(childNode.id).distance(vertices.getPoint(parentNode.id))
-                    }
+        rivers.forEach {
+            drain(it.lake)
+        }
+        while (frontier.isNotEmpty()) {
+            val pass = frontier.remove()
+            val lake = lake1(pass)
+            if (outflowing.get(lake)) {
+                continue
+            }
+            doOrCancel {
+                val passIndex = pass shr 1
+                val id1 = if ((pass and 1) == 0) passes.id1s[passIndex] else passes.id2s[passIndex]
+                val id2 = if ((pass and 1) == 0) passes.id2s[passIndex] else passes.id1s[passIndex]
+                val childNode = recurseFindRoot(nodeIndex[id1]!!)
+                val parentNode = nodeIndex[id2]!!
+                parentNode.children.add(childNode)
+                childNode.parent = parentNode
+                childNode.distanceToParent = vertices.getPoint(childNode.id).distance(vertices.getPoint(parentNode.id))
+                drain(lake)
+            }
+        }
+    }
+
+    private class PassQueue(private val heights: FloatArray, capacity: Int) {
+
+        private val heap = IntArray(capacity)
+        private var size = 0
+
+        fun isNotEmpty() = size > 0
+
+        fun add(pass: Int) {
+            var i = size++
+            while (i > 0) {
+                val parent = (i - 1) shr 1
+                if (!before(pass, heap[parent])) {
                     break
                 }
+                heap[i] = heap[parent]
+                i = parent
             }
+            heap[i] = pass
         }
-    }
 
-    private fun prepareNodesAndLakes(executor: ExecutorService, lakes: ArrayList<WaterNode>, nodes: ArrayList<WaterNode>, rivers: ArrayList<WaterNode>) {
-        nodes.parallelStream().forEach { node ->
-            node.lake = -1
-            node.children.clear()
-            if (!node.isExternal) {
-                var minHeight = node.height
-                var minNode = node
-                var distToMin = 0.0f
-                node.adjacents.forEach { (otherNode, dist) ->
-                    if (otherNode.height < minHeight) {
-                        minNode = otherNode
-                        distToMin = dist
-                        minHeight = otherNode.height
-                    }
+        fun remove(): Int {
+            val first = heap[0]
+            val last = heap[--size]
+            var i = 0
+            while (true) {
+                var child = i * 2 + 1
+                if (child >= size) {
+                    break
                 }
-                if (minNode != node.parent) {
-                    node.parent = minNode
-                    node.distanceToParent = distToMin
+                if (child + 1 < size && before(heap[child + 1], heap[child])) {
+                    child++
                 }
-                if (minNode == node) {
-                    synchronized(lakes) {
-                        lakes.add(node)
+                if (!before(heap[child], last)) {
+                    break
+                }
+                heap[i] = heap[child]
+                i = child
+            }
+            heap[i] = last
+            return first
+        }
+
+        private fun before(pass1: Int, pass2: Int): Boolean {
+            val comparison = java.lang.Float.compare(heights[pass1 shr 1], heights[pass2 shr 1])
+            return comparison < 0 || (comparison == 0 && pass1 > pass2)
+        }
+    }
+
+    private fun prepareNodesAndLakes(executor: ExecutorService, lakes: ArrayList<WaterNode>, nodes: ArrayList<WaterNode>, rivers: ArrayList<WaterNode>) {
+        val chunkSize = (nodes.size + threadCount - 1) / threadCount
+        val lakeChunks = (0 until threadCount).map { chunk ->
+            executor.call {
+                val chunkLakes = ArrayList<WaterNode>()
+                for (i in chunk * chunkSize until Math.min(nodes.size, (chunk + 1) * chunkSize)) {
+                    val node = nodes[i]
+                    node.lake = -1
+                    node.children.clear()
+                    if (!node.isExternal) {
+                        var minHeight = node.height
+                        var minNode = node
+                        var distToMin = 0.0f
+                        node.adjacents.forEach { (otherNode, dist) ->
+                            if (otherNode.height < minHeight) {
+                                minNode = otherNode
+                                distToMin = dist
+                                minHeight = otherNode.height
+                            }
+                        }
+                        if (minNode != node.parent) {
+                            node.parent = minNode
+                            node.distanceToParent = distToMin
+                        }
+                        if (minNode == node) {
+                            chunkLakes.add(node)
+                        }
                     }
                 }
+                chunkLakes
             }
         }
+        lakeChunks.forEach { lakes.addAll(it.value) }
+        lakes.sortBy { it.id }
 
         nodes.parallelStream().forEach { node ->
             node.lake = -1
@@ -1614,22 +1784,30 @@ object WaterFlows {
         nodeFutures.forEach { it.join() }
     }
 
-    private fun computeAreas(executor: ExecutorService, rivers: ArrayList<WaterNode>) {
+    private fun computeAreas(canceled: Reference<Boolean>, executor: ExecutorService, rivers: ArrayList<WaterNode>) {
         val areaFutures = rivers.map { river ->
             executor.call {
-                recurseArea(river)
+                if (!canceled.value) {
+                    recurseArea(river)
+                }
             }
         }
         areaFutures.forEach { it.join() }
+        if (canceled.value) {
+            throw CancellationException()
+        }
     }
 
-    private fun computeHeights(executor: ExecutorService, rivers: ArrayList<WaterNode>, biomes: List<Biome>, erosionSettings: List<ErosionSettings>, biomeTemplates: Biomes) {
+    private fun computeHeights(canceled: Reference<Boolean>, executor: ExecutorService, rivers: ArrayList<WaterNode>, biomes: List<Biome>, erosionSettings: List<ErosionSettings>, biomeTemplates: Biomes) {
         val heightFutures = rivers.map { river ->
             executor.call {
-                recurseHeights(river, biomes, erosionSettings, biomeTemplates)
+                recurseHeights(canceled, river, biomes, erosionSettings, biomeTemplates)
             }
         }
         heightFutures.forEach { it.join() }
+        if (canceled.value) {
+            throw CancellationException()
+        }
     }
 
     private fun recurseFindRoot(waterNode: WaterNode): WaterNode {
@@ -1639,20 +1817,14 @@ object WaterFlows {
         return recurseFindRoot(waterNode.parent)
     }
 
-    private fun recurseFindPasses(nodeIndex: Array<WaterNode?>, node: WaterNode, passes: LinkedHashMap<PassKey, Pass>) {
+    private fun recurseFindPasses(nodeIndex: Array<WaterNode?>, node: WaterNode, passes: PassTable) {
         node.adjacents.forEach { (otherNode) ->
             if (otherNode.lake != node.lake) {
-                val minLakeId = Math.min(node.lake, otherNode.lake)
-                val swapped = node.lake != minLakeId
-                val passKey = PassKey(minLakeId, Math.max(node.lake, otherNode.lake))
                 val passHeight = Math.max(node.height, otherNode.height)
-                val currentMin = passes[passKey]
-                if (currentMin == null || currentMin.height > passHeight) {
-                    if (swapped) {
-                        passes[passKey] = Pass(passKey, otherNode.id, node.id, passHeight)
-                    } else {
-                        passes[passKey] = Pass(passKey, node.id, otherNode.id, passHeight)
-                    }
+                if (node.lake < otherNode.lake) {
+                    passes.offer(node.lake, otherNode.lake, node.id, otherNode.id, passHeight)
+                } else {
+                    passes.offer(otherNode.lake, node.lake, otherNode.id, node.id, passHeight)
                 }
             }
         }
@@ -1680,9 +1852,12 @@ object WaterFlows {
         }
     }
 
-    private fun recurseHeights(node: WaterNode, biomes: List<Biome>, erosionSettings: List<ErosionSettings>, biomeTemplates: Biomes) {
+    private fun recurseHeights(canceled: Reference<Boolean>, node: WaterNode, biomes: List<Biome>, erosionSettings: List<ErosionSettings>, biomeTemplates: Biomes) {
+        if (canceled.value) {
+            return
+        }
         if (node.isExternal) {
-            node.children.forEach { recurseHeights(it, biomes, erosionSettings, biomeTemplates) }
+            node.children.forEach { recurseHeights(canceled, it, biomes, erosionSettings, biomeTemplates) }
         } else {
             if (!node.isPinned) {
                 val biome = biomes[node.biome]
@@ -1729,7 +1904,7 @@ object WaterFlows {
                     }
                 }
             }
-            node.children.forEach { recurseHeights(it, biomes, erosionSettings, biomeTemplates) }
+            node.children.forEach { recurseHeights(canceled, it, biomes, erosionSettings, biomeTemplates) }
         }
     }
 
@@ -1860,6 +2035,93 @@ object WaterFlows {
         }
     }
 
+    private fun findPeaks(executor: ExecutorService, graph: Graph, nodeIndex: Array<WaterNode?>, nodes: ArrayList<WaterNode>, minHeight: Float, radius: Float) {
+        val stride = graph.stride!!
+        val heights = FloatArray(stride * stride) { Float.NEGATIVE_INFINITY }
+        nodes.forEach {
+            heights[it.id] = it.height
+        }
+        val outerRadius = ceil(radius * stride).toInt() + 2
+        val innerRadius = floor((radius * stride - 2.0f) / sqrt(2.0f)).toInt()
+        val outerMax = maxFilter(executor, heights, stride, outerRadius)
+        val innerMax = if (innerRadius > 0) maxFilter(executor, heights, stride, innerRadius) else null
+        val undecided = ArrayList<WaterNode>()
+        nodes.forEach {
+            val nodeHeight = it.height
+            if (nodeHeight > minHeight) {
+                if (nodeHeight >= outerMax[it.id]) {
+                    it.isPeak = true
+                } else if (innerMax == null || innerMax[it.id] <= nodeHeight) {
+                    undecided.add(it)
+                }
+            }
+        }
+        undecided.forEach {
+            val nodeHeight = it.height
+            val closePoints = graph.getClosePoints(it.id, radius, false)
+            var isPeak = true
+            for (closePoint in closePoints) {
+                if (closePoint == it.id) {
+                    continue
+                }
+                val node = nodeIndex[closePoint]
+                if (node != null && node.height > nodeHeight) {
+                    isPeak = false
+                    break
+                }
+            }
+            if (isPeak) {
+                it.isPeak = true
+            }
+        }
+    }
+
+    private fun maxFilter(executor: ExecutorService, values: FloatArray, width: Int, radius: Int): FloatArray {
+        val rowMax = FloatArray(values.size)
+        (0 until threadCount).map { i ->
+            executor.call {
+                val buffers = MaxFilterBuffers(width, radius)
+                for (y in i until width step threadCount) {
+                    buffers.filter(values, rowMax, y * width, 1)
+                }
+            }
+        }.forEach { it.join() }
+        val output = FloatArray(values.size)
+        (0 until threadCount).map { i ->
+            executor.call {
+                val buffers = MaxFilterBuffers(width, radius)
+                for (x in i until width step threadCount) {
+                    buffers.filter(rowMax, output, x, width)
+                }
+            }
+        }.forEach { it.join() }
+        return output
+    }
+
+    private class MaxFilterBuffers(private val count: Int, private val radius: Int) {
+
+        private val window = radius * 2 + 1
+        private val paddedCount = ((count + radius * 2 + window - 1) / window) * window
+        private val prefix = FloatArray(paddedCount)
+        private val suffix = FloatArray(paddedCount)
+
+        fun filter(input: FloatArray, output: FloatArray, offset: Int, step: Int) {
+            for (p in 0 until paddedCount) {
+                val i = p - radius
+                val value = if (i in 0 until count) input[offset + i * step] else Float.NEGATIVE_INFINITY
+                prefix[p] = if (p % window == 0) value else max(prefix[p - 1], value)
+            }
+            for (p in paddedCount - 1 downTo 0) {
+                val i = p - radius
+                val value = if (i in 0 until count) input[offset + i * step] else Float.NEGATIVE_INFINITY
+                suffix[p] = if (p % window == window - 1) value else max(suffix[p + 1], value)
+            }
+            for (i in 0 until count) {
+                output[offset + i * step] = max(suffix[i], prefix[i + radius * 2])
+            }
+        }
+    }
+
     private inline fun renderPeakMap(executor: ExecutorService, graph: Graph, nodeIndex: Array<WaterNode?>, heightMapWidth: Int, outputWidth: Int, textureWidth: Int, threadCount: Int, property: WaterNode.() -> Float): ShortArrayMatrix {
         val scale = outputWidth / heightMapWidth.toFloat()
         val graphVertices = graph.vertices
@@ -1891,8 +2153,7 @@ object WaterFlows {
             val peak2D = Point2F(peak.x, peak.y)
             listOf(LineSegment2F(Point2F(peak.x - edgeLength, peak.y + edgeLength), peak2D), LineSegment2F(peak2D, Point2F(peak.x + edgeLength, peak.y + edgeLength)))
         }
-        val textureId = renderEdges(textureWidth, executor, edges, threadCount)
-        return ShortArrayMatrix(heightMapWidth, extractTextureRedShort(textureId, heightMapWidth))
+        return ShortArrayMatrix(heightMapWidth, renderEdgesRedShort(textureWidth, executor, edges, threadCount).copyOf(heightMapWidth * heightMapWidth))
     }
 
     private fun gaussRenderHeightMap(graph: Graph, nodeIndex: Array<WaterNode?>, fallback: Matrix<Float>, outputWidth: Int, waterDepthMeters: Float, multiplier: Float = 0.7f): FloatArrayMatrix {
@@ -2376,66 +2637,33 @@ object WaterFlows {
     private fun File.exportMap16Bit(outputSize: Int, heightMap: ShortArray?, heightMapWidth: Int) {
         if (heightMap == null) return
         if ((!this.exists() && this.parentFile.isDirectory && this.parentFile.canWrite()) || this.canWrite()) {
-            val output = BufferedImage(outputSize, outputSize, BufferedImage.TYPE_USHORT_GRAY)
-            val raster = output.raster
-            for (y in 0 until outputSize) {
-                val yOff = y * heightMapWidth
-                for (x in 0 until outputSize) {
-                    raster.setSample(x, y, 0, heightMap[yOff + x].toInt() and 0xFFFF)
-                }
+            when (extension.toLowerCase()) {
+                "r16" -> MapWriters.writeRaw16(this, outputSize, heightMap, heightMapWidth)
+                "r32" -> MapWriters.writeRaw32(this, outputSize, heightMap, heightMapWidth)
+                "exr" -> MapWriters.writeExr(this, outputSize, heightMap, heightMapWidth)
+                else -> MapWriters.writePng16BitGrey(this, outputSize, heightMap, heightMapWidth)
             }
-            ImageIO.write(output, "png", this)
         }
     }
 
     private fun File.exportMap8BitRGB(outputSize: Int, heightMap: ByteBuffer?, heightMapWidth: Int) {
         if (heightMap == null) return
         if ((!this.exists() && this.parentFile.isDirectory && this.parentFile.canWrite()) || this.canWrite()) {
-            val colorModel = ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB), intArrayOf(8, 8, 8), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE)
-            val output = BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(outputSize, outputSize), colorModel.isAlphaPremultiplied, null)
-            val raster = output.raster
-            for (y in 0 until outputSize) {
-                val yOff = y * heightMapWidth
-                for (x in 0 until outputSize) {
-                    val index = (yOff + x) * 4
-                    raster.setSample(x, y, 0, heightMap[index].toInt() and 0xFF)
-                    raster.setSample(x, y, 1, heightMap[index + 1].toInt() and 0xFF)
-                    raster.setSample(x, y, 2, heightMap[index + 2].toInt() and 0xFF)
-                }
-            }
-            ImageIO.write(output, "png", this)
+            MapWriters.writePng8BitLinearRgb(this, outputSize, heightMap, heightMapWidth, 4)
         }
     }
 
     private fun File.exportMap8BitA(outputSize: Int, heightMap: ByteBuffer?, heightMapWidth: Int) {
         if (heightMap == null) return
         if ((!this.exists() && this.parentFile.isDirectory && this.parentFile.canWrite()) || this.canWrite()) {
-            val output = BufferedImage(outputSize, outputSize, BufferedImage.TYPE_BYTE_GRAY)
-            val raster = output.raster
-            for (y in 0 until outputSize) {
-                val yOff = y * heightMapWidth
-                for (x in 0 until outputSize) {
-                    val index = (yOff + x) * 4
-                    raster.setSample(x, y, 0, heightMap[index + 3].toInt() and 0xFF)
-                }
-            }
-            ImageIO.write(output, "png", this)
+            MapWriters.writePng8BitGrey(this, outputSize, heightMap, heightMapWidth, 4, 3)
         }
     }
 
     private fun File.exportMap8BitGrey(outputSize: Int, heightMap: ByteBuffer?, heightMapWidth: Int) {
         if (heightMap == null) return
         if ((!this.exists() && this.parentFile.isDirectory && this.parentFile.canWrite()) || this.canWrite()) {
-            val output = BufferedImage(outputSize, outputSize, BufferedImage.TYPE_BYTE_GRAY)
-            val raster = output.raster
-            for (y in 0 until outputSize) {
-                val yOff = y * heightMapWidth
-                for (x in 0 until outputSize) {
-                    val index = yOff + x
-                    raster.setSample(x, y, 0, heightMap[index].toInt() and 0xFF)
-                }
-            }
-            ImageIO.write(output, "png", this)
+            MapWriters.writePng8BitGrey(this, outputSize, heightMap, heightMapWidth)
         }
     }
 
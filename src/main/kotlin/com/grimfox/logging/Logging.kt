@@ -1,13 +1,22 @@
 package com.grimfox.logging
 
 import com.grimfox.logging.LoggingLevel.*
-import kotlinx.coroutines.GlobalScope
-import kotlinx.coroutines.async
 import java.io.*
-import java.text.SimpleDateFormat
+import java.time.Instant
+import java.time.ZoneId
+import java.time.format.DateTimeFormatter
 import java.util.*
-
-private class SynchronizedPrintStream(stream: OutputStream) : PrintStream(stream, true) {
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.locks.LockSupport
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.math.max
+
+private class SynchronizedPrintStream(stream: OutputStream, autoFlush: Boolean) : PrintStream(stream, autoFlush) {
 
     override fun print(b: Boolean) {
         synchronized(this) {
@@ -214,12 +223,13 @@ private class SynchronizedPrintStream(stream: OutputStream) : PrintStream(stream
     }
 }
 
-private fun loggingPrintStream(outputStream: OutputStream): PrintStream {
-    val printStream = SynchronizedPrintStream(outputStream)
+private fun loggingPrintStream(outputStream: OutputStream, autoFlush: Boolean = true): PrintStream {
+    val printStream = SynchronizedPrintStream(outputStream, autoFlush)
     Runtime.getRuntime().addShutdownHook(
             Thread {
                 try {
-                    printStream.close()
+                    LogWriter.shutdown()
+                    printStream.flush()
                 } catch (t: Throwable) {
                     t.printStackTrace()
                 }
@@ -237,50 +247,238 @@ private enum class LoggingLevel {
     FATAL
 }
 
+private enum class OverflowPolicy {
+    BLOCK,
+    DROP,
+    SAMPLE
+}
+
 private val LOGGING_PATH = File(File(File(System.getProperty("wk.local.app.dir", System.getProperty("user.dir"))), "Logs"), "debug.log").canonicalPath
 
 private val LOGGING_LEVEL = LoggingLevel.valueOf(System.getProperty("wk.log.level", "INFO").toUpperCase())
 
 private val LOG_TO_SYS_OUT = System.getProperty("wk.log.to.sys.out", "false").toLowerCase().toBoolean()
 
-private val LOGGING_PRINT_STREAM = if (LOG_TO_SYS_OUT) loggingPrintStream(System.out) else loggingPrintStream(File(LOGGING_PATH).outputStream().buffered())
+private val LOG_BUFFER_SIZE = Integer.highestOneBit(max(2, System.getProperty("wk.log.buffer.size", "8192").toInt()))
+
+private val LOG_OVERFLOW_POLICY = OverflowPolicy.valueOf(System.getProperty("wk.log.overflow", "BLOCK").toUpperCase())
+
+private const val LOG_SAMPLE_RATE = 16
+
+private const val LOG_BATCH_SIZE = 256
+
+private const val LOG_IDLE_FLUSH_NANOS = 1000000000L
+
+private const val LOG_FLUSH_INTERVAL_NANOS = 100000000L
+
+private const val LOG_BLOCK_TIMEOUT_MILLIS = 10L
+
+private val LOGGING_PRINT_STREAM = if (LOG_TO_SYS_OUT) loggingPrintStream(System.out) else loggingPrintStream(File(LOGGING_PATH).outputStream().buffered(), false)
+
+private class LogRecord(val level: LoggingLevel, val time: Long, val message: (() -> Any?)?, val error: Throwable?)
+
+private class LogRingBuffer(private val capacity: Int) {
+
+    private val mask = capacity - 1
+    private val slots = AtomicReferenceArray<LogRecord?>(capacity)
+    private val sequences = AtomicLongArray(capacity)
+    private val tail = AtomicLong(0)
+    private var head = 0L
+
+    init {
+        for (i in 0 until capacity) {
+            sequences.set(i, i.toLong())
+        }
+    }
+
+    fun offer(record: LogRecord): Boolean {
+        while (true) {
+            val position = tail.get()
+            val index = (position and mask.toLong()).toInt()
+            val delta = sequences.get(index) - position
+            if (delta == 0L) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, record)
+                    // volatile publish, so a producer that then reads the writer's parked flag cannot miss a park
+                    sequences.set(index, position + 1)
+                    return true
+                }
+            } else if (delta < 0L) {
+                return false
+            }
+        }
+    }
+
+    fun poll(): LogRecord? {
+        val index = (head and mask.toLong()).toInt()
+        if (sequences.get(index) != head + 1) {
+            return null
+        }
+        val record = slots.get(index)
+        slots.lazySet(index, null)
+        sequences.lazySet(index, head + capacity)
+        head++
+        return record
+    }
+
+    fun isEmpty() = sequences.get((head and mask.toLong()).toInt()) != head + 1
+}
+
+private class CachedTimestampFormat {
+
+    private val formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault())
+    private var cachedSecond = Long.MIN_VALUE
+    private var cachedString = ""
+
+    fun format(time: Long): String {
+        val second = time / 1000
+        if (second != cachedSecond) {
+            cachedSecond = second
+            cachedString = formatter.format(Instant.ofEpochMilli(time))
+        }
+        return cachedString
+    }
+}
+
+private object LogWriter {
+
+    private val buffer = LogRingBuffer(LOG_BUFFER_SIZE)
+    private val dropped = AtomicLong(0)
+    private val overflowCount = AtomicLong(0)
+    private val timestamps = CachedTimestampFormat()
+    private val lineBuilder = StringBuilder(256)
+    private val notFullLock = ReentrantLock()
+    private val notFull = notFullLock.newCondition()
+    private val blockedProducers = AtomicInteger(0)
+    private var flushRequested = false
+    @Volatile private var running = true
+    @Volatile private var parked = false
+    private val thread = Thread(Runnable { writeLoop() }, "logging-writer")
+
+    init {
+        thread.isDaemon = true
+        thread.start()
+    }
+
+    fun enqueue(record: LogRecord) {
+        if (buffer.offer(record)) {
+            if (parked) {
+                LockSupport.unpark(thread)
+            }
+            return
+        }
+        val block = when (LOG_OVERFLOW_POLICY) {
+            OverflowPolicy.BLOCK -> true
+            OverflowPolicy.DROP -> false
+            OverflowPolicy.SAMPLE -> overflowCount.getAndIncrement() % LOG_SAMPLE_RATE == 0L
+        }
+        if (!block || !running || Thread.currentThread() === thread) {
+            dropped.incrementAndGet()
+            return
+        }
+        blockedProducers.incrementAndGet()
+        try {
+            notFullLock.withLock {
+                while (!buffer.offer(record)) {
+                    if (!running) {
+                        dropped.incrementAndGet()
+                        return
+                    }
+                    LockSupport.unpark(thread)
+                    notFull.await(LOG_BLOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                }
+            }
+        } finally {
+            blockedProducers.decrementAndGet()
+        }
+    }
 
-private val dateFormat = ThreadLocal.withInitial { SimpleDateFormat("yyyy-MM-dd HH:mm:ss") }
+    fun shutdown() {
+        running = false
+        LockSupport.unpark(thread)
+        thread.join(1000)
+    }
+
+    private fun writeLoop() {
+        var lastFlush = System.nanoTime()
+        var dirty = false
+        while (true) {
+            val stopping = !running
+            val written = writeBatch()
+            if (written > 0) {
+                dirty = true
+                if (blockedProducers.get() > 0) {
+                    notFullLock.withLock {
+                        notFull.signalAll()
+                    }
+                }
+            }
+            val now = System.nanoTime()
+            if (flushRequested) {
+                LOGGING_PRINT_STREAM.flush()
+                lastFlush = now
+                dirty = false
+                flushRequested = false
+            } else if (dirty && (written < LOG_BATCH_SIZE || now - lastFlush >= LOG_FLUSH_INTERVAL_NANOS)) {
+                LOGGING_PRINT_STREAM.flush()
+                lastFlush = now
+                dirty = false
+            } else if (now - lastFlush >= LOG_FLUSH_INTERVAL_NANOS) {
+                LOGGING_PRINT_STREAM.flush()
+                lastFlush = now
+            }
+            if (stopping && written == 0) {
+                LOGGING_PRINT_STREAM.flush()
+                return
+            }
+            if (written == 0) {
+                parked = true
+                if (running && buffer.isEmpty()) {
+                    LockSupport.parkNanos(this, LOG_IDLE_FLUSH_NANOS)
+                }
+                parked = false
+            }
+        }
+    }
+
+    private fun writeBatch(): Int {
+        var count = 0
+        synchronized(LOGGING_PRINT_STREAM) {
+            while (count < LOG_BATCH_SIZE) {
+                val record = buffer.poll() ?: break
+                write(record)
+                count++
+            }
+            val droppedCount = dropped.getAndSet(0)
+            if (droppedCount > 0) {
+                LOGGING_PRINT_STREAM.println("${timestamps.format(System.currentTimeMillis())} ${WARN.name} - $droppedCount log messages dropped due to full logging buffer.")
+            }
+        }
+        return count
+    }
+
+    private fun write(record: LogRecord) {
+        try {
+            val messageString = if (record.message != null) record.message.invoke().toString() else record.error?.message.toString()
+            lineBuilder.setLength(0)
+            lineBuilder.append(timestamps.format(record.time)).append(' ').append(record.level.name).append(" - ").append(messageString)
+            LOGGING_PRINT_STREAM.println(lineBuilder)
+            record.error?.printStackTrace(LOGGING_PRINT_STREAM)
+            if (record.level.ordinal >= ERROR.ordinal) {
+                flushRequested = true
+            }
+        } catch (t: Throwable) {
+            t.printStackTrace(LOGGING_PRINT_STREAM)
+        }
+    }
+}
 
 private object InternalLogging {
 
     fun log(level: LoggingLevel, message: (() -> Any?)? = null, error: Throwable? = null) {
         if (level.ordinal >= LOGGING_LEVEL.ordinal) {
             if (message != null || error != null) {
-                val logTime = System.currentTimeMillis()
-                GlobalScope.async {
-                    val messageValue = message?.invoke()
-                    when {
-                        message != null && error != null -> {
-                            val dateString = dateFormat.get().format(Date(logTime))
-                            val levelString = level.name
-                            val messageString = messageValue.toString()
-                            val messageLine = "$dateString $levelString - $messageString"
-                            synchronized(LOGGING_PRINT_STREAM) {
-                                LOGGING_PRINT_STREAM.println(messageLine)
-                                error.printStackTrace(LOGGING_PRINT_STREAM)
-                            }
-                        }
-                        message != null && error == null -> {
-                            LOGGING_PRINT_STREAM.println("${dateFormat.get().format(Date(logTime))} ${level.name} - $messageValue")
-                        }
-                        message == null && error != null -> {
-                            val dateString = dateFormat.get().format(Date(logTime))
-                            val levelString = level.name
-                            val messageString = error.message
-                            val messageLine = "$dateString $levelString - $messageString"
-                            synchronized(LOGGING_PRINT_STREAM) {
-                                LOGGING_PRINT_STREAM.println(messageLine)
-                                error.printStackTrace(LOGGING_PRINT_STREAM)
-                            }
-                        }
-                    }
-                }
+                LogWriter.enqueue(LogRecord(level, System.currentTimeMillis(), message, error))
             }
         }
     }
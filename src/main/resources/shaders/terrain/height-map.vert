@@ -3,6 +3,8 @@
 uniform mat4 modelViewProjectionMatrix;
 uniform float heightScale;
 uniform sampler2D heightMapTexture;
+uniform vec4 tilePosition;
+uniform vec4 tileUv;
 
 in vec2 position;
 in vec2 uv;
@@ -13,8 +15,10 @@ out VertexData {
 } VertexOut;
 
 void main () {
-    VertexOut.uv = uv;
-    VertexOut.position = position;
-    float height = texture(heightMapTexture, uv).r * heightScale;
-    gl_Position = modelViewProjectionMatrix * vec4(position, height, 1.0);
+    vec2 worldPosition = tilePosition.xy + position * tilePosition.zw;
+    vec2 worldUv = tileUv.xy + uv * tileUv.zw;
+    VertexOut.uv = worldUv;
+    VertexOut.position = worldPosition;
+    float height = texture(heightMapTexture, worldUv).r * heightScale;
+    gl_Position = modelViewProjectionMatrix * vec4(worldPosition, height, 1.0);
 }
\ No newline at end of file